@@ -0,0 +1,64 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Pool of fixed-size byte buffers, used for query and response messages so that each query does
+ * not allocate new buffers. Buffers may be acquired and released from any thread. Releasing a
+ * buffer is optional: a buffer that is never released is simply collected, and the pool allocates
+ * a new one when it runs out.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /** Creates an empty pool.
+     *
+     * @param bufferSize Capacity of each buffer, in bytes.
+     * @param maxPooled  Maximum number of released buffers kept for reuse.
+     * @param direct     Whether buffers are allocated outside of the Java heap.
+     */
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Returns a cleared buffer, reused from the pool if one is available.
+     *
+     * @return A buffer with position 0 and limit equal to its capacity.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Returns a buffer to the pool. The buffer must not be used after it is released. Buffers
+     * that were not acquired from this pool are ignored.
+     *
+     * @param buffer Buffer to be reused.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct || buffer.isReadOnly())
+            return;
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.add(buffer);
+    }
+}
@@ -0,0 +1,334 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Resolves a stream of names, such as a list of names to audit or to load into the cache, with a
+ * bounded number of lookups in flight. Each input line holds a host name, optionally followed by a
+ * record type (A by default), as for the lookup command; empty lines and comments (from '#') are
+ * skipped. Names are read only as fast as lookups complete, so inputs of any size are streamed.
+ *
+ * One output row is written per name, as soon as its lookup completes, so rows are in completion
+ * order rather than input order; each row starts with the line number of the name in the input.
+ * Rows are CSV with the columns
+ *
+ * <pre>
+ *   line,name,type,status,millis,ttl,answers,error
+ * </pre>
+ *
+ * where millis is the time taken by the lookup (empty for a line that is not a valid query),
+ * answers holds the results separated by spaces and ttl is the lowest TTL of the results, or JSON
+ * lines with the same fields and answers as an array of objects with a ttl and a data
+ * field. The status is one of NOERROR, NODATA (the name has no records of the type), NXDOMAIN
+ * (the name does not exist), SERVFAIL (no name server could answer, for instance because they did
+ * not respond or answered with errors) or ERROR (the line is not a valid query, or the lookup failed); the
+ * error column explains ERROR rows and is empty otherwise.
+ */
+public class BulkLookup {
+
+    public enum Format { CSV, JSONL }
+
+    public static final int DEFAULT_CONCURRENCY = 64;
+
+    private static final String CSV_HEADER = "line,name,type,status,millis,ttl,answers,error";
+    private static final String[] STATUSES = {"NOERROR", "NODATA", "NXDOMAIN", "SERVFAIL", "ERROR"};
+    private static final int NO_ERROR = 0, NO_DATA = 1, NAME_ERROR = 2, SERVER_FAILURE = 3, ERROR = 4;
+
+    private final Resolver resolver;
+    private final int concurrency;
+    private final Format format;
+    private final LongAdder[] statusCounts = new LongAdder[STATUSES.length];
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private long elapsedNanos;
+
+    /** Creates a bulk lookup.
+     *
+     * @param resolver    Resolver used for the lookups.
+     * @param concurrency Maximum number of lookups in flight at the same time.
+     * @param format      Format of the output rows.
+     */
+    public BulkLookup(Resolver resolver, int concurrency, Format format) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        this.resolver = resolver;
+        this.concurrency = concurrency;
+        this.format = format;
+        for (int i = 0; i < statusCounts.length; i++)
+            statusCounts[i] = new LongAdder();
+    }
+
+    /** Resolves every name of the input and writes a row for each, then waits for all lookups to
+     * complete and flushes the output. Rows are written by the threads completing the lookups;
+     * writes to the output are serialized, and it should be buffered.
+     *
+     * @param input  Names to be resolved, one per line.
+     * @param output Where the rows are written.
+     * @throws IOException if the input could not be read or the output could not be written.
+     */
+    public void run(BufferedReader input, Writer output) throws IOException {
+        long start = System.nanoTime();
+        Semaphore inFlight = new Semaphore(concurrency);
+        AtomicReference<IOException> writeError = new AtomicReference<>();
+        if (format == Format.CSV)
+            output.write(CSV_HEADER + "\n");
+
+        try {
+            int lineNumber = 0;
+            for (String line; (line = input.readLine()) != null; ) {
+                lineNumber++;
+                line = line.split("#", 2)[0].trim();
+                if (line.isEmpty())
+                    continue;
+                if (writeError.get() != null)
+                    break;
+
+                String[] fields = line.split("\\s+");
+                DNSNode node;
+                try {
+                    if (fields.length > 2)
+                        throw new IllegalArgumentException("Expected a host name and an optional type");
+                    RecordType type = fields.length == 2 ? parseType(fields[1]) : RecordType.A;
+                    node = new DNSNode(fields[0], type);
+                } catch (IllegalArgumentException e) {
+                    writeRow(output, lineNumber, fields[0], fields.length == 2 ? fields[1] : "A", ERROR, -1, null, e.getMessage());
+                    continue;
+                }
+
+                inFlight.acquireUninterruptibly();
+                int row = lineNumber;
+                long lookupStart = System.nanoTime();
+                CompletableFuture<LookupResult> lookup;
+                try {
+                    lookup = resolver.lookupAsync(node);
+                } catch (RuntimeException e) {
+                    lookup = CompletableFuture.failedFuture(e);
+                }
+                lookup.whenComplete((result, error) -> {
+                    try {
+                        long nanos = System.nanoTime() - lookupStart;
+                        latencies.record(nanos);
+                        if (error != null) {
+                            Throwable cause = error instanceof CompletionException && error.getCause() != null
+                                    ? error.getCause() : error;
+                            writeRow(output, row, node.getHostName(), node.getType().name(), ERROR, nanos, null,
+                                    "Lookup failed: " + cause);
+                        } else {
+                            writeRow(output, row, node.getHostName(), node.getType().name(), statusOf(result), nanos,
+                                    result.getRecords(), null);
+                        }
+                    } catch (IOException e) {
+                        writeError.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } finally {
+            inFlight.acquireUninterruptibly(concurrency);
+            elapsedNanos = System.nanoTime() - start;
+        }
+        if (writeError.get() != null)
+            throw writeError.get();
+        synchronized (output) {
+            output.flush();
+        }
+    }
+
+    /** Prints the number of names resolved, the count of each status, the throughput and the
+     * distribution of lookup times of the last run.
+     *
+     * @param out Stream where the summary is printed.
+     */
+    public void printSummary(PrintStream out) {
+        long total = 0;
+        for (LongAdder count : statusCounts)
+            total += count.sum();
+        double seconds = elapsedNanos / 1e9;
+        out.printf("Names:      %d in %.1f s (%.0f names/s, %d in flight)%n", total, seconds,
+                seconds > 0 ? total / seconds : 0.0, concurrency);
+        StringBuilder statuses = new StringBuilder();
+        for (int i = 0; i < STATUSES.length; i++)
+            statuses.append(i == 0 ? "" : ", ").append(STATUSES[i]).append(' ').append(statusCounts[i].sum());
+        out.println("Statuses:   " + statuses);
+        if (latencies.count() > 0)
+            out.printf("Latency ms: mean %.3f, p50 %.3f, p90 %.3f, p99 %.3f, max %.3f%n",
+                    latencies.mean() / 1e6, latencies.percentile(50) / 1e6, latencies.percentile(90) / 1e6,
+                    latencies.percentile(99) / 1e6, latencies.max() / 1e6);
+    }
+
+    /** Returns the number of rows written with a status in the last run.
+     *
+     * @param status One of NOERROR, NODATA, NXDOMAIN, SERVFAIL or ERROR.
+     */
+    public long getStatusCount(String status) {
+        for (int i = 0; i < STATUSES.length; i++)
+            if (STATUSES[i].equals(status))
+                return statusCounts[i].sum();
+        throw new IllegalArgumentException("Unknown status: " + status);
+    }
+
+    private static RecordType parseType(String type) {
+        RecordType recordType;
+        try {
+            recordType = RecordType.valueOf(type.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            recordType = RecordType.OTHER;
+        }
+        if (recordType == RecordType.OTHER)
+            throw new IllegalArgumentException("Invalid query type: " + type);
+        return recordType;
+    }
+
+    /** Returns the status of a completed lookup. */
+    private static int statusOf(LookupResult result) {
+        if (result.isFailure())
+            return SERVER_FAILURE;
+        if (result.isNameError())
+            return NAME_ERROR;
+        return result.isNoData() ? NO_DATA : NO_ERROR;
+    }
+
+    private void writeRow(Writer output, int line, String name, String type, int status, long nanos,
+                          Set<ResourceRecord> results, String error) throws IOException {
+        statusCounts[status].increment();
+        StringBuilder row = new StringBuilder(128);
+        String millis = nanos < 0 ? "" : String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+        long ttl = -1;
+        if (results != null)
+            for (ResourceRecord record : results)
+                ttl = ttl < 0 ? record.getTTL() : Math.min(ttl, record.getTTL());
+
+        if (format == Format.CSV) {
+            StringBuilder answers = new StringBuilder();
+            if (results != null)
+                for (ResourceRecord record : results)
+                    answers.append(answers.length() == 0 ? "" : " ").append(record.getTextResult());
+            row.append(line).append(',');
+            appendCsv(row, name).append(',');
+            appendCsv(row, type).append(',').append(STATUSES[status]).append(',').append(millis).append(',');
+            if (ttl >= 0)
+                row.append(ttl);
+            row.append(',');
+            appendCsv(row, answers.toString()).append(',');
+            appendCsv(row, error == null ? "" : error);
+        } else {
+            row.append("{\"line\":").append(line).append(",\"name\":");
+            appendJson(row, name).append(",\"type\":");
+            appendJson(row, type).append(",\"status\":\"").append(STATUSES[status]).append("\",\"millis\":").append(millis.isEmpty() ? "null" : millis);
+            row.append(",\"ttl\":").append(ttl >= 0 ? Long.toString(ttl) : "null").append(",\"answers\":[");
+            if (results != null) {
+                boolean first = true;
+                for (ResourceRecord record : results) {
+                    row.append(first ? "" : ",").append("{\"ttl\":").append(record.getTTL()).append(",\"data\":");
+                    appendJson(row, record.getTextResult()).append('}');
+                    first = false;
+                }
+            }
+            row.append("],\"error\":");
+            if (error == null)
+                row.append("null");
+            else
+                appendJson(row, error);
+            row.append('}');
+        }
+        row.append('\n');
+        synchronized (output) {
+            output.write(row.toString());
+        }
+    }
+
+    private static StringBuilder appendCsv(StringBuilder row, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+            return row.append(value);
+        return row.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+    private static StringBuilder appendJson(StringBuilder row, String value) {
+        row.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                row.append('\\').append(c);
+            else if (c < 0x20)
+                row.append(String.format("\\u%04x", (int) c));
+            else
+                row.append(c);
+        }
+        return row.append('"');
+    }
+
+    /** Histogram of lookup times with a relative precision of about 3%: one range per power of
+     * two nanoseconds, each split into 32 buckets. Recording is thread-safe and does not allocate,
+     * so the times of millions of lookups take a fixed amount of memory.
+     */
+    private static final class LatencyHistogram {
+        private static final int SUB_BUCKETS = 32;
+        private static final int SUB_BUCKET_BITS = 5;
+
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            nanos = Math.max(1, nanos);
+            counts.incrementAndGet(indexOf(nanos));
+            total.increment();
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        long count() {
+            return total.sum();
+        }
+
+        double mean() {
+            long count = total.sum();
+            return count == 0 ? 0 : (double) sum.sum() / count;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /** Returns the upper bound of the bucket holding the given percentile of the values. */
+        long percentile(double percent) {
+            long count = total.sum();
+            long rank = Math.max(1, (long) Math.ceil(count * percent / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        private static int indexOf(long nanos) {
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            if (exponent < SUB_BUCKET_BITS)
+                return (int) nanos;
+            int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = index % SUB_BUCKETS;
+            return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+}
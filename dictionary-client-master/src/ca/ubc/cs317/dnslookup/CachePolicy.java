@@ -0,0 +1,292 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Size-based eviction policy for the DNS cache, following the W-TinyLFU design. New entries
+ * enter a small LRU window (1% of the capacity). Entries leaving the window are only admitted
+ * into the main area if they have been used more often than the entry that would be evicted to
+ * make room for them, as estimated by a frequency sketch. The main area is a segmented LRU: an
+ * entry used again while in the probation segment is promoted to the protected segment (80% of
+ * the main area), so names that are used repeatedly survive a burst of names used only once.
+ *
+ * The policy only tracks keys and their weights; the cache itself holds the values. Reads are
+ * recorded in a lossy buffer and applied whenever the policy lock is free, so cache hits never
+ * wait on the lock. Writes and removals are applied immediately. Methods that make room for new
+ * entries return the keys that must be removed from the cache. The cache applies each change
+ * while it holds the entry of the key, so the keys tracked here match the entries it holds.
+ *
+ * @param <K> Type of the cache keys.
+ */
+final class CachePolicy<K> {
+
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private final Map<K, Node<K>> nodes = new HashMap<>();
+    private final FrequencySketch sketch;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Queue<K> readBuffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger readBufferSize = new AtomicInteger();
+
+    private final Node<K> window = Node.sentinel();
+    private final Node<K> probation = Node.sentinel();
+    private final Node<K> protectedSegment = Node.sentinel();
+    private long windowWeight;
+    private long protectedWeight;
+    private long totalWeight;
+
+    /** Creates a new policy.
+     *
+     * @param maximumWeight   Maximum total weight of all entries.
+     * @param expectedEntries Expected maximum number of entries, used to size the frequency sketch.
+     */
+    CachePolicy(long maximumWeight, long expectedEntries) {
+        this.maximumWeight = maximumWeight;
+        this.windowMaximum = Math.max(1, maximumWeight / 100);
+        this.protectedMaximum = (maximumWeight - windowMaximum) * 8 / 10;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    long getTotalWeight() {
+        lock.lock();
+        try {
+            return totalWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the policy tracks an entry, false if it was evicted or removed.
+     *
+     * @param key Key of the entry.
+     */
+    boolean contains(K key) {
+        lock.lock();
+        try {
+            return nodes.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records a read of an existing entry. The read may be dropped if many reads are waiting to
+     * be applied.
+     *
+     * @param key Key that was read.
+     */
+    void recordRead(K key) {
+        if (readBufferSize.get() < READ_BUFFER_SIZE) {
+            readBufferSize.incrementAndGet();
+            readBuffer.add(key);
+        }
+        if (lock.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Records that an entry was added or that its weight changed, and evicts entries if the
+     * total weight is now over the maximum.
+     *
+     * @param key    Key that was written.
+     * @param weight New weight of the entry.
+     * @return Keys evicted by the policy, which must be removed from the cache.
+     */
+    List<K> recordWrite(K key, long weight) {
+        lock.lock();
+        try {
+            drainReads();
+            sketch.increment(key.hashCode());
+            Node<K> node = nodes.get(key);
+            if (node == null) {
+                node = new Node<>(key, weight);
+                nodes.put(key, node);
+                node.appendTo(window, Node.WINDOW);
+                windowWeight += weight;
+                totalWeight += weight;
+            } else {
+                adjustWeight(node, weight - node.weight);
+                onAccess(node);
+            }
+            return evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that the weight of an entry changed without the entry being used, for instance
+     * because some of its records expired.
+     *
+     * @param key    Key of the entry.
+     * @param weight New weight of the entry.
+     */
+    void updateWeight(K key, long weight) {
+        lock.lock();
+        try {
+            Node<K> node = nodes.get(key);
+            if (node != null)
+                adjustWeight(node, weight - node.weight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that an entry was removed from the cache for a reason other than eviction.
+     *
+     * @param key Key that was removed.
+     */
+    void recordRemoval(K key) {
+        lock.lock();
+        try {
+            Node<K> node = nodes.remove(key);
+            if (node != null)
+                unlink(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drainReads() {
+        K key;
+        while ((key = readBuffer.poll()) != null) {
+            readBufferSize.decrementAndGet();
+            sketch.increment(key.hashCode());
+            Node<K> node = nodes.get(key);
+            if (node != null)
+                onAccess(node);
+        }
+    }
+
+    private void onAccess(Node<K> node) {
+        switch (node.segment) {
+            case Node.WINDOW:
+                node.moveTo(window);
+                break;
+            case Node.PROBATION:
+                node.unlink();
+                node.appendTo(protectedSegment, Node.PROTECTED);
+                protectedWeight += node.weight;
+                while (protectedWeight > protectedMaximum && protectedSegment.next != protectedSegment) {
+                    Node<K> demoted = protectedSegment.next;
+                    demoted.unlink();
+                    demoted.appendTo(probation, Node.PROBATION);
+                    protectedWeight -= demoted.weight;
+                }
+                break;
+            case Node.PROTECTED:
+                node.moveTo(protectedSegment);
+                break;
+        }
+    }
+
+    private void adjustWeight(Node<K> node, long delta) {
+        node.weight += delta;
+        totalWeight += delta;
+        if (node.segment == Node.WINDOW)
+            windowWeight += delta;
+        else if (node.segment == Node.PROTECTED)
+            protectedWeight += delta;
+    }
+
+    private void unlink(Node<K> node) {
+        adjustWeight(node, -node.weight);
+        node.unlink();
+    }
+
+    /** Moves entries out of the window and evicts entries until the total weight is within the
+     * maximum. An entry leaving the window while the cache is full competes with the least
+     * recently used entry of the main area, and the one with the lowest frequency is evicted.
+     */
+    private List<K> evict() {
+        List<K> evicted = Collections.emptyList();
+        while (windowWeight > windowMaximum || totalWeight > maximumWeight) {
+            Node<K> candidate = window.next;
+            if (candidate == window)
+                candidate = null;
+            Node<K> victim = probation.next != probation ? probation.next
+                    : protectedSegment.next != protectedSegment ? protectedSegment.next : null;
+
+            Node<K> removed = null;
+            if (candidate != null && (totalWeight <= maximumWeight || victim == null)) {
+                if (totalWeight > maximumWeight) {
+                    removed = candidate;
+                } else {
+                    candidate.unlink();
+                    windowWeight -= candidate.weight;
+                    candidate.appendTo(probation, Node.PROBATION);
+                    continue;
+                }
+            } else if (candidate == null) {
+                removed = victim;
+            } else if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                removed = victim;
+                candidate.unlink();
+                windowWeight -= candidate.weight;
+                candidate.appendTo(probation, Node.PROBATION);
+            } else {
+                removed = candidate;
+            }
+
+            if (removed == null)
+                break;
+            nodes.remove(removed.key);
+            unlink(removed);
+            if (evicted.isEmpty())
+                evicted = new ArrayList<>();
+            evicted.add(removed.key);
+        }
+        return evicted;
+    }
+
+    /** Entry in one of the three LRU lists. Each list is circular, with a sentinel node whose
+     * next node is the least recently used entry.
+     */
+    private static final class Node<K> {
+        static final int WINDOW = 0;
+        static final int PROBATION = 1;
+        static final int PROTECTED = 2;
+
+        final K key;
+        long weight;
+        int segment;
+        Node<K> prev = this;
+        Node<K> next = this;
+
+        Node(K key, long weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+
+        static <K> Node<K> sentinel() {
+            return new Node<>(null, 0);
+        }
+
+        void appendTo(Node<K> list, int segment) {
+            this.segment = segment;
+            prev = list.prev;
+            next = list;
+            list.prev.next = this;
+            list.prev = this;
+        }
+
+        void moveTo(Node<K> list) {
+            unlink();
+            appendTo(list, segment);
+        }
+
+        void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = this;
+            next = this;
+        }
+    }
+}
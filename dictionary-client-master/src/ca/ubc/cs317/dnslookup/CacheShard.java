@@ -0,0 +1,156 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Part of a DNSCache owned by a single thread: the entries of the cache that thread read
+ * recently, so that reading them again touches no memory written by other threads. Reading the
+ * shared cache costs little on its own, but each hit also updates counters shared by all threads
+ * (the hit count, the read buffer of the cache policy, and the hit count used for refresh-ahead),
+ * and with many threads serving the same popular names those shared writes limit how well reads
+ * scale across cores.
+ *
+ * An entry read from the shard is checked with CachedEntry.isCurrent(), which only reads a flag
+ * written once, when the cache replaces the entry; a replaced or expired entry is read again from
+ * the shared cache (the slow path). Hits on the shard are reported to the shared cache in batches,
+ * so popular records are still refreshed ahead and kept by the cache policy. Once an entry is due
+ * for a refresh, every hit is reported at once, with the hits pending before it, so that a name
+ * read only a few times per TTL still reaches the refresh threshold. Entries read to answer a
+ * query whose hit is counted on another entry (the CNAME records leading to the name answered,
+ * and its records) are read with peekEntry, and their reads are reported in the same batches,
+ * without counting hits. The shard holds a fixed number of entries, and drops the least recently
+ * used one when it is full. It is not thread-safe.
+ */
+final class CacheShard {
+
+    private static final int HIT_REPORT_INTERVAL = 16;
+
+    private final DNSCache cache;
+    private final Map<DNSNode, Slot> slots;
+
+    /** Creates an empty shard of a cache.
+     *
+     * @param cache    Shared cache the entries are read from.
+     * @param capacity Maximum number of entries kept by the shard.
+     */
+    CacheShard(DNSCache cache, int capacity) {
+        this.cache = cache;
+        this.slots = new LinkedHashMap<DNSNode, Slot>(2 * capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<DNSNode, Slot> eldest) {
+                if (size() <= capacity)
+                    return false;
+                reportHits(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /** Returns the entry cached for a node, as DNSCache.getCachedEntry does, from the shard if it
+     * holds the current entry of the node, or otherwise from the shared cache.
+     *
+     * @param node DNS query (host name and record type) to obtain the cached entry.
+     * @return The current entry of the node, or null if nothing is cached for it.
+     */
+    DNSCache.CachedEntry getCachedEntry(DNSNode node) {
+        Slot slot = currentSlot(node);
+        if (slot != null) {
+            slot.hits++;
+            reportIfDue(node, slot);
+            return slot.entry;
+        }
+
+        DNSCache.CachedEntry entry = cache.getCachedEntry(node);
+        if (entry != null)
+            slots.put(node, new Slot(entry));
+        return entry;
+    }
+
+    /** Returns the entry cached for a node, as DNSCache.peekEntry does, from the shard if it holds
+     * the current entry of the node, or otherwise from the shared cache, without counting a hit or
+     * a read. If the entry is used, the caller counts it with recordHit or recordRead.
+     *
+     * @param node DNS query (host name and record type) to obtain the cached entry.
+     * @return The current entry of the node, or null if nothing is cached for it.
+     */
+    DNSCache.CachedEntry peekEntry(DNSNode node) {
+        Slot slot = currentSlot(node);
+        if (slot != null)
+            return slot.entry;
+
+        DNSCache.CachedEntry entry = cache.peekEntry(node);
+        if (entry != null)
+            slots.put(node, new Slot(entry));
+        return entry;
+    }
+
+    /** Counts a hit on an entry returned by peekEntry, as getCachedEntry would have.
+     *
+     * @param node  DNS query (host name and record type) of the entry.
+     * @param entry Entry returned by peekEntry for the node.
+     */
+    void recordHit(DNSNode node, DNSCache.CachedEntry entry) {
+        Slot slot = slots.get(node);
+        if (slot == null || slot.entry != entry) {
+            cache.recordHits(node, entry, 1);
+            return;
+        }
+        slot.hits++;
+        reportIfDue(node, slot);
+    }
+
+    /** Counts a read of an entry returned by peekEntry, used to answer a query whose hit was
+     * counted on another entry (see DNSCache.recordRead).
+     *
+     * @param node  DNS query (host name and record type) of the entry.
+     * @param entry Entry returned by peekEntry for the node.
+     */
+    void recordRead(DNSNode node, DNSCache.CachedEntry entry) {
+        Slot slot = slots.get(node);
+        if (slot == null || slot.entry != entry) {
+            cache.recordRead(node, entry);
+            return;
+        }
+        slot.reads++;
+        reportIfDue(node, slot);
+    }
+
+    /** Returns the slot of a node if it holds the current entry of the node, or null. A slot
+     * whose entry was replaced or expired is reported and removed.
+     */
+    private Slot currentSlot(DNSNode node) {
+        Slot slot = slots.get(node);
+        if (slot == null)
+            return null;
+        if (slot.entry.isCurrent(System.nanoTime()))
+            return slot;
+        reportHits(node, slot);
+        slots.remove(node);
+        return null;
+    }
+
+    private void reportIfDue(DNSNode node, Slot slot) {
+        if (slot.hits + slot.reads >= HIT_REPORT_INTERVAL || slot.entry.isRefreshDue(System.nanoTime()))
+            reportHits(node, slot);
+    }
+
+    private void reportHits(DNSNode node, Slot slot) {
+        if (slot.hits > 0)
+            cache.recordHits(node, slot.entry, slot.hits);
+        if (slot.reads > 0)
+            cache.recordReads(node, slot.entry, slot.reads);
+        slot.hits = 0;
+        slot.reads = 0;
+    }
+
+    /** An entry of the shared cache, with the hits on it, and the reads of it, not reported yet. */
+    private static final class Slot {
+        final DNSCache.CachedEntry entry;
+        int hits;
+        int reads;
+
+        Slot(DNSCache.CachedEntry entry) {
+            this.entry = entry;
+        }
+    }
+}
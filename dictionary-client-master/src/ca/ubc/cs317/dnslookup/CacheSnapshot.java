@@ -0,0 +1,273 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/** Binary snapshot of the contents of a DNSCache, used to start with a warm cache after a
+ * restart. Expiration times are stored as absolute wall-clock times (milliseconds since the
+ * epoch), since the monotonic clock used by the cache does not survive a restart; records that
+ * expired while the snapshot was on disk are dropped when it is loaded.
+ *
+ * The file starts with a header (magic number, version, creation time) followed by one entry
+ * per cached node, and ends with the number of entries and a CRC-32 of everything before it.
+ * Names are in uncompressed wire format and all numbers are big-endian. An entry is:
+ *
+ * <pre>
+ *   kind (byte: 0 = records, 1 = NXDOMAIN, 2 = NODATA, 3 = NS records of a delegation),
+ *   name, type (short),
+ *   for records and delegations: count (short), then for each record
+ *       expiration (long), value kind (byte: 0 = address, 1 = name, 2 = text), value
+ *   for negative answers: expiration (long), SOA flag (byte: 0 = none, 1 = SOA follows),
+ *       then for the SOA record: owner name, text
+ * </pre>
+ *
+ * Addresses are stored as a length byte followed by 4 or 16 bytes, and text as a 4-byte length
+ * followed by UTF-8 bytes. Version 1 snapshots, whose negative answers have no SOA flag, and
+ * version 2 snapshots, which do not tell delegations from other NS records, are still read.
+ * Snapshots are written to a temporary file that then replaces the snapshot atomically, so a
+ * crash while writing never leaves a partial snapshot, and are read through a memory mapping of
+ * the file.
+ */
+final class CacheSnapshot {
+
+    private static final int MAGIC = 0x444E5343; // "DNSC"
+    private static final short VERSION = 3;
+    private static final short VERSION_WITHOUT_DELEGATIONS = 2;
+    private static final short VERSION_WITHOUT_SOA = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int TRAILER_BYTES = 12;
+
+    private static final byte ENTRY_RECORDS = 0;
+    private static final byte ENTRY_NAME_ERROR = 1;
+    private static final byte ENTRY_NO_DATA = 2;
+    private static final byte ENTRY_DELEGATION = 3;
+
+    private static final byte VALUE_ADDRESS = 0;
+    private static final byte VALUE_NAME = 1;
+    private static final byte VALUE_TEXT = 2;
+
+    private CacheSnapshot() {
+    }
+
+    /** Writes the unexpired entries of a cache to a snapshot file, replacing any existing file.
+     *
+     * @param cache Cache to be saved.
+     * @param file  Path of the snapshot file.
+     * @return The number of records written, not counting negative answers.
+     * @throws IOException if the file could not be written.
+     */
+    static int write(DNSCache cache, Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        long nowMillis = System.currentTimeMillis();
+        long nowNanos = System.nanoTime();
+        int[] counts = new int[2]; // entries, records
+
+        try (OutputStream fileOutput = Files.newOutputStream(temporary)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOutput, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            out.writeLong(nowMillis);
+
+            cache.forEachEntry(new DNSCache.EntryVisitor() {
+                @Override
+                public void visitRecords(DNSNode node, Set<ResourceRecord> records, boolean delegation) throws IOException {
+                    if (records.size() > 0xFFFF)
+                        return;
+                    writeNode(out, delegation ? ENTRY_DELEGATION : ENTRY_RECORDS, node);
+                    out.writeShort(records.size());
+                    for (ResourceRecord record : records) {
+                        out.writeLong(toEpochMillis(record.getExpirationTime(), nowMillis, nowNanos));
+                        if (record.getInetResult() != null) {
+                            byte[] address = record.getInetResult().getAddress();
+                            out.writeByte(VALUE_ADDRESS);
+                            out.writeByte(address.length);
+                            out.write(address);
+                        } else if (record.getNameResult() != null) {
+                            out.writeByte(VALUE_NAME);
+                            record.getNameResult().writeTo(out);
+                        } else {
+                            out.writeByte(VALUE_TEXT);
+                            writeText(out, record.getTextResult());
+                        }
+                    }
+                    counts[0]++;
+                    counts[1] += records.size();
+                }
+
+                @Override
+                public void visitNegative(DNSNode node, long expirationTime, boolean nameError, ResourceRecord soa) throws IOException {
+                    writeNode(out, nameError ? ENTRY_NAME_ERROR : ENTRY_NO_DATA, node);
+                    out.writeLong(toEpochMillis(expirationTime, nowMillis, nowNanos));
+                    if (soa == null) {
+                        out.writeByte(0);
+                    } else {
+                        out.writeByte(1);
+                        soa.getNode().getName().writeTo(out);
+                        writeText(out, soa.getTextResult());
+                    }
+                    counts[0]++;
+                }
+            });
+
+            out.writeInt(counts[0]);
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return counts[1];
+    }
+
+    /** Adds the entries of a snapshot file to a cache. Records and negative answers that have
+     * expired since the snapshot was written are skipped.
+     *
+     * @param cache Cache where the entries are added.
+     * @param file  Path of the snapshot file.
+     * @return The number of records added, not counting negative answers.
+     * @throws IOException if the file could not be read, or is not a valid snapshot.
+     */
+    static int read(DNSCache cache, Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES + TRAILER_BYTES || channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Invalid snapshot size: " + channel.size());
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int end = buffer.limit() - TRAILER_BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().limit(end + 4));
+        if (crc.getValue() != buffer.getLong(end + 4))
+            throw new IOException("Snapshot checksum mismatch");
+        int magic = buffer.getInt();
+        short version = buffer.getShort();
+        if (magic != MAGIC || version < VERSION_WITHOUT_SOA || version > VERSION)
+            throw new IOException("Not a cache snapshot, or unsupported version");
+        buffer.getShort();
+        buffer.getLong(); // creation time, informational only
+
+        long nowMillis = System.currentTimeMillis();
+        long nowNanos = System.nanoTime();
+        byte[] nameBuffer = new byte[255];
+        int entries = 0;
+        int loaded = 0;
+        try {
+            while (buffer.position() < end) {
+                byte kind = buffer.get();
+                DNSNode node = new DNSNode(readName(buffer, nameBuffer), RecordType.getByCode(buffer.getShort() & 0xFFFF));
+                entries++;
+                if (kind == ENTRY_NAME_ERROR || kind == ENTRY_NO_DATA) {
+                    long remaining = buffer.getLong() - nowMillis;
+                    ResourceRecord soa = null;
+                    if (version != VERSION_WITHOUT_SOA && buffer.get() != 0) {
+                        DNSNode soaNode = new DNSNode(readName(buffer, nameBuffer), RecordType.SOA);
+                        soa = new ResourceRecord(soaNode, nowNanos, readText(buffer), null, null);
+                    }
+                    if (remaining > 0)
+                        cache.addNegativeResult(node, TimeUnit.MILLISECONDS.toSeconds(remaining + 999), kind == ENTRY_NAME_ERROR, soa);
+                    continue;
+                }
+
+                if (kind != ENTRY_RECORDS && (kind != ENTRY_DELEGATION || version <= VERSION_WITHOUT_DELEGATIONS))
+                    throw new IOException("Malformed snapshot: unknown entry kind " + kind);
+                int count = buffer.getShort() & 0xFFFF;
+                for (int i = 0; i < count; i++) {
+                    long remaining = buffer.getLong() - nowMillis;
+                    ResourceRecord record = readRecord(buffer, nameBuffer, node, nowNanos + TimeUnit.MILLISECONDS.toNanos(remaining));
+                    if (remaining > 0) {
+                        if (kind == ENTRY_DELEGATION)
+                            cache.addDelegation(record);
+                        else
+                            cache.addResult(record);
+                        loaded++;
+                    }
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed snapshot", e);
+        }
+        if (buffer.position() != end || buffer.getInt(end) != entries)
+            throw new IOException("Malformed snapshot: entry count mismatch");
+        return loaded;
+    }
+
+    private static void writeNode(DataOutputStream out, byte kind, DNSNode node) throws IOException {
+        out.writeByte(kind);
+        node.getName().writeTo(out);
+        out.writeShort(node.getType().getCode());
+    }
+
+    private static ResourceRecord readRecord(ByteBuffer buffer, byte[] nameBuffer, DNSNode node, long expirationTime)
+            throws IOException {
+        byte valueKind = buffer.get();
+        switch (valueKind) {
+            case VALUE_ADDRESS:
+                byte[] address = new byte[buffer.get() & 0xFF];
+                buffer.get(address);
+                InetAddress inet = InetAddress.getByAddress(address);
+                return new ResourceRecord(node, expirationTime, inet.getHostAddress(), inet, null);
+            case VALUE_NAME:
+                DomainName name = readName(buffer, nameBuffer);
+                return new ResourceRecord(node, expirationTime, name.toString(), null, name);
+            case VALUE_TEXT:
+                return new ResourceRecord(node, expirationTime, readText(buffer), null, null);
+            default:
+                throw new IOException("Malformed snapshot: unknown value kind " + valueKind);
+        }
+    }
+
+    private static void writeText(DataOutputStream out, String value) throws IOException {
+        byte[] text = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(text.length);
+        out.write(text);
+    }
+
+    private static String readText(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            throw new IOException("Malformed snapshot: invalid text length");
+        byte[] text = new byte[length];
+        buffer.get(text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    /** Reads a name in uncompressed wire format, checking the length of its labels. */
+    private static DomainName readName(ByteBuffer buffer, byte[] nameBuffer) throws IOException {
+        int length = 0;
+        while (true) {
+            int labelLength = buffer.get() & 0xFF;
+            if (labelLength > 63 || length + labelLength + 1 > nameBuffer.length)
+                throw new IOException("Malformed snapshot: invalid name");
+            nameBuffer[length++] = (byte) labelLength;
+            if (labelLength == 0)
+                return DomainName.fromWire(nameBuffer, length);
+            buffer.get(nameBuffer, length, labelLength);
+            length += labelLength;
+        }
+    }
+
+    private static long toEpochMillis(long expirationTime, long nowMillis, long nowNanos) {
+        return nowMillis + TimeUnit.NANOSECONDS.toMillis(expirationTime - nowNanos);
+    }
+}
@@ -1,22 +1,191 @@
 package ca.ubc.cs317.dnslookup;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
- * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
+ * of the TTL (time-to-live) returned by the server. Expired results are removed in the
+ * background by a timing wheel, and are never returned to the user.
+ *
+ * The cache is safe to use from multiple threads. Nodes, whose host names are canonical
+ * DomainNames, are the keys of a concurrent hash map, so reads never take a lock. Each set of records is
+ * immutable: updates build a new set and swap it in atomically, so readers always observe
+ * either the old or the new set, never a partially updated one.
+ *
+ * Negative answers (RFC 2308) are cached as a set with no records, so a lookup of a name or type
+ * known not to exist can be answered without querying a server again.
+ *
+ * A cache may be bounded by the number of records or by their estimated size in bytes. When the
+ * bound is exceeded, entries are evicted following a frequency-aware policy (see CachePolicy), so
+ * frequently used names stay cached even when many names are only used once.
+ *
+ * The cache counts the hits of each set of records. If a refresh handler is set, a set that was
+ * read often and is in the last tenth of its TTL is handed to the handler once, so it can be
+ * looked up again in the background (refresh-ahead) and popular names never expire from the
+ * cache.
+ *
+ * Optionally, records that expire are kept aside for a serve-stale window (RFC 8767). They are
+ * never returned by getCachedResults, but getStaleResults can still return them, with a short
+ * TTL, when the servers cannot be reached to refresh them.
+ *
+ * The contents of the cache can be saved to a snapshot file, periodically and on shutdown, and
+ * loaded again on startup (see CacheSnapshot), so a restarted client does not start cold.
  */
 public class DNSCache {
 
-    private static DNSCache instance = new DNSCache();
+    /** Unit in which the maximum size of a bounded cache is expressed. */
+    public enum SizeUnit { RECORDS, BYTES }
 
+    /** How the records of each node are stored. OBJECTS keeps the ResourceRecord objects that
+     * were added. COMPACT keeps each set of records in primitive arrays (addresses as numbers,
+     * expiration times as longs, names as references to the interned DomainName), and creates
+     * ResourceRecord objects only while the set returned by getCachedResults is iterated. COMPACT
+     * uses several times less memory for address records, at the cost of allocating the records
+     * again on every read.
+     */
+    public enum Storage { OBJECTS, COMPACT }
+
+    /** System property that sets the maximum number of records in the shared cache instance. */
+    public static final String MAX_RECORDS_PROPERTY = "dnslookup.cache.maxRecords";
+    /** System property that sets the maximum estimated size, in bytes, of the shared cache instance. */
+    public static final String MAX_BYTES_PROPERTY = "dnslookup.cache.maxBytes";
+    /** System property that selects the storage of the shared cache instance ("objects" or "compact"). */
+    public static final String STORAGE_PROPERTY = "dnslookup.cache.storage";
+    /** System property that sets the serve-stale window, in seconds, of the shared cache instance. */
+    public static final String SERVE_STALE_PROPERTY = "dnslookup.cache.serveStaleSeconds";
+    /** System property that sets the snapshot file of the shared cache instance. The snapshot is
+     * loaded when the instance is created, and written periodically and when the JVM exits. */
+    public static final String SNAPSHOT_PROPERTY = "dnslookup.cache.snapshot";
+    /** System property that sets how often, in seconds, the snapshot of the shared cache instance
+     * is written (300 by default). */
+    public static final String SNAPSHOT_INTERVAL_PROPERTY = "dnslookup.cache.snapshotSeconds";
+
+    /** TTL, in seconds, of the stale records returned by getStaleResults (RFC 8767 recommends 30). */
+    public static final int STALE_TTL_SECONDS = 30;
+
+    private static final int RECORD_OVERHEAD_BYTES = 160;
+    private static final int INET_ADDRESS_BYTES = 56;
+    private static final int PACKED_SET_OVERHEAD_BYTES = 96;
+    private static final int REFRESH_AHEAD_DIVISOR = 10;
+
+    private static final ScheduledExecutorService expiryScheduler =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "dns-cache-expiry");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private static final ScheduledExecutorService snapshotScheduler =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "dns-cache-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private static DNSCache instance = createInstance();
+
+
+    private final ConcurrentMap<DNSNode, RecordSet> cachedResults = new ConcurrentHashMap<>();
+    private final ExpiryWheel<DNSNode> expiryWheel = new ExpiryWheel<>(1, TimeUnit.SECONDS, this::removeExpired);
+    private final ConcurrentMap<DNSNode, StaleSet> staleResults = new ConcurrentHashMap<>();
+    private final ExpiryWheel<DNSNode> staleWheel = new ExpiryWheel<>(1, TimeUnit.SECONDS, this::removeStale);
+    private final ScheduledFuture<?> expiryTask;
+    private ScheduledFuture<?> snapshotTask;
+    private final CachePolicy<DNSNode> policy;
+    private final SizeUnit sizeUnit;
+    private final Storage storage;
+    private volatile RefreshHandler refreshHandler;
+    private volatile long serveStaleNanos;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder expirationCount = new LongAdder();
+    private final LongAdder staleHitCount = new LongAdder();
+
+    /** Creates an unbounded cache. Records are only removed when they expire.
+     */
+    public DNSCache() {
+        this(0, SizeUnit.RECORDS);
+    }
+
+    /** Creates a bounded cache.
+     *
+     * @param maximumSize Maximum number of records, or maximum estimated size in bytes, depending
+     *                    on the unit. A value of zero or less creates an unbounded cache.
+     * @param unit        Unit of the maximum size.
+     */
+    public DNSCache(long maximumSize, SizeUnit unit) {
+        this(maximumSize, unit, Storage.OBJECTS);
+    }
+
+    /** Creates a cache with a given storage for its records.
+     *
+     * @param maximumSize Maximum number of records, or maximum estimated size in bytes, depending
+     *                    on the unit. A value of zero or less creates an unbounded cache.
+     * @param unit        Unit of the maximum size.
+     * @param storage     How the records of each node are stored.
+     */
+    public DNSCache(long maximumSize, SizeUnit unit, Storage storage) {
+        this.sizeUnit = unit;
+        this.storage = storage;
+        if (maximumSize <= 0)
+            this.policy = null;
+        else
+            this.policy = new CachePolicy<>(maximumSize,
+                    unit == SizeUnit.RECORDS ? maximumSize : maximumSize / RECORD_OVERHEAD_BYTES);
+        expiryTask = expiryScheduler.scheduleWithFixedDelay(() -> {
+            expiryWheel.advance();
+            staleWheel.advance();
+        }, 1, 1, TimeUnit.SECONDS);
+    }
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    /** Creates the shared cache instance, bounded according to the MAX_RECORDS_PROPERTY or
+     * MAX_BYTES_PROPERTY system property, if one of them is set, with the storage given by the
+     * STORAGE_PROPERTY system property and the serve-stale window given by SERVE_STALE_PROPERTY.
+     */
+    private static DNSCache createInstance() {
+        Storage storage = "compact".equalsIgnoreCase(System.getProperty(STORAGE_PROPERTY)) ? Storage.COMPACT : Storage.OBJECTS;
+        Long maxBytes = Long.getLong(MAX_BYTES_PROPERTY);
+        DNSCache cache = maxBytes != null ? new DNSCache(maxBytes, SizeUnit.BYTES, storage)
+                : new DNSCache(Long.getLong(MAX_RECORDS_PROPERTY, 0), SizeUnit.RECORDS, storage);
+        cache.setServeStaleWindow(Long.getLong(SERVE_STALE_PROPERTY, 0), TimeUnit.SECONDS);
 
-    /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
-     * method returns the single DNS cache instance.
+        String snapshot = System.getProperty(SNAPSHOT_PROPERTY);
+        if (snapshot != null) {
+            Path file = Paths.get(snapshot);
+            if (Files.exists(file)) {
+                try {
+                    cache.loadSnapshot(file);
+                } catch (IOException e) {
+                    System.err.println("Could not load cache snapshot " + file + ": " + e.getMessage());
+                }
+            }
+            cache.scheduleSnapshots(file, Long.getLong(SNAPSHOT_INTERVAL_PROPERTY, 300), TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> cache.trySaveSnapshot(file), "dns-cache-snapshot"));
+        }
+        return cache;
+    }
+
+    /** Singleton retrieval method. This method returns the shared DNS cache instance used by
+     * the command-line client.
      *
      * @return Instance of a DNS cache.
      */
@@ -24,56 +193,548 @@ public class DNSCache {
         return instance;
     }
 
+    /** Stops the background expiration of records. The cache may still be used afterwards, but
+     * expired records are then only removed when they are read.
+     */
+    public void close() {
+        expiryTask.cancel(false);
+        synchronized (this) {
+            if (snapshotTask != null)
+                snapshotTask.cancel(false);
+        }
+    }
+
+    /** Writes the unexpired records and negative answers of this cache to a snapshot file,
+     * replacing the file atomically.
+     *
+     * @param file Path of the snapshot file.
+     * @return The number of records written.
+     * @throws IOException if the file could not be written.
+     */
+    public synchronized int saveSnapshot(Path file) throws IOException {
+        return CacheSnapshot.write(this, file);
+    }
+
+    /** Adds the records and negative answers of a snapshot file to this cache, skipping those
+     * that expired since the snapshot was written.
+     *
+     * @param file Path of the snapshot file.
+     * @return The number of records added.
+     * @throws IOException if the file could not be read or is not a valid snapshot.
+     */
+    public int loadSnapshot(Path file) throws IOException {
+        return CacheSnapshot.read(this, file);
+    }
+
+    /** Writes a snapshot of this cache periodically, in a background thread, until the cache is
+     * closed. Replaces snapshots scheduled before. Errors are reported on the standard error.
+     *
+     * @param file   Path of the snapshot file.
+     * @param period Time between two snapshots.
+     * @param unit   Unit of the period.
+     */
+    public synchronized void scheduleSnapshots(Path file, long period, TimeUnit unit) {
+        if (snapshotTask != null)
+            snapshotTask.cancel(false);
+        snapshotTask = snapshotScheduler.scheduleWithFixedDelay(() -> trySaveSnapshot(file), period, period, unit);
+    }
+
+    private void trySaveSnapshot(Path file) {
+        try {
+            saveSnapshot(file);
+        } catch (IOException e) {
+            System.err.println("Could not save cache snapshot " + file + ": " + e.getMessage());
+        }
+    }
+
     /** Returns a set of resource records already cached for a particular query. If no results
-     * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
+     * are cached for the specified query, returns an empty set. Expired results are never
+     * returned: they are normally removed by the timing wheel, and removed here only if the wheel
+     * has not reached them yet. This method does not perform the query itself, it only returns
+     * previously cached results.
      *
      * @param node DNS query (host name and record type) to obtain cached results.
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
-        if (results == null)
+        RecordSet results = getUnexpired(node);
+        if (results == null) {
+            missCount.increment();
+            return Collections.emptySet();
+        }
+        recordHit(node, results);
+        return results.records();
+    }
+
+    /** Returns the records or negative answer cached for a node, as the entry holding them. The
+     * entry is immutable and replaced by a new one whenever the records of the node change (a
+     * record is added, expires or is evicted), so the caller may attach data derived from the
+     * records to the entry, and the data is dropped with it. A hit is counted as with
+     * getCachedResults; a miss is not, since the caller is expected to look the node up next.
+     *
+     * @param node DNS query (host name and record type) to obtain the cached entry.
+     * @return The current entry of the node, or null if nothing is cached for it.
+     */
+    CachedEntry getCachedEntry(DNSNode node) {
+        RecordSet results = getUnexpired(node);
+        if (results != null)
+            recordHit(node, results);
+        return results;
+    }
+
+    /** Counts hits on an entry that the caller read from the cache earlier (with getCachedEntry
+     * or peekEntry) and kept, as if the entry had been read again that many times. The hits are
+     * applied at once: the cache policy records a single read.
+     *
+     * @param node  DNS query (host name and record type) of the entry.
+     * @param entry Entry returned by getCachedEntry or peekEntry for the node.
+     * @param hits  Number of hits to be counted.
+     */
+    void recordHits(DNSNode node, CachedEntry entry, int hits) {
+        RecordSet results = (RecordSet) entry;
+        hitCount.add(hits);
+        if (policy != null)
+            policy.recordRead(node);
+        RefreshHandler handler = refreshHandler;
+        if (handler != null && !results.negative && !results.superseded)
+            handler.recordHit(node, results, hits);
+    }
+
+    /** Returns the records or negative answer cached for a node, as getCachedEntry does, without
+     * counting a hit or a miss, telling the cache policy of the read, or starting a refresh. A
+     * lookup reads the cache with this method, and counts a single hit (with recordHits) or miss
+     * (with recordMiss) when it starts, however many entries it reads.
+     *
+     * @param node DNS query (host name and record type) to obtain the cached entry.
+     * @return The current entry of the node, or null if nothing is cached for it.
+     */
+    CachedEntry peekEntry(DNSNode node) {
+        return getUnexpired(node);
+    }
+
+    /** Counts a lookup that found nothing in the cache. */
+    void recordMiss() {
+        missCount.increment();
+    }
+
+    /** Tells the cache policy and refresh-ahead that an entry read with peekEntry was used to
+     * answer a lookup, without counting a hit, since the lookup was counted when it started. Used
+     * for the CNAME records of an alias, and the records of the name they lead to, when a lookup
+     * of the alias is answered from the cache.
+     *
+     * @param node  DNS query (host name and record type) of the entry.
+     * @param entry Entry returned by peekEntry for the node.
+     */
+    void recordRead(DNSNode node, CachedEntry entry) {
+        recordReads(node, entry, 1);
+    }
+
+    /** Tells the cache policy and refresh-ahead that an entry was used to answer several lookups,
+     * as recordRead does for one, for reads batched by the caller as with recordHits.
+     *
+     * @param node  DNS query (host name and record type) of the entry.
+     * @param entry Entry returned by peekEntry for the node.
+     * @param reads Number of lookups the entry was used for.
+     */
+    void recordReads(DNSNode node, CachedEntry entry, int reads) {
+        RecordSet results = (RecordSet) entry;
+        if (policy != null)
+            policy.recordRead(node);
+        RefreshHandler handler = refreshHandler;
+        if (handler != null && !results.negative && !results.superseded)
+            handler.recordHit(node, results, reads);
+    }
+
+    /** Returns the set of records of a node, after removing its expired records, or null. */
+    private RecordSet getUnexpired(DNSNode node) {
+        RecordSet results = cachedResults.get(node);
+        if (results != null && results.hasExpiredRecords(System.nanoTime()))
+            results = removeExpired(node);
+        return results;
+    }
+
+    private void recordHit(DNSNode node, RecordSet results) {
+        hitCount.increment();
+        recordRead(node, results);
+    }
+
+    /** Sets the handler that refreshes popular records before they expire. Once a set of records
+     * was read at least minimumHits times and is in the last tenth of its TTL, the handler is
+     * called (in the reading thread, so it should only start the refresh) with the node of the
+     * set. The handler returns false if it cannot refresh the node now, in which case it may be
+     * called again on a later hit. Each set of records is otherwise handed to the handler once; a
+     * successful refresh replaces the set, and the new set is counted from zero hits.
+     *
+     * @param handler     Starts a lookup for a node, or returns false. Null disables refreshes.
+     * @param minimumHits Number of hits a set of records must have to be refreshed.
+     */
+    public void setRefreshHandler(Predicate<DNSNode> handler, int minimumHits) {
+        this.refreshHandler = handler == null ? null : new RefreshHandler(handler, minimumHits);
+    }
+
+    /** Removes a refresh handler, unless another handler has replaced it.
+     *
+     * @param handler Handler previously passed to setRefreshHandler.
+     */
+    public void removeRefreshHandler(Predicate<DNSNode> handler) {
+        RefreshHandler current = refreshHandler;
+        if (current != null && current.handler == handler)
+            refreshHandler = null;
+    }
+
+    /** Sets how long records are kept after they expire, to be returned by getStaleResults. Only
+     * records that expire after this call are kept. Stale records are not counted in the size of
+     * a bounded cache, and records evicted to keep the cache within its size are not kept.
+     *
+     * @param window Duration of the serve-stale window. Zero (the default) disables serve-stale.
+     * @param unit   Unit of the duration.
+     */
+    public void setServeStaleWindow(long window, TimeUnit unit) {
+        this.serveStaleNanos = Math.max(0, unit.toNanos(window));
+        if (serveStaleNanos == 0)
+            staleResults.clear();
+    }
+
+    /** Returns the serve-stale window, or zero if serve-stale is disabled.
+     *
+     * @param unit Unit of the returned value.
+     * @return Duration during which expired records are kept.
+     */
+    public long getServeStaleWindow(TimeUnit unit) {
+        return unit.convert(serveStaleNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the records of a query that expired less than the serve-stale window ago. Each
+     * record is returned as a copy with a TTL of STALE_TTL_SECONDS, so a client does not keep it
+     * for long. These records should only be used when the query cannot be answered otherwise,
+     * typically because its name servers do not respond. Unexpired records are not returned; use
+     * getCachedResults first.
+     *
+     * @param node DNS query (host name and record type) to obtain stale results.
+     * @return A potentially empty set of stale records for the query.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        StaleSet stale = staleResults.get(node);
+        long now = System.nanoTime();
+        if (stale == null || now - stale.staleUntil >= 0)
             return Collections.emptySet();
 
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+        staleHitCount.increment();
+        long expiration = now + TimeUnit.SECONDS.toNanos(STALE_TTL_SECONDS);
+        Set<ResourceRecord> result = new LinkedHashSet<>();
+        for (ResourceRecord record : stale.records.records())
+            result.add(new ResourceRecord(record.getNode(), expiration, record.getTextResult(),
+                    record.getInetResult(), record.getNameResult()));
+        return Collections.unmodifiableSet(result);
+    }
+
+    /** Returns true if the cache holds stale records for a query, which getStaleResults would
+     * return. This method does not change the stale hit counter.
+     *
+     * @param node DNS query (host name and record type) to be verified.
+     * @return true if stale records are kept for the query, false otherwise.
+     */
+    public boolean hasStaleResults(DNSNode node) {
+        StaleSet stale = staleResults.get(node);
+        return stale != null && System.nanoTime() - stale.staleUntil < 0;
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
      * resource record, the existing record is replaced if the new one expires after the existing
-     * record, otherwise the existing record is maintained.
+     * record, otherwise the existing record is maintained. The record set for the node is
+     * replaced atomically. If the cache is bounded, other entries may be evicted to make room
+     * for the new record. Records of a type the resolver does not know (RecordType.OTHER) are
+     * not cached: their node does not tell their types apart, so records of every unknown type of
+     * a name would share a single entry, and no lookup could use them.
      *
      * @param record Resource record, possibly obtained from a DNS server, containing the result
      *               of a DNS query.
      */
     public void addResult(ResourceRecord record) {
+        add(record, false);
+    }
+
+    /** Adds an NS record from a referral, sent by a server of the parent of the zone the record
+     * delegates, as addResult does. Its set of NS records is then a delegation that
+     * getClosestDelegation may return; NS records only added with addResult, which may come from
+     * the zone itself or from the answer to any NS query, never are.
+     *
+     * @param nameServer NS record from the authority section of a referral.
+     */
+    public void addDelegation(ResourceRecord nameServer) {
+        add(nameServer, true);
+    }
 
-        if (!record.isStillValid()) return;
+    private void add(ResourceRecord record, boolean delegation) {
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        if (!record.isStillValid() || record.getType() == RecordType.OTHER) return;
+
+        DNSNode key = record.getNode();
+        List<DNSNode> evicted = new ArrayList<>();
+        cachedResults.compute(key, (k, current) -> {
+            RecordSet updated = current == null || current.negative ? newRecordSet(record) : current.with(record);
+            if (delegation || (current != null && current.delegation))
+                updated.delegation = true;
+            if (current == null || updated.earliestExpiration != current.earliestExpiration)
+                expiryWheel.schedule(k, updated.earliestExpiration);
+            if (current != null && updated != current)
+                current.superseded = true;
+            if (policy != null)
+                evicted.addAll(policy.recordWrite(k, weightOf(updated)));
+            return updated;
+        });
+        evict(evicted);
+    }
+
+    /** Caches a negative answer for a query: either the name does not exist (NXDOMAIN) or it has
+     * no records of the requested type (NODATA). Any records cached for the query are replaced.
+     *
+     * @param node      DNS query (host name and record type) that had no results.
+     * @param ttl       Time, in seconds, during which the negative answer may be used.
+     * @param nameError true if the host name does not exist, false if it exists but has no
+     *                  records of the requested type.
+     */
+    public void addNegativeResult(DNSNode node, long ttl, boolean nameError) {
+        addNegativeResult(node, ttl, nameError, null);
+    }
+
+    /** Caches a negative answer for a query, with the SOA record of the zone that gave it, to be
+     * sent with the negative answer to clients (RFC 2308, section 3). The SOA record is kept with
+     * the TTL of the negative answer.
+     *
+     * @param node      DNS query (host name and record type) that had no results.
+     * @param ttl       Time, in seconds, during which the negative answer may be used.
+     * @param nameError true if the host name does not exist, false if it exists but has no
+     *                  records of the requested type.
+     * @param soa       SOA record from the authority section of the negative response, or null.
+     */
+    public void addNegativeResult(DNSNode node, long ttl, boolean nameError, ResourceRecord soa) {
+
+        if (ttl <= 0) return;
+
+        long expiration = System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl);
+        if (soa != null)
+            soa = new ResourceRecord(soa.getNode(), expiration, soa.getTextResult(), null, null);
+        RecordSet negative = ObjectRecordSet.negative(expiration, nameError, soa);
+        List<DNSNode> evicted = new ArrayList<>();
+        cachedResults.compute(node, (k, current) -> {
+            if (current != null)
+                current.superseded = true;
+            expiryWheel.schedule(k, negative.earliestExpiration);
+            if (policy != null)
+                evicted.addAll(policy.recordWrite(k, weightOf(negative)));
+            return negative;
+        });
+        evict(evicted);
+    }
+
+    /** Returns true if the cache holds an unexpired negative answer for a query, meaning that the
+     * host name or the record type does not exist and should not be queried again for now.
+     *
+     * @param node DNS query (host name and record type) to be verified.
+     * @return true if a negative answer is cached for the query, false otherwise.
+     */
+    public boolean hasNegativeResult(DNSNode node) {
+        RecordSet results = cachedResults.get(node);
+        return results != null && results.negative && !results.hasExpiredRecords(System.nanoTime());
+    }
+
+    /** Returns true if the cache holds an unexpired negative answer stating that the host name of
+     * a query does not exist (NXDOMAIN).
+     *
+     * @param node DNS query (host name and record type) to be verified.
+     * @return true if a name error is cached for the query, false otherwise.
+     */
+    public boolean hasNameError(DNSNode node) {
+        RecordSet results = cachedResults.get(node);
+        return results != null && results.nameError && !results.hasExpiredRecords(System.nanoTime());
+    }
+
+    /** Finds the closest zone cut known for a name: the deepest zone enclosing the name (or the
+     * name itself) that has unexpired NS records learned from a referral (see addDelegation) and
+     * an unexpired address for at least one of its name servers. Lookups for the name can then
+     * skip the servers of all enclosing zones. This method does not change the hit and miss
+     * counters.
+     *
+     * @param name Host name of a query.
+     * @param ipv6 Whether IPv6 addresses of the name servers (AAAA records) may be returned, as
+     *             well as their IPv4 addresses.
+     * @return The closest delegation with known addresses, or null if there is none.
+     */
+    public Delegation getClosestDelegation(DomainName name, boolean ipv6) {
+        long now = System.nanoTime();
+        for (DomainName zone = name; zone != null; zone = zone.getParent()) {
+            DNSNode zoneNode = new DNSNode(zone, RecordType.NS);
+            RecordSet nameServers = peek(zoneNode);
+            if (nameServers == null || !nameServers.delegation)
+                continue;
+
+            Set<DomainName> names = new LinkedHashSet<>();
+            List<InetAddress> addresses = new ArrayList<>();
+            for (ResourceRecord nameServer : nameServers.records()) {
+                if (nameServer.getNameResult() == null || nameServer.getExpirationTime() - now <= 0)
+                    continue;
+                names.add(nameServer.getNameResult());
+                addGlue(new DNSNode(nameServer.getNameResult(), RecordType.A), now, addresses);
+                if (ipv6)
+                    addGlue(new DNSNode(nameServer.getNameResult(), RecordType.AAAA), now, addresses);
+            }
+            if (!addresses.isEmpty()) {
+                if (policy != null)
+                    policy.recordRead(zoneNode);
+                return new Delegation(zone, names, addresses);
+            }
+        }
+        return null;
+    }
+
+    /** Adds the unexpired addresses cached for a name server to a list, without counting a hit. */
+    private void addGlue(DNSNode node, long now, List<InetAddress> addresses) {
+        RecordSet glue = peek(node);
+        if (glue != null)
+            for (ResourceRecord address : glue.records())
+                if (address.getInetResult() != null && address.getExpirationTime() - now > 0)
+                    addresses.add(address.getInetResult());
+    }
+
+    /** Records or negative answer cached for a node, see getCachedEntry. */
+    interface CachedEntry {
+        Set<ResourceRecord> records();
+
+        boolean isNegative();
+
+        boolean isNameError();
+
+        /** Returns the SOA record cached with a negative answer, with the TTL of the negative
+         * answer, or null if the entry is not negative or the answer had no SOA record.
+         */
+        ResourceRecord getSoa();
+
+        /** Returns true if this entry is still the one cached for its node (it was not replaced,
+         * removed or evicted) and none of its records has expired.
+         *
+         * @param now Current time, as a value of System.nanoTime().
+         */
+        boolean isCurrent(long now);
+
+        /** Returns true if this entry holds records in the last tenth of their TTL, which would
+         * be refreshed on a hit if they were read often enough, and no refresh has started yet.
+         *
+         * @param now Current time, as a value of System.nanoTime().
+         */
+        boolean isRefreshDue(long now);
+
+        /** Returns the data attached to this entry, or null. */
+        Object getAttachment();
+
+        /** Attaches data to this entry, replacing any data attached before. */
+        void setAttachment(Object attachment);
+    }
+
+    /** Receives the entries of the cache, see forEachEntry. */
+    interface EntryVisitor {
+        /** Receives the records of a node; delegation is true for NS records added with addDelegation. */
+        void visitRecords(DNSNode node, Set<ResourceRecord> records, boolean delegation) throws IOException;
+
+        void visitNegative(DNSNode node, long expirationTime, boolean nameError, ResourceRecord soa) throws IOException;
+    }
+
+    /** Visits every node with unexpired records or an unexpired negative answer, without counting
+     * hits or misses and without removing expired records. Used to write snapshots.
+     *
+     * @param visitor Receives the unexpired records, or the negative answer, of each node.
+     * @throws IOException if the visitor throws it; the remaining nodes are not visited.
+     */
+    void forEachEntry(EntryVisitor visitor) throws IOException {
+        long now = System.nanoTime();
+        for (Map.Entry<DNSNode, RecordSet> entry : cachedResults.entrySet()) {
+            RecordSet results = entry.getValue();
+            if (results.negative) {
+                if (results.earliestExpiration - now > 0)
+                    visitor.visitNegative(entry.getKey(), results.earliestExpiration, results.nameError, results.getSoa());
+                continue;
+            }
+            Set<ResourceRecord> records = results.records();
+            if (results.hasExpiredRecords(now)) {
+                records = new LinkedHashSet<>();
+                for (ResourceRecord record : results.records())
+                    if (record.getExpirationTime() - now > 0)
+                        records.add(record);
+            }
+            if (!records.isEmpty())
+                visitor.visitRecords(entry.getKey(), records, results.delegation);
         }
+    }
+
+    /** Returns the records cached for a node without counting a hit or a miss. The set may
+     * include expired records not yet removed by the timing wheel, which the caller must skip.
+     */
+    private RecordSet peek(DNSNode node) {
+        RecordSet results = cachedResults.get(node);
+        return results == null || results.negative ? null : results;
+    }
+
+    /** Returns the number of lookups that found cached records or a cached negative answer. */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /** Returns the number of lookups that found nothing in the cache. */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /** Returns the number of times stale records were returned by getStaleResults. */
+    public long getStaleHitCount() {
+        return staleHitCount.sum();
+    }
+
+    /** Returns the number of nodes (and their sets of records) evicted to keep the cache within
+     * its maximum size. Expired records are not included.
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /** Returns the number of individual records removed because their TTL expired. */
+    public long getExpirationCount() {
+        return expirationCount.sum();
+    }
+
+    /** Returns the number of nodes currently in the cache. */
+    public int size() {
+        return cachedResults.size();
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    /** Returns the current size of a bounded cache, in the unit used for its maximum size, or -1
+     * if the cache is unbounded.
+     */
+    public long getWeightedSize() {
+        return policy == null ? -1 : policy.getTotalWeight();
+    }
+
+    /** Returns the unit used for the maximum size of this cache. */
+    public SizeUnit getSizeUnit() {
+        return sizeUnit;
+    }
+
+    /** Returns how the records of this cache are stored. */
+    public Storage getStorage() {
+        return storage;
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
      * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * the action is performed. Visiting a node is not a read: no hit is counted, the cache policy
+     * is not told of it, and it does not start a refresh.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+        for (DNSNode node : new TreeSet<>(cachedResults.keySet())) {
+            RecordSet results = getUnexpired(node);
+            if (results != null && !results.negative && !results.records().isEmpty())
+                consumer.accept(node, results.records());
         }
     }
 
@@ -84,10 +745,497 @@ public class DNSCache {
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+        forEachNode((node, records) -> records.forEach(record -> consumer.accept(node, record)));
+    }
+
+    /** Removes expired records associated to a node, and removes the node itself if no records
+     * are left. If some records remain, the node is scheduled to be reviewed again when the
+     * earliest of them expires.
+     *
+     * @param key Canonical key of the node to be reviewed.
+     * @return The remaining set of records for the node, or null if none is left.
+     */
+    private RecordSet removeExpired(DNSNode key) {
+        RecordSet[] previous = new RecordSet[1];
+        RecordSet results = cachedResults.computeIfPresent(key, (k, current) -> {
+            long now = System.nanoTime();
+            if (!current.hasExpiredRecords(now))
+                return current;
+            previous[0] = current;
+            current.superseded = true;
+            RecordSet updated = current.withoutExpired(now);
+            if (updated != null) {
+                updated.delegation = current.delegation;
+                expiryWheel.schedule(k, updated.earliestExpiration);
+            }
+            if (policy != null) {
+                if (updated == null)
+                    policy.recordRemoval(k);
+                else
+                    policy.updateWeight(k, weightOf(updated));
+            }
+            return updated;
+        });
+
+        if (previous[0] != null) {
+            expirationCount.add(previous[0].size() - (results == null ? 0 : results.size()));
+            keepStale(key, previous[0]);
+        }
+        return results;
+    }
+
+    /** Keeps the records a node had before some of them expired, for the serve-stale window. */
+    private void keepStale(DNSNode key, RecordSet expired) {
+        long window = serveStaleNanos;
+        if (window == 0 || expired.negative)
+            return;
+        StaleSet stale = new StaleSet(expired, System.nanoTime() + window);
+        staleResults.put(key, stale);
+        staleWheel.schedule(key, stale.staleUntil);
+    }
+
+    /** Removes the stale records of a node once their serve-stale window has passed. */
+    private void removeStale(DNSNode key) {
+        staleResults.computeIfPresent(key, (k, stale) -> System.nanoTime() - stale.staleUntil >= 0 ? null : stale);
+    }
+
+    /** Removes nodes chosen for eviction by the cache policy. The policy is updated within the
+     * compute of the node's entry, so a node written again since it was chosen, which the policy
+     * tracks again, is kept.
+     *
+     * @param keys Canonical keys of the nodes to be evicted.
+     */
+    private void evict(List<DNSNode> keys) {
+        for (DNSNode key : keys) {
+            cachedResults.computeIfPresent(key, (k, current) -> {
+                if (policy.contains(k))
+                    return current;
+                current.superseded = true;
+                evictionCount.increment();
+                return null;
+            });
+        }
+    }
+
+    /** Returns the weight of a set of records, in the unit used for the maximum size of the cache.
+     */
+    private long weightOf(RecordSet results) {
+        return sizeUnit == SizeUnit.RECORDS ? Math.max(1, results.size()) : results.estimatedBytes;
+    }
+
+    /** Creates a set holding a single record, in the storage used by this cache. */
+    private RecordSet newRecordSet(ResourceRecord record) {
+        return storage == Storage.COMPACT ? PackedRecordSet.of(record) : ObjectRecordSet.of(record);
+    }
+
+    /** Estimates the memory used by a cached record: the record itself, its node, the strings for
+     * the host name and result, and the address for A and AAAA records.
+     */
+    private static long estimateBytes(ResourceRecord record) {
+        long bytes = RECORD_OVERHEAD_BYTES + record.getHostName().length() + record.getTextResult().length();
+        if (record.getInetResult() != null)
+            bytes += INET_ADDRESS_BYTES;
+        return bytes;
+    }
+
+    /** Records that expired, and the time until which they may still be returned as stale. */
+    private static final class StaleSet {
+        final RecordSet records;
+        final long staleUntil;
+
+        StaleSet(RecordSet records, long staleUntil) {
+            this.records = records;
+            this.staleUntil = staleUntil;
+        }
+    }
+
+    /** Refresh handler with the number of hits that makes a set of records worth refreshing. */
+    private static final class RefreshHandler {
+        final Predicate<DNSNode> handler;
+        final int minimumHits;
+
+        RefreshHandler(Predicate<DNSNode> handler, int minimumHits) {
+            this.handler = handler;
+            this.minimumHits = minimumHits;
+        }
+
+        /** Counts hits on a set of records, and hands the node to the handler if the set is
+         * popular, close to expiring, and not handed over before.
+         */
+        void recordHit(DNSNode node, RecordSet results, int hits) {
+            // stop counting at the threshold, so hot sets are not written on every read
+            if (results.hits < minimumHits && RecordSet.HITS.addAndGet(results, hits) < minimumHits)
+                return;
+            if (System.nanoTime() - results.refreshAt < 0 || results.refreshing != 0)
+                return;
+            if (RecordSet.REFRESHING.compareAndSet(results, 0, 1) && !handler.test(node))
+                results.refreshing = 0;
+        }
+    }
+
+    /** Immutable set of records cached for a single node. Modifications return a new instance,
+     * which is then installed in the cache map with an atomic map operation. Only the hit count
+     * and refresh state, used for refresh-ahead, the attachment of the caller, and the flag set
+     * once the set is no longer in the cache change after the set is created. The delegation
+     * flag is set, within the map operation, when an NS record from a referral is added.
+     */
+    private abstract static class RecordSet implements CachedEntry {
+
+        static final AtomicIntegerFieldUpdater<RecordSet> HITS =
+                AtomicIntegerFieldUpdater.newUpdater(RecordSet.class, "hits");
+        static final AtomicIntegerFieldUpdater<RecordSet> REFRESHING =
+                AtomicIntegerFieldUpdater.newUpdater(RecordSet.class, "refreshing");
+
+        final long earliestExpiration;
+        final long refreshAt;
+        final long estimatedBytes;
+        final boolean negative;
+        final boolean nameError;
+        volatile int hits;
+        volatile int refreshing;
+        volatile Object attachment;
+        volatile boolean superseded;
+        volatile boolean delegation;
+
+        RecordSet(long earliestExpiration, long estimatedBytes, boolean negative, boolean nameError) {
+            this.earliestExpiration = earliestExpiration;
+            long now = System.nanoTime();
+            this.refreshAt = earliestExpiration - Math.max(0, earliestExpiration - now) / REFRESH_AHEAD_DIVISOR;
+            this.estimatedBytes = estimatedBytes;
+            this.negative = negative;
+            this.nameError = nameError;
+        }
+
+        @Override
+        public abstract Set<ResourceRecord> records();
+
+        abstract int size();
+
+        @Override
+        public boolean isNegative() {
+            return negative;
+        }
+
+        @Override
+        public boolean isNameError() {
+            return nameError;
+        }
+
+        @Override
+        public ResourceRecord getSoa() {
+            return null;
+        }
+
+        @Override
+        public boolean isCurrent(long now) {
+            return !superseded && !hasExpiredRecords(now);
+        }
+
+        @Override
+        public boolean isRefreshDue(long now) {
+            return !negative && now - refreshAt >= 0 && refreshing == 0;
+        }
+
+        @Override
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        @Override
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        /** Returns a set that also contains a record, replacing an equal record that expires
+         * earlier. Not used on negative sets, which are replaced instead.
+         */
+        abstract RecordSet with(ResourceRecord record);
+
+        /** Returns a copy of this set without expired records, or null if no record is left (which
+         * removes the node from the cache when used in a compute operation).
+         */
+        abstract RecordSet withoutExpired(long now);
+
+        boolean hasExpiredRecords(long now) {
+            return earliestExpiration - now <= 0;
+        }
+    }
+
+    /** Set of records kept as the ResourceRecord objects that were added. A negative set has no
+     * records, only an expiration time and the SOA record of the negative answer, if any.
+     */
+    private static final class ObjectRecordSet extends RecordSet {
+
+        private final Map<ResourceRecord, ResourceRecord> records;
+        private final Set<ResourceRecord> view;
+        private final ResourceRecord soa;
+
+        private ObjectRecordSet(long expiration, boolean nameError, ResourceRecord soa) {
+            super(expiration, soa == null ? RECORD_OVERHEAD_BYTES : DNSCache.estimateBytes(soa), true, nameError);
+            this.records = Collections.emptyMap();
+            this.view = Collections.emptySet();
+            this.soa = soa;
+        }
+
+        private ObjectRecordSet(Map<ResourceRecord, ResourceRecord> records) {
+            super(earliestExpiration(records.keySet()), estimateBytes(records.keySet()), false, false);
+            this.records = records;
+            this.view = Collections.unmodifiableSet(records.keySet());
+            this.soa = null;
+        }
+
+        private static long earliestExpiration(Set<ResourceRecord> records) {
+            ResourceRecord earliest = null;
+            for (ResourceRecord record : records) {
+                if (earliest == null || record.expiresBefore(earliest))
+                    earliest = record;
+            }
+            return earliest.getExpirationTime();
+        }
+
+        private static long estimateBytes(Set<ResourceRecord> records) {
+            long bytes = 0;
+            for (ResourceRecord record : records)
+                bytes += DNSCache.estimateBytes(record);
+            return bytes;
+        }
+
+        static ObjectRecordSet of(ResourceRecord record) {
+            return new ObjectRecordSet(Collections.singletonMap(record, record));
+        }
+
+        static ObjectRecordSet negative(long expiration, boolean nameError, ResourceRecord soa) {
+            return new ObjectRecordSet(expiration, nameError, soa);
+        }
+
+        @Override
+        public ResourceRecord getSoa() {
+            return soa;
+        }
+
+        @Override
+        public Set<ResourceRecord> records() {
+            return view;
+        }
+
+        @Override
+        int size() {
+            return records.size();
+        }
+
+        @Override
+        RecordSet with(ResourceRecord record) {
+            ResourceRecord oldRecord = records.get(record);
+            if (oldRecord != null && !oldRecord.expiresBefore(record))
+                return this;
+
+            Map<ResourceRecord, ResourceRecord> copy = new HashMap<>(records);
+            copy.remove(record);
+            copy.put(record, record);
+            return new ObjectRecordSet(copy);
+        }
+
+        @Override
+        RecordSet withoutExpired(long now) {
+            Map<ResourceRecord, ResourceRecord> copy = new HashMap<>(records);
+            copy.keySet().removeIf(record -> record.getExpirationTime() - now <= 0);
+            return copy.isEmpty() ? null : new ObjectRecordSet(copy);
         }
     }
 
-}
\ No newline at end of file
+    /** Set of records kept in primitive arrays, for the COMPACT storage. All records of a set
+     * share the node, so only the expiration time and the result of each record are stored.
+     * Addresses of A and AAAA records are packed into one or two longs; other results are kept
+     * as a reference to their (interned) DomainName or to their text. The set returned by
+     * records() is a view that creates each ResourceRecord as it is iterated.
+     */
+    private static final class PackedRecordSet extends RecordSet {
+
+        private final DNSNode node;
+        private final int words;           // longs per packed address: 1 for A, 2 for AAAA, 0 otherwise
+        private final long[] deadlines;
+        private final long[] addresses;    // null if no record could be packed
+        private final Object[] values;     // DomainName or String for each record not packed, or null
+
+        private PackedRecordSet(DNSNode node, int words, long[] deadlines, long[] addresses, Object[] values) {
+            super(earliestExpiration(deadlines), estimateBytes(deadlines, addresses, values), false, false);
+            this.node = node;
+            this.words = words;
+            this.deadlines = deadlines;
+            this.addresses = addresses;
+            this.values = values;
+        }
+
+        private static long earliestExpiration(long[] deadlines) {
+            long earliest = deadlines[0];
+            for (long deadline : deadlines)
+                if (deadline - earliest < 0)
+                    earliest = deadline;
+            return earliest;
+        }
+
+        private static long estimateBytes(long[] deadlines, long[] addresses, Object[] values) {
+            long bytes = PACKED_SET_OVERHEAD_BYTES + 16 + 8L * deadlines.length;
+            if (addresses != null)
+                bytes += 16 + 8L * addresses.length;
+            if (values != null) {
+                bytes += 16 + 4L * values.length;
+                for (Object value : values)
+                    if (value instanceof String)
+                        bytes += 40 + ((String) value).length();
+            }
+            return bytes;
+        }
+
+        static PackedRecordSet of(ResourceRecord record) {
+            int words = record.getType() == RecordType.A ? 1 : record.getType() == RecordType.AAAA ? 2 : 0;
+            return append(record.getNode(), words, new long[0], null, null, record);
+        }
+
+        @Override
+        public Set<ResourceRecord> records() {
+            return new AbstractSet<ResourceRecord>() {
+                @Override
+                public Iterator<ResourceRecord> iterator() {
+                    return new Iterator<ResourceRecord>() {
+                        private int next = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < deadlines.length;
+                        }
+
+                        @Override
+                        public ResourceRecord next() {
+                            if (next >= deadlines.length)
+                                throw new NoSuchElementException();
+                            return recordAt(next++);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return deadlines.length;
+                }
+            };
+        }
+
+        @Override
+        int size() {
+            return deadlines.length;
+        }
+
+        @Override
+        RecordSet with(ResourceRecord record) {
+            int index = indexOf(record);
+            if (index < 0)
+                return append(node, words, deadlines, addresses, values, record);
+            if (record.getExpirationTime() - deadlines[index] <= 0)
+                return this;
+            long[] newDeadlines = deadlines.clone();
+            newDeadlines[index] = record.getExpirationTime();
+            return new PackedRecordSet(node, words, newDeadlines, addresses, values);
+        }
+
+        @Override
+        RecordSet withoutExpired(long now) {
+            int remaining = 0;
+            for (long deadline : deadlines)
+                if (deadline - now > 0)
+                    remaining++;
+            if (remaining == 0)
+                return null;
+
+            long[] newDeadlines = new long[remaining];
+            long[] newAddresses = addresses == null ? null : new long[remaining * words];
+            Object[] newValues = values == null ? null : new Object[remaining];
+            for (int i = 0, j = 0; i < deadlines.length; i++) {
+                if (deadlines[i] - now <= 0)
+                    continue;
+                newDeadlines[j] = deadlines[i];
+                if (addresses != null)
+                    System.arraycopy(addresses, i * words, newAddresses, j * words, words);
+                if (values != null)
+                    newValues[j] = values[i];
+                j++;
+            }
+            return new PackedRecordSet(node, words, newDeadlines, newAddresses, newValues);
+        }
+
+        /** Returns a set with the contents of the given arrays and a record appended. The arrays
+         * are not modified.
+         */
+        private static PackedRecordSet append(DNSNode node, int words, long[] deadlines, long[] addresses,
+                                              Object[] values, ResourceRecord record) {
+            int n = deadlines.length;
+            long[] newDeadlines = Arrays.copyOf(deadlines, n + 1);
+            newDeadlines[n] = record.getExpirationTime();
+            long[] packed = pack(words, record);
+            long[] newAddresses = addresses;
+            Object[] newValues = values;
+            if (packed != null || addresses != null) {
+                newAddresses = addresses == null ? new long[(n + 1) * words] : Arrays.copyOf(addresses, (n + 1) * words);
+                if (packed != null)
+                    System.arraycopy(packed, 0, newAddresses, n * words, words);
+            }
+            if (packed == null || values != null) {
+                newValues = values == null ? new Object[n + 1] : Arrays.copyOf(values, n + 1);
+                if (packed == null)
+                    newValues[n] = record.getNameResult() != null ? record.getNameResult() : record.getTextResult();
+            }
+            return new PackedRecordSet(node, words, newDeadlines, newAddresses, newValues);
+        }
+
+        /** Returns the index of a record equal to the given record, or -1 if there is none. */
+        private int indexOf(ResourceRecord record) {
+            long[] packed = pack(words, record);
+            for (int i = 0; i < deadlines.length; i++) {
+                if (packed != null) {
+                    if (isPacked(i) && Arrays.equals(addresses, i * words, (i + 1) * words, packed, 0, words))
+                        return i;
+                } else if (!isPacked(i) && values[i].toString().equals(record.getTextResult())) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean isPacked(int index) {
+            return values == null || values[index] == null;
+        }
+
+        /** Returns the address of a record packed into longs, or null if the record is not an
+         * address of the size used by this set.
+         */
+        private static long[] pack(int words, ResourceRecord record) {
+            if (words == 0 || record.getInetResult() == null)
+                return null;
+            byte[] address = record.getInetResult().getAddress();
+            if (address.length != (words == 1 ? 4 : 16))
+                return null;
+            ByteBuffer buffer = ByteBuffer.wrap(address);
+            return words == 1 ? new long[]{buffer.getInt() & 0xFFFFFFFFL} : new long[]{buffer.getLong(), buffer.getLong()};
+        }
+
+        private ResourceRecord recordAt(int index) {
+            if (isPacked(index)) {
+                ByteBuffer address = ByteBuffer.allocate(words == 1 ? 4 : 16);
+                if (words == 1)
+                    address.putInt((int) addresses[index]);
+                else
+                    address.putLong(addresses[2 * index]).putLong(addresses[2 * index + 1]);
+                try {
+                    InetAddress inet = InetAddress.getByAddress(address.array());
+                    return new ResourceRecord(node, deadlines[index], inet.getHostAddress(), inet, null);
+                } catch (UnknownHostException e) {
+                    throw new IllegalStateException(e); // not thrown: the length is always 4 or 16
+                }
+            }
+            Object value = values[index];
+            if (value instanceof DomainName)
+                return new ResourceRecord(node, deadlines[index], value.toString(), null, (DomainName) value);
+            return new ResourceRecord(node, deadlines[index], (String) value, null, null);
+        }
+    }
+}
@@ -1,26 +1,32 @@
 package ca.ubc.cs317.dnslookup;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.Console;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
-import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
-
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Command-line front end. By default it runs an interactive prompt; with the "serve" argument it
+ * runs a caching DNS server (see DNSServer) instead, and with the "bulk" argument it resolves a
+ * list of names (see BulkLookup). Lookups are performed by a Resolver that uses the shared DNS
+ * cache instance.
+ */
 public class DNSLookupService {
 
-    private static boolean p1Flag = false; // isolating part 1
-    private static final int MAX_INDIRECTION_LEVEL = 10;
-    private static InetAddress rootServer;
     private static DNSCache cache = DNSCache.getInstance();
-    private static final int DEFAULT_DNS_PORT = 53;
-    private static boolean verboseTracing = false;
-    private static DatagramSocket socket;
+    private static ResolverConfig config;
+    private static Resolver resolver;
     
   /**
        * Main function, called when program is first invoked.
@@ -29,31 +35,80 @@ public class DNSLookupService {
      */
     public static void main(String[] args) {
 
+        boolean p1Flag = false; // isolating part 1
+        int servePort = -1;
+        InetAddress serveAddress = InetAddress.getLoopbackAddress();
+        String bulkInput = null;
+        int bulkConcurrency = BulkLookup.DEFAULT_CONCURRENCY;
+        BulkLookup.Format bulkFormat = BulkLookup.Format.CSV;
         if (args.length == 2 && args[1].equals("-p1")) {
             p1Flag = true;
-        } else if (args.length != 1) {
+        } else if (args.length >= 2 && args.length <= 4 && args[1].equals("serve")) {
+            try {
+                servePort = args.length >= 3 ? Integer.parseInt(args[2]) : ResolverConfig.DEFAULT_DNS_PORT;
+                if (args.length == 4)
+                    serveAddress = InetAddress.getByName(args[3]);
+            } catch (NumberFormatException | UnknownHostException e) {
+                servePort = -1;
+            }
+        } else if (args.length >= 3 && args.length <= 5 && args[1].equals("bulk")) {
+            bulkInput = args[2];
+            for (int i = 3; i < args.length; i++) {
+                if (args[i].equalsIgnoreCase("csv") || args[i].equalsIgnoreCase("jsonl")) {
+                    bulkFormat = BulkLookup.Format.valueOf(args[i].toUpperCase());
+                } else {
+                    try {
+                        bulkConcurrency = Integer.parseInt(args[i]);
+                    } catch (NumberFormatException e) {
+                        bulkConcurrency = 0;
+                    }
+                    if (bulkConcurrency < 1)
+                        bulkInput = null;
+                }
+            }
+        }
+        boolean validCall = args.length == 1 || p1Flag || (servePort >= 0 && servePort <= 65535) || bulkInput != null;
+        if (!validCall) {
             System.err.println("Invalid call. Usage:");
             System.err.println("\tjava -jar DNSLookupService.jar rootServer");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer serve [port [address]]");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer bulk file|- [concurrency] [csv|jsonl]");
             System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.err.println("The second form answers DNS queries of clients on the given port (53 by default), over UDP and TCP,");
+            System.err.println("on the given local address (the loopback address by default; 0.0.0.0 or :: for all interfaces).");
+            System.err.println("The third form resolves the names listed in a file (or on the standard input), one \"name [type]\" per line,");
+            System.err.println("with up to concurrency lookups at a time (" + BulkLookup.DEFAULT_CONCURRENCY
+                    + " by default), and prints one CSV or JSON line per name.");
             System.exit(1);
         }
 
         try {
-            rootServer = InetAddress.getByName(args[0]);
-            System.out.println("Root DNS server is: " + rootServer.getHostAddress());
+            InetAddress rootServer = InetAddress.getByName(args[0]);
+            config = new ResolverConfig(rootServer);
+            config.setEncodeOnly(p1Flag);
+            // in bulk mode, the standard output only holds the results
+            (bulkInput != null ? System.err : System.out).println("Root DNS server is: " + rootServer.getHostAddress());
         } catch (UnknownHostException e) {
             System.err.println("Invalid root server (" + e.getMessage() + ").");
             System.exit(1);
         }
 
         try {
-          socket = new DatagramSocket();
-          socket.setSoTimeout(5000);
-        } catch (SocketException ex) {
+          resolver = new Resolver(config, cache);
+        } catch (IOException ex) {
           ex.printStackTrace();
           System.exit(1);
     }
 
+        if (servePort >= 0) {
+            serve(new InetSocketAddress(serveAddress, servePort));
+            return;
+        }
+        if (bulkInput != null) {
+            bulk(bulkInput, bulkConcurrency, bulkFormat);
+            return;
+        }
+
         Scanner in = new Scanner(System.in);
         Console console = System.console();
         do {
@@ -86,10 +141,16 @@ public class DNSLookupService {
                 // SERVER: Change root nameserver
                 if (commandArgs.length == 2) {
                     try {
-                        rootServer = InetAddress.getByName(commandArgs[1]);
+                        InetAddress rootServer = InetAddress.getByName(commandArgs[1]);
+                        config.setRootServer(rootServer);
+                        Resolver newResolver = new Resolver(config, cache);
+                        resolver.close();
+                        resolver = newResolver;
                         System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
                     } catch (UnknownHostException e) {
                         System.out.println("Invalid root server (" + e.getMessage() + ").");
+                    } catch (IOException e) {
+                        System.out.println("Could not change root server (" + e.getMessage() + ").");
                     }
                 } else {
                     System.out.println("Invalid call. Format:\n\tserver IP");
@@ -100,16 +161,16 @@ public class DNSLookupService {
                     boolean verboseTracing = false;
                     if (commandArgs[1].equalsIgnoreCase("on")) {
                         verboseTracing = true;
-                        DNSQueryHandler.setVerboseTracing(true);
                     }
                     else if (commandArgs[1].equalsIgnoreCase("off")) {
-                        //verboseTracing = false;
-                        DNSQueryHandler.setVerboseTracing(false);
+                        verboseTracing = false;
                     }
                     else {
                         System.err.println("Invalid call. Format:\n\ttrace on|off");
                         continue;
                     }
+                    config.setVerboseTracing(verboseTracing);
+                    resolver.setVerboseTracing(verboseTracing);
                     System.out.println("Verbose tracing is now: " + (verboseTracing ? "ON" : "OFF"));
                 } else {
                     System.err.println("Invalid call. Format:\n\ttrace on|off");
@@ -135,174 +196,118 @@ public class DNSLookupService {
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
                 // DUMP: Print all results still cached
                 cache.forEachNode(DNSLookupService::printResults);
+            } else if (commandArgs[0].equalsIgnoreCase("stats")) {
+                // STATS: Print cache usage counters
+                printCacheStatistics();
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
                 System.err.println("\ttrace on|off");
                 System.err.println("\tserver IP");
                 System.err.println("\tdump");
+                System.err.println("\tstats");
                 System.err.println("\tquit");
             }
 
         } while (true);
 
-        socket.close();
+        resolver.close();
         System.out.println("Goodbye!");
     }
 
     /**
-     * Finds all results for a host name and type and prints them on the standard output.
+     * Runs a caching DNS server on a local address and port, with one worker thread per processor,
+     * until the process is stopped. The server answers any client that can reach the address, so
+     * it listens on the loopback address unless another address is given explicitly.
      *
-     * @param hostName Fully qualified domain name of the host being searched.
-     * @param type     Record type for search.
+     * @param address Local address and port on which UDP and TCP queries are received.
      */
-    private static void findAndPrintResults(String hostName, RecordType type) {
-        DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
-    }
-
+    private static void serve(InetSocketAddress address) {
+        DNSServer server;
+        try {
+            server = new DNSServer(resolver, address, Runtime.getRuntime().availableProcessors());
+            InetSocketAddress local = server.getLocalAddress();
+            System.out.println("Serving DNS queries on " + local.getAddress().getHostAddress() + " port " + local.getPort());
+        } catch (IOException e) {
+            System.err.println("Could not start the server: " + e.getMessage());
+            resolver.close();
+            System.exit(1);
+            return;
+        }
 
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            resolver.close();
+            System.out.println("Queries: " + server.getQueryCount() + ", answered from cache: "
+                    + server.getCacheAnswerCount() + " (" + server.getEncodedAnswerCount()
+                    + " already encoded), failed: " + server.getFailureCount());
+            stopped.countDown();
+        }));
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
     /**
-     * Finds all the results for a specific node.
+     * Resolves the names listed in a file, or on the standard input, and prints a row for each on
+     * the standard output, then prints a summary on the standard error.
      *
-     * @param node             Host and record type to be used for search.
-     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
-     *                         The initial call should be made with 0 (zero), while recursive calls for
-     *                         regarding CNAME results should increment this value by 1. Once this value
-     *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
-     *                         returns an empty set.
-     * @return A set of resource records corresponding to the specific query requested.
+     * @param input       Path of the file with the names, or "-" for the standard input.
+     * @param concurrency Maximum number of lookups in flight.
+     * @param format      Format of the rows.
      */
-    public static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
-      InetAddress nameServer = rootServer;
-
-    if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
-      System.err.println("Maximum number of indirection levels reached.");
-      return Collections.emptySet();
-    }
-
-    // If the information is in the cache, return it directly
-    Set<ResourceRecord> cachedResults = cache.getCachedResults(node);
-    if (!cachedResults.isEmpty()){
-      return cachedResults;
-    }
-
-    DNSNode cnameNode = new DNSNode(node.getHostName(), RecordType.getByCode(5));
-
-    // Max 20 iterations
-    for(int i = 0; i < 20; i++){
-      // Check if we have CNAME in the cache
-      cachedResults = cache.getCachedResults(cnameNode);
-      if (cachedResults.isEmpty()){
-        // We don't have CNAME in cache
-        if (nameServer != null) {
-          nameServer = retrieveResultsFromServer(node, nameServer);
-          // update cache results
-          cachedResults = cache.getCachedResults(node);
-          if (!cachedResults.isEmpty()){
-            return cachedResults;
-          }
-        }
-      } else {
-        // start new query with CNAME and node's type
-        Set<ResourceRecord> allResults = new HashSet<ResourceRecord>();
-        for (ResourceRecord cnameRecord : cachedResults){
-          DNSNode newNode = new DNSNode(cnameRecord.getTextResult(), node.getType());
-          allResults.addAll(getResults(newNode, indirectionLevel + 1));
+    private static void bulk(String input, int concurrency, BulkLookup.Format format) {
+        BulkLookup lookup = new BulkLookup(resolver, concurrency, format);
+        try (BufferedReader reader = input.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+            lookup.run(reader, writer);
+        } catch (IOException e) {
+            System.err.println("Bulk lookup failed: " + e.getMessage());
+            resolver.close();
+            System.exit(1);
         }
-        return allResults;
-      }
+        lookup.printSummary(System.err);
+        resolver.close();
     }
 
-    return Collections.emptySet();
-  }
-
-  
-
-     /**
-   * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
-   * and the query is repeated with a new server if the provided one is non-authoritative.
-   * Results are stored in the cache.
-   *
-   * @param node   Host name and record type to be used for the query.
-   * @param server Address of the server to be used for the query.
-   * @return InetAddress: an IP address of retrieved server
-   **/
-  private static InetAddress retrieveResultsFromServer(DNSNode node, InetAddress server) {
-      
-      byte[] message = new byte[512]; // query is no longer than 512 bytes
-      InetAddress inAddress;
-      int queryID = DNSQueryHandler.getNewUniqueQueryID();
-       
-            DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQuery(message, queryID, node, server); 
-            byte[] queryArray = serverResponse.getResponse().array();
-            
-            if (p1Flag) return null; // For testing part 1 only
-
-            inAddress = queryNextLevel(node, serverResponse, server, queryArray, queryID);
-
-       return inAddress;
-}
-
-/**
-     * Query the next level DNS Server, if necessary
+    /**
+     * Finds all results for a host name and type and prints them on the standard output.
      *
-     * @param node        Host name and record type of the query.
-     * @param ServerResponse List of name servers returned from the previous level to query the next level.
-     * @param server Address of the server to be used for the query.
-     * @param queryArray a byte array as response buffer of a DNSServerResponse
-     * @param queryID uniquely generated ID
-     * @return InetAddress: an IP address of retrieved server
-
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @param type     Record type for search.
      */
-    private static InetAddress queryNextLevel(DNSNode node, DNSServerResponse serverResponse, InetAddress server, byte[] queryArray, int queryID) {
-        
-        int timeOutCount = 0;
-        int maxTimeOutCount = 2;
-        while(timeOutCount < maxTimeOutCount) {
-          if (verboseTracing) {
-            System.out.print("\n\n");
-            System.out.println("Query ID   " + queryID + " " + node.getHostName() + "  " + node.getType() + " --> " + server.getHostAddress());
-          }
-
-          DatagramPacket queryPacket = new DatagramPacket(queryArray, queryArray.length, server, DEFAULT_DNS_PORT);
-          try {
-            socket.send(queryPacket);
-          } catch (IOException e) {
-            break;
-          }
+    private static void findAndPrintResults(String hostName, RecordType type) {
+        DNSNode node;
+        try {
+            node = new DNSNode(hostName, type);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid host name. " + e.getMessage());
+            return;
+        }
+        printResults(node, resolver.resolve(node));
+    }
 
-          byte[] responseBuffer = new byte[1024];
-          DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
-          try {
-            socket.receive(responsePacket);
-            int responseID = DNSQueryHandler.getIntFromTwoBytes(responseBuffer[0],responseBuffer[1]);
-            int QR = (responseBuffer[2] & 0x80) >>> 7; // get 1st bit
 
-            while (queryID != responseID || QR != 1) {
-              socket.receive(responsePacket);
-              responseID = DNSQueryHandler.getIntFromTwoBytes(responseBuffer[0],responseBuffer[1]);
-              QR = (responseBuffer[2] & 0x80) >>> 7; // get 1st bit
-            }
 
-            Set<ResourceRecord> resourceRecords = DNSQueryHandler.decodeAndCacheResponse(queryID, node, responseBuffer);
-            if (resourceRecords == null || resourceRecords.isEmpty()) {
-            return null;
-            } else {
-              ResourceRecord firstNameServer = resourceRecords.iterator().next();
-              return  firstNameServer.getInetResult();
-            }
-          } catch (SocketTimeoutException e) {
-            timeOutCount++;
-          } catch (IOException e) {
-            break;
-          }
-        }
-         return null;
-      }
+    /**
+     * Prints the size of the cache and its hit, miss, eviction, expiration and stale answer counters.
+     */
+    private static void printCacheStatistics() {
+        long weightedSize = cache.getWeightedSize();
+        System.out.println("Cached nodes:    " + cache.size() +
+                (weightedSize < 0 ? "" : " (" + weightedSize + " " + cache.getSizeUnit().name().toLowerCase() + ")"));
+        System.out.println("Hits / misses:   " + cache.getHitCount() + " / " + cache.getMissCount());
+        System.out.println("Evictions:       " + cache.getEvictionCount());
+        System.out.println("Expired records: " + cache.getExpirationCount());
+        if (cache.getServeStaleWindow(TimeUnit.SECONDS) > 0)
+            System.out.println("Stale answers:   " + cache.getStaleHitCount());
+    }
 
-  
     /**
      * Prints the result of a DNS query.
      *
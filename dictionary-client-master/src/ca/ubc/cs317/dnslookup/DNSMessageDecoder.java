@@ -0,0 +1,245 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/** Decoder for a single DNS message. The decoder reads the message sequentially: the header is
+ * decoded when the decoder is created, then the question and resource records are read in the
+ * order in which they appear. All cursor state is kept in the decoder (and its own view of the
+ * buffer), so any number of messages can be decoded at the same time by different threads.
+ *
+ * Methods that read past the end of the message throw a MalformedMessageException.
+ */
+public class DNSMessageDecoder {
+
+    private static final int MAX_COMPRESSION_JUMPS = 64;
+    private static final int OPT_TYPE = 41;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final ByteBuffer message;
+    private final int id;
+    private final int flags;
+    private final int questionCount;
+    private final int answerCount;
+    private final int authorityCount;
+    private final int additionalCount;
+    private final byte[] nameBuffer = new byte[255];
+    private int ednsPayloadSize = -1;
+
+    /** Creates a decoder for a message and decodes its header.
+     *
+     * @param message Buffer containing the message, from its position to its limit. The buffer
+     *                itself is not modified.
+     * @throws MalformedMessageException if the message is shorter than a header.
+     */
+    public DNSMessageDecoder(ByteBuffer message) {
+        this.message = message.slice();
+        try {
+            id = readUnsignedShort();
+            flags = readUnsignedShort();
+            questionCount = readUnsignedShort();
+            answerCount = readUnsignedShort();
+            authorityCount = readUnsignedShort();
+            additionalCount = readUnsignedShort();
+        } catch (BufferUnderflowException e) {
+            throw new MalformedMessageException("Message shorter than header");
+        }
+    }
+
+    public int getID() {
+        return id;
+    }
+
+    public boolean isResponse() {
+        return (flags & 0x8000) != 0;
+    }
+
+    public int getOpcode() {
+        return (flags >>> 11) & 0x0F;
+    }
+
+    public boolean isAuthoritative() {
+        return (flags & 0x0400) != 0;
+    }
+
+    public boolean isTruncated() {
+        return (flags & 0x0200) != 0;
+    }
+
+    public boolean isRecursionDesired() {
+        return (flags & 0x0100) != 0;
+    }
+
+    public boolean isRecursionAvailable() {
+        return (flags & 0x0080) != 0;
+    }
+
+    public int getRcode() {
+        return flags & 0x0F;
+    }
+
+    public int getQuestionCount() {
+        return questionCount;
+    }
+
+    public int getAnswerCount() {
+        return answerCount;
+    }
+
+    public int getAuthorityCount() {
+        return authorityCount;
+    }
+
+    public int getAdditionalCount() {
+        return additionalCount;
+    }
+
+    /** Returns the UDP payload size advertised by the EDNS0 OPT record of the message (RFC 6891),
+     * once the record has been read.
+     *
+     * @return The payload size, or -1 if no OPT record was read.
+     */
+    public int getEdnsPayloadSize() {
+        return ednsPayloadSize;
+    }
+
+    /** Reads the next question of the message.
+     *
+     * @return The host name and record type of the question.
+     */
+    public DNSNode readQuestion() {
+        try {
+            DomainName name = readName();
+            int type = readUnsignedShort();
+            readUnsignedShort(); // class
+            return new DNSNode(name, RecordType.getByCode(type));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new MalformedMessageException("Question extends past end of message");
+        }
+    }
+
+    /** Reads the next resource record of the message. A, AAAA, NS, CNAME, SOA and MX records are
+     * fully decoded; the data of other records is kept in the generic RFC 3597 format, with the
+     * type RecordType.OTHER, so they are shown but never cached (see DNSCache.addResult). An EDNS0
+     * OPT pseudo-record is not a resource record: its payload size is kept in the decoder (see
+     * getEdnsPayloadSize) and null is returned.
+     *
+     * @return The decoded record, or null if the record has an invalid address length or is an
+     *         OPT record.
+     */
+    public ResourceRecord readRecord() {
+        try {
+            DomainName hostName = readName();
+            int typeCode = readUnsignedShort();
+            int recordClass = readUnsignedShort();
+            long ttl = message.getInt() & 0xFFFFFFFFL;
+            int length = readUnsignedShort();
+            int end = message.position() + length;
+            if (end > message.limit())
+                throw new MalformedMessageException("Record data extends past end of message");
+            if (typeCode == OPT_TYPE) { // the class holds the payload size, the TTL extended flags
+                ednsPayloadSize = recordClass;
+                message.position(end);
+                return null;
+            }
+
+            RecordType type = RecordType.getByCode(typeCode);
+            ResourceRecord record;
+            switch (type) {
+                case A:
+                case AAAA:
+                    if (length != (type == RecordType.A ? 4 : 16)) {
+                        record = null;
+                        break;
+                    }
+                    byte[] address = new byte[length];
+                    message.get(address);
+                    record = new ResourceRecord(hostName, type, ttl, InetAddress.getByAddress(address));
+                    break;
+                case NS:
+                case CNAME:
+                    record = new ResourceRecord(hostName, type, ttl, readName());
+                    break;
+                case SOA: // kept in presentation format: MNAME RNAME SERIAL REFRESH RETRY EXPIRE MINIMUM
+                    StringBuilder soa = new StringBuilder().append(readName()).append(' ').append(readName());
+                    for (int i = 0; i < 5; i++)
+                        soa.append(' ').append(message.getInt() & 0xFFFFFFFFL);
+                    record = new ResourceRecord(hostName, type, ttl, soa.toString());
+                    break;
+                case MX:
+                    int preference = readUnsignedShort();
+                    record = new ResourceRecord(hostName, type, ttl, preference + " " + readName());
+                    break;
+                default:
+                    record = new ResourceRecord(hostName, type, ttl, genericData(length));
+                    break;
+            }
+            message.position(end);
+            return record;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new MalformedMessageException("Record extends past end of message");
+        } catch (UnknownHostException e) {
+            return null; // only thrown for an invalid address length, checked above
+        }
+    }
+
+    /** Reads a domain name at the current position, following compression pointers, and moves the
+     * position past the name. The labels are gathered in wire format, so a name that is already
+     * in use is returned without creating a new string.
+     */
+    private DomainName readName() {
+        byte[] name = nameBuffer;
+        int length = 0;
+        int ptr = message.position();
+        int end = -1;
+        int jumps = 0;
+        while (true) {
+            int labelLength = message.get(ptr++) & 0xFF;
+            if (labelLength == 0)
+                break;
+            if (labelLength >= 192) { // compressed name: continue at the offset given
+                if (end < 0)
+                    end = ptr + 1;
+                if (++jumps > MAX_COMPRESSION_JUMPS)
+                    throw new MalformedMessageException("Compression loop in name");
+                ptr = (((labelLength & 0x3F) << 8) | (message.get(ptr) & 0xFF));
+                continue;
+            }
+            if (labelLength > 63 || length + labelLength + 2 > name.length)
+                throw new MalformedMessageException("Name longer than 255 bytes");
+            name[length++] = (byte) labelLength;
+            message.get(ptr, name, length, labelLength);
+            ptr += labelLength;
+            length += labelLength;
+        }
+        name[length++] = 0;
+        message.position(end >= 0 ? end : ptr);
+        return DomainName.fromWire(name, length);
+    }
+
+    private int readUnsignedShort() {
+        return message.getShort() & 0xFFFF;
+    }
+
+    private String genericData(int length) {
+        StringBuilder data = new StringBuilder(6 + 2 * length).append("\\# ").append(length);
+        if (length > 0)
+            data.append(' ');
+        for (int i = 0; i < length; i++) {
+            int b = message.get() & 0xFF;
+            data.append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0x0F]);
+        }
+        return data.toString();
+    }
+
+    /** Thrown when a message cannot be decoded because it is truncated or otherwise invalid. */
+    public static class MalformedMessageException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedMessageException(String message) {
+            super(message);
+        }
+    }
+}
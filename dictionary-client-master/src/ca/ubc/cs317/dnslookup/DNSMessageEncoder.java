@@ -0,0 +1,226 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** Encoder for a single DNS response message, the counterpart of DNSMessageDecoder. The header is
+ * written first, then the question, then resource records in section order; the section counts
+ * in the header are updated as records are added.
+ *
+ * The message is limited to a maximum size (512 bytes for a plain UDP response, the payload size
+ * advertised by the client with EDNS0, or 65535 bytes over TCP). A record that does not fit is
+ * left out and the TC (truncated) flag is set, so the client knows to ask again over TCP. Owner
+ * names equal to the name in the question are compressed to a pointer to the question; other
+ * names are written uncompressed. The position of the TTL of each record is kept, so the message
+ * can be sent again later with its TTLs updated (see EncodedResponse).
+ */
+public class DNSMessageEncoder {
+
+    public static final int RCODE_NO_ERROR = 0;
+    public static final int RCODE_FORMAT_ERROR = 1;
+    public static final int RCODE_SERVER_FAILURE = 2;
+    public static final int RCODE_NAME_ERROR = 3;
+    public static final int RCODE_NOT_IMPLEMENTED = 4;
+    public static final int RCODE_REFUSED = 5;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int OPT_SIZE = 11;
+    private static final int OPT_TYPE = 41;
+    private static final int CLASS_IN = 1;
+    private static final int QUESTION_POINTER = 0xC000 | HEADER_SIZE;
+    private static final int[] NO_OFFSETS = new int[0];
+    private static final long[] NO_TIMES = new long[0];
+
+    private final ByteBuffer buffer;
+    private final int start;
+    private final int maxSize;
+    private final int ednsPayloadSize;
+    private DomainName questionName;
+    private int answerCount;
+    private int authorityCount;
+    private boolean truncated;
+    private int[] ttlOffsets = NO_OFFSETS;
+    private long[] expirationTimes = NO_TIMES;
+    private int recordCount;
+
+    /** Creates an encoder that writes a message at the current position of a buffer.
+     *
+     * @param buffer          Buffer where the message is written.
+     * @param maxSize         Maximum size of the message, in bytes.
+     * @param ednsPayloadSize Payload size to advertise in an OPT record at the end of the message,
+     *                        or 0 to send no OPT record (when the query had none).
+     */
+    public DNSMessageEncoder(ByteBuffer buffer, int maxSize, int ednsPayloadSize) {
+        this.buffer = buffer;
+        this.start = buffer.position();
+        this.maxSize = Math.min(maxSize, buffer.remaining());
+        this.ednsPayloadSize = ednsPayloadSize;
+    }
+
+    /** Writes the header of a response. All section counts start at zero.
+     *
+     * @param id                ID of the query being answered.
+     * @param opcode            Opcode of the query.
+     * @param recursionDesired  Value of the RD flag of the query.
+     * @param rcode             Response code.
+     */
+    public void writeHeader(int id, int opcode, boolean recursionDesired, int rcode) {
+        int flags = 0x8000 | (opcode & 0x0F) << 11 | (recursionDesired ? 0x0100 : 0) | 0x0080 | (rcode & 0x0F);
+        buffer.putShort((short) id).putShort((short) flags);
+        buffer.putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+    }
+
+    /** Writes the question of the response, which must follow the header. The question is copied
+     * from the query as received, so the name keeps the case chosen by the client: some clients
+     * randomize it and reject responses that do not repeat it exactly (DNS 0x20 encoding).
+     *
+     * @param node     Host name and record type of the question.
+     * @param question Question of the query in wire format: the name, uncompressed, then the type
+     *                 and class codes.
+     */
+    public void writeQuestion(DNSNode node, byte[] question) {
+        buffer.put(question);
+        buffer.putShort(start + 4, (short) 1);
+        questionName = node.getName();
+    }
+
+    /** Adds a record to the answer section. Records must all be added before authority records.
+     *
+     * @param record Record to be added.
+     * @return false if the record did not fit, in which case the message is marked truncated and
+     *         no further records should be added.
+     */
+    public boolean addAnswer(ResourceRecord record) {
+        if (!writeRecord(record))
+            return false;
+        buffer.putShort(start + 6, (short) ++answerCount);
+        return true;
+    }
+
+    /** Adds a record to the authority section.
+     *
+     * @param record Record to be added.
+     * @return false if the record did not fit (the message is then marked truncated).
+     */
+    public boolean addAuthority(ResourceRecord record) {
+        if (!writeRecord(record))
+            return false;
+        buffer.putShort(start + 8, (short) ++authorityCount);
+        return true;
+    }
+
+    /** Returns true if records were left out because the message reached its maximum size. */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /** Returns the number of records written to the message, in all sections. */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /** Returns the offset of the TTL field of a record, from the start of the message.
+     *
+     * @param index Index of the record, in the order records were written.
+     * @return Offset of the 4-byte TTL of the record.
+     */
+    public int getTtlOffset(int index) {
+        return ttlOffsets[index];
+    }
+
+    /** Returns the expiration time of a record written to the message, from which its TTL was
+     * computed.
+     *
+     * @param index Index of the record, in the order records were written.
+     * @return Expiration time of the record, as a value of System.nanoTime().
+     */
+    public long getExpirationTime(int index) {
+        return expirationTimes[index];
+    }
+
+    /** Completes the message: adds the OPT record, if any, and sets the TC flag if records were
+     * left out. The buffer is flipped, so the message is between its position and limit.
+     *
+     * @return The buffer holding the message.
+     */
+    public ByteBuffer finish() {
+        if (ednsPayloadSize > 0) {
+            buffer.put((byte) 0).putShort((short) OPT_TYPE).putShort((short) ednsPayloadSize);
+            buffer.putInt(0).putShort((short) 0);
+            buffer.putShort(start + 10, (short) 1);
+        }
+        if (truncated)
+            buffer.put(start + 2, (byte) (buffer.get(start + 2) | 0x02));
+        buffer.limit(buffer.position()).position(start);
+        return buffer;
+    }
+
+    /** Writes a record if it fits within the maximum size, leaving room for the OPT record. */
+    private boolean writeRecord(ResourceRecord record) {
+        if (truncated)
+            return false;
+        int recordStart = buffer.position();
+        int limit = buffer.limit();
+        buffer.limit(start + maxSize - (ednsPayloadSize > 0 ? OPT_SIZE : 0));
+        try {
+            if (record.getNode().getName().equals(questionName))
+                buffer.putShort((short) QUESTION_POINTER);
+            else
+                record.getNode().getName().writeTo(buffer);
+            buffer.putShort((short) record.getType().getCode()).putShort((short) CLASS_IN);
+            int ttlPosition = buffer.position();
+            buffer.putInt((int) Math.min(record.getTTL(), Integer.MAX_VALUE));
+            int lengthPosition = buffer.position();
+            buffer.putShort((short) 0);
+            writeData(record);
+            buffer.putShort(lengthPosition, (short) (buffer.position() - lengthPosition - 2));
+            addTtlField(ttlPosition - start, record.getExpirationTime());
+            return true;
+        } catch (BufferOverflowException | IndexOutOfBoundsException e) {
+            buffer.position(recordStart);
+            truncated = true;
+            return false;
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    private void addTtlField(int offset, long expirationTime) {
+        if (recordCount == ttlOffsets.length) {
+            ttlOffsets = Arrays.copyOf(ttlOffsets, Math.max(8, 2 * recordCount));
+            expirationTimes = Arrays.copyOf(expirationTimes, ttlOffsets.length);
+        }
+        ttlOffsets[recordCount] = offset;
+        expirationTimes[recordCount++] = expirationTime;
+    }
+
+    /** Writes the data of a record from its decoded form (see DNSMessageDecoder.readRecord). */
+    private void writeData(ResourceRecord record) {
+        String[] fields;
+        switch (record.getType()) {
+            case A:
+            case AAAA:
+                buffer.put(record.getInetResult().getAddress());
+                break;
+            case NS:
+            case CNAME:
+                record.getNameResult().writeTo(buffer);
+                break;
+            case MX:
+                fields = record.getTextResult().split(" ", 2);
+                buffer.putShort((short) Integer.parseInt(fields[0]));
+                DomainName.of(fields[1]).writeTo(buffer);
+                break;
+            case SOA:
+                fields = record.getTextResult().split(" ");
+                DomainName.of(fields[0]).writeTo(buffer);
+                DomainName.of(fields[1]).writeTo(buffer);
+                for (int i = 2; i < 7; i++)
+                    buffer.putInt((int) Long.parseLong(fields[i]));
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot encode record of type " + record.getType());
+        }
+    }
+}
@@ -3,21 +3,37 @@ package ca.ubc.cs317.dnslookup;
 import java.io.Serializable;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
- * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * Each node represents a fully-qualified domain name (represented by a canonical DomainName) and a
+ * record type. Two nodes with the same host name and type are considered equal, regardless of the
+ * case of the host name or of a trailing dot.
  */
 public class DNSNode implements Comparable<DNSNode>, Serializable {
 
-    private String hostName;
+    private DomainName name;
     private RecordType type;
 
+    /** Creates a node for a textual host name.
+     *
+     * @param hostName Host name, in any case, with or without a trailing dot.
+     * @param type     Record type.
+     * @throws IllegalArgumentException if the host name is not a valid domain name.
+     */
     public DNSNode(String hostName, RecordType type) {
-        this.hostName = hostName;
+        this(DomainName.of(hostName), type);
+    }
+
+    public DNSNode(DomainName name, RecordType type) {
+        this.name = name;
         this.type = type;
     }
 
+    public DomainName getName() {
+        return name;
+    }
+
+    /** Returns the host name in canonical form: lower case, without a trailing dot. */
     public String getHostName() {
-        return hostName;
+        return name.toString();
     }
 
     public RecordType getType() {
@@ -31,26 +47,26 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
         DNSNode dnsNode = (DNSNode) o;
 
-        if (!hostName.equals(dnsNode.hostName)) return false;
+        if (!name.equals(dnsNode.name)) return false;
         return type == dnsNode.type;
     }
 
     @Override
     public int hashCode() {
-        int result = hostName.hashCode();
-        result = 31 * result + type.hashCode();
+        int result = name.hashCode();
+        result = 31 * result + type.ordinal();
         return result;
     }
 
     @Override
     public String toString() {
-        return hostName + " (" + type + ")";
+        return name + " (" + type + ")";
     }
 
     @Override
     public int compareTo(DNSNode o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
+        if (!name.equals(o.name))
+            return name.compareTo(o.name);
         else
             return type.compareTo(o.type);
     }
@@ -1,54 +1,15 @@
 package ca.ubc.cs317.dnslookup;
 
-import java.io.IOException;
-import java.net.*;
 import java.util.*;
 import java.nio.ByteBuffer;
-import java.util.Random;
-import java.util.Set;
-import java.io.Console;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
 
 public class DNSQueryHandler {
 
-    private static final int DEFAULT_DNS_PORT = 53;
-    private static DatagramSocket socket;
-    private static boolean verboseTracing = false;
-
-    private static final Random random = new Random();
-    private static int pointer = 0; //  pointer for decoding the query
-    private static int[] generatedQueryIDs = new int[65536];
-    private static int totalQueryCount = 0;
-    private static DNSCache cache = DNSCache.getInstance();
-    /**
-     * Sets up the socket and set the timeout to 5 seconds
-     *
-     * @throws SocketException if the socket could not be opened, or if there was an
-     *                         error with the underlying protocol
-     */
-    public static void openSocket() throws SocketException {
-        socket = new DatagramSocket();
-        socket.setSoTimeout(5000);
-    }
-
-    /**
-     * Closes the socket
-     */
-    public static void closeSocket() {
-        socket.close();
-    }
-
-    /**
-     * Set verboseTracing to tracing
-     */
-    public static void setVerboseTracing(boolean tracing) {
-        verboseTracing = tracing;
-    }
+    // ID 0, QR/Opcode/AA/TC/RD 0 (iterative), QDCOUNT 1; ANCOUNT, NSCOUNT and ARCOUNT are 0
+    private static final byte[] QUERY_HEADER = {0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0};
+    private static final int OPT_TYPE = 41;
+    private static final int TC_FLAG = 0x0200;
 
        /**
   * Helper function that finds int value of 2 bytes (short to int)
@@ -61,349 +22,369 @@ public class DNSQueryHandler {
     return ((b1 & 0xFF) << 8) + (b2 & 0xFF);
   }
 
-/**
-  * Helper function that finds int value of 4 bytes (4 bytes to int)
-  *
-  * @param b1 first byte
-  * @param b2 second byte
-  * @param b3 third byte
-  * @param b4 fourth byte
-  * @return 16777216 * b1 + 65536 * b2 + 256 * b3 + b4 as integer
-  **/
-  private static int getIntFromFourBytes(byte b1, byte b2, byte b3, byte b4) {
-    return ((b1 & 0xFF) << 24) + ((b2 & 0xFF) << 16) + ((b3 & 0xFF) << 8) + (b4 & 0xFF);
+  /**
+   * Encodes an iterative query at the current position of a buffer. The header is copied
+   * from a fixed template, and the question name from the wire form kept by the node's
+   * DomainName, so encoding does not allocate.
+   *
+   * @param buffer  Buffer where the query is written, with at least 512 bytes remaining.
+   * @param queryID ID of the query
+   * @param node    Host name and record type to be used for the query.
+   */
+  public static void encodeQuery(ByteBuffer buffer, int queryID, DNSNode node) {
+    encodeQuery(buffer, queryID, node, 0);
   }
 
- /**
-  * Recursively resolve the compressed name starting from ptr
-  *
-  * @param buffer byte array to be resolved
-  * @param ptr initial location to start resolving
-  * @return resolved compressed name
-  **/
-  private static String getNameFromPointer(byte[] buffer, int ptr){
-    String name = "";
-    while(true) {
-      int labelLength = buffer[ptr++] & 0xFF;
-      if (labelLength == 0)
-        break;
-      // Identify message compression used, recursive call to retrieve name
-      else if (labelLength >= 192) {
-        int newPtr = (buffer[ptr++] & 0xFF) + 256 * (labelLength - 192);
-        name += getNameFromPointer(buffer, newPtr);
-        break;
-      }
-      // standard function to decode encoded name
-      else {
-        for (int i = 0; i < labelLength; i++) {
-          char ch = (char) (buffer[ptr++] & 0xFF);
-          name += ch;
-        }
-        name += '.';
-      }
+  /**
+   * Encodes an iterative query with an EDNS0 OPT record (RFC 6891) in its additional section,
+   * which tells the server it may send UDP responses of up to ednsBufferSize bytes instead of
+   * 512. Without it, larger responses are truncated and must be fetched again over TCP.
+   *
+   * @param buffer         Buffer where the query is written, with at least 512 bytes remaining.
+   * @param queryID        ID of the query
+   * @param node           Host name and record type to be used for the query.
+   * @param ednsBufferSize UDP payload size advertised to the server, or 0 to send no OPT record.
+   */
+  public static void encodeQuery(ByteBuffer buffer, int queryID, DNSNode node, int ednsBufferSize) {
+    int start = buffer.position();
+    buffer.put(QUERY_HEADER);
+    buffer.put(start, (byte) (queryID >>> 8));
+    buffer.put(start + 1, (byte) queryID);
+    node.getName().writeTo(buffer);
+    int QTYPE = node.getType().getCode();
+    buffer.putShort((short) QTYPE);
+    int QCLASS = 1; // always Internet(IN)
+    buffer.putShort((short) QCLASS);
+    if (ednsBufferSize > 0) {
+      buffer.put(start + 11, (byte) 1); // ARCOUNT
+      buffer.put((byte) 0); // root name
+      buffer.putShort((short) OPT_TYPE);
+      buffer.putShort((short) ednsBufferSize); // class: UDP payload size
+      buffer.putInt(0); // TTL: extended RCODE 0, version 0, no flags
+      buffer.putShort((short) 0); // no options
     }
+  }
 
-    pointer = ptr;
-    if (name.length() > 0 && name.charAt(name.length() - 1) == '.') {
-      name = name.substring(0, name.length() - 1);
-    }
-    return name;
+  /**
+   * Returns true if a response has the TC (truncation) flag set, meaning that it did not fit
+   * in a UDP message and the query should be repeated over TCP.
+   *
+   * @param response Response message, from its position to its limit.
+   * @return true if the response is truncated.
+   */
+  public static boolean isTruncated(ByteBuffer response) {
+    return response.remaining() >= 4 && (response.getShort(response.position() + 2) & TC_FLAG) != 0;
   }
 
   /**
-  * Generates a random ID between 0 and 655536, if it's generated before,
-  * tries until generating a unique one
+  * Decode single Resorce Record in one of the following fields: answers, nameservers or
+  * additional information
   *
-  * @return a new and unique query ID
+  * @param decoder Decoder positioned at the start of the record
+  * @param tracing Whether the decoded record is printed
+  * @return decoded single resource record, or null if the record could not be decoded
   **/
-  public static int getNewUniqueQueryID() {
-    int next = random.nextInt(65536);
-    for (int i = 0; i < totalQueryCount; i++){
-      if (generatedQueryIDs[i] == next) {
-        return getNewUniqueQueryID();
-      }
+  private static ResourceRecord decodeSingleRecord(DNSMessageDecoder decoder, boolean tracing){
+    ResourceRecord record = decoder.readRecord();
+    if (record != null) {
+      verbosePrintResourceRecord(record, tracing);
     }
-    generatedQueryIDs[totalQueryCount++] = next;
-    return next;
+    return record;
   }
 
   /**
-     * Generate a transactionID.
-     *
-     * @return A transactionID.
-     */
-    private static int getTransactionID() {
-        return (int) (random.nextInt() & 0xFFFF);
-    }
+   * Returns true if a record may be trusted from the servers of a zone: the servers of a zone
+   * are only authoritative for names in the zone, so a record for any other name could be used
+   * to poison the cache, and is dropped.
+   *
+   * @param record  Decoded record
+   * @param zone    Zone of the servers that sent the record
+   * @param tracing Whether a dropped record is reported
+   * @return true if the owner of the record is in the zone
+   */
+  private static boolean inBailiwick(ResourceRecord record, DomainName zone, boolean tracing) {
+    if (record.getNode().getName().isSubdomainOf(zone))
+      return true;
+    if (tracing)
+      System.out.println("       (ignored: " + record.getHostName() + " is outside the zone queried)");
+    return false;
+  }
 
     /**
-     * Add given set of resource record into cache
+     * Decodes the DNS server response and caches it. This method keeps no state between calls,
+     * so responses may be decoded concurrently.
+     *
+     * Only records for names in the zone of the servers queried are used and cached. Records of
+     * the authority section must also be for a zone enclosing the name queried (or the name its
+     * CNAME records lead to). The NS records of a referral, which come from the parent of the
+     * zone they delegate, are cached as a delegation that later lookups may start from.
      *
-     * @return.
+     * @param queryID        ID of the query the response answers
+     * @param node           Host name and record type of the query
+     * @param zone           Zone of the servers the query was sent to (the root at first, then
+     *                       the zone of each referral)
+     * @param response       DNS server's response, from its position to its limit
+     * @param cache          To store the decoded server's response
+     * @param tracing        Whether the decoded response is printed
+     * @return What the response means for the lookup: a referral, a final answer, or a failure of
+     *         the server if the response is an error, lame, or malformed.
      */
-    private static void addAllToCache(Set<ResourceRecord> input) {
-        for (ResourceRecord r : input) {
-            cache.addResult(r);
-        }
-    }
-
-
-    /**
-     * Builds the query, encodes it, and sends it to the server, and returns the response.
-     * Method to encode query as a message in the domain protocol
-  
-  * @param message Byte array used to store the query to DNS servers.
-  * @param queryID uniquely generated ID
-  * @param node Host name and record type to be used for the query.
-  * @param server  The IP address of the server to which the query is being sent.
-  * @return A DNSServerResponse Object containing the response buffer and the transaction ID.
-  * 
-  */
-  public static DNSServerResponse buildAndSendQuery(byte[] message, int queryID, DNSNode node, InetAddress server)  {
-    int thirdByte = queryID >>> 8;
-    int forthByte = queryID & 0xff;
-    message[0] = (byte) thirdByte;
-    message[1] = (byte) forthByte;
-    int QROpcodeAATCRD = 0; // 0 iterative, 1 recursive
-    message[2] = (byte) QROpcodeAATCRD;
-    int RAZRCODE = 0;
-    message[3] = (byte) RAZRCODE;
-    int QDCOUNT = 1;
-    message[4] = (byte) 0;
-    message[5] = (byte) QDCOUNT;
-    int ANCOUNT = 0;
-    message[6] = (byte) 0;
-    message[7] = (byte) ANCOUNT;
-    int NSCOUNT = 0;
-    message[8] = (byte) 0;
-    message[9] = (byte) NSCOUNT;
-    int ARCOUNT = 0;
-    message[10] = (byte) 0;
-    message[11] = (byte) ARCOUNT;
-    int ptr = 12;
-    String[] labels = node.getHostName().split("\\.");
-    for (int i = 0 ; i < labels.length; i++) {
-      String label = labels[i];
-      message[ptr++] = (byte) label.length();
-      for (char c : label.toCharArray()) {
-        message[ptr++] = (byte) ((int) c);
-      }
+   public static Response decodeAndCacheResponse(int queryID, DNSNode node, DomainName zone, ByteBuffer response, DNSCache cache, boolean tracing) {
+    try {
+      return decodeAndCacheResponse(queryID, node, zone, new DNSMessageDecoder(response), cache, tracing);
+    } catch (DNSMessageDecoder.MalformedMessageException e) {
+      if (tracing)
+        System.out.println("Malformed response: " + e.getMessage());
+      return Response.FAILURE;
     }
-    message[ptr++] = (byte) 0; //end of QNAME
-    int QTYPE = node.getType().getCode();
-    message[ptr++] = (byte) ((QTYPE >>> 8) & 0xff);
-    message[ptr++] = (byte) (QTYPE & 0xff);
-    int QCLASS = 1; // always Internet(IN)
-    message[ptr++] = (byte) 0;
-    message[ptr++] = (byte) QCLASS;
-    
-      ByteBuffer response = ByteBuffer.wrap(Arrays.copyOfRange(message, 0, ptr));
-      int transactionID =  getTransactionID();
-      DNSServerResponse serverResponse = new DNSServerResponse(response, transactionID);
-
-
-            return  serverResponse;
   }
 
-                
- 
-
-      /**
-  * Decode single Resorce Record in one of the following fields: answers, nameservers or
-  * additional information, put it to cache if it's answer 
-  *
-  * @param responseBuffer a byte array as response buffer of a DNSServerResponse object, received response from DNS server
-  *                     
-  * @return decoded single resource record
-  **/
-  private static ResourceRecord decodeSingleRecord(byte[] responseBuffer){
-    ResourceRecord record = null;
-    String hostName = getNameFromPointer(responseBuffer, pointer);
-    int typeCode = getIntFromTwoBytes(responseBuffer[pointer++], responseBuffer[pointer++]);
-    int classCode = getIntFromTwoBytes(responseBuffer[pointer++], responseBuffer[pointer++]);
-    long TTL = getIntFromFourBytes(responseBuffer[pointer++], responseBuffer[pointer++], responseBuffer[pointer++], responseBuffer[pointer++]);
-    int RDATALength = getIntFromTwoBytes(responseBuffer[pointer++], responseBuffer[pointer++]);
-    boolean errorOccured = false;
-    if (typeCode == 1) { // A IPv4
-      String address = "";
-      for (int j = 0; j < RDATALength; j++) {
-        int octet = responseBuffer[pointer++] & 0xFF;
-        address += octet + ".";
-      }
-      address = address.substring(0, address.length() - 1);
-      InetAddress addr = null;
-      try {
-        addr = InetAddress.getByName(address);
-        record = new ResourceRecord(hostName, RecordType.getByCode(typeCode), TTL, addr);
-        verbosePrintResourceRecord(record, 0);
-      } catch (UnknownHostException e){
-        errorOccured = true;
-      }
-    }
-    else if (typeCode == 28) { // AAAA IPv6
-      String address = "";
-      for (int j = 0; j < RDATALength / 2; j++) {
-        int octet = getIntFromTwoBytes(responseBuffer[pointer++], responseBuffer[pointer++]);
-        String hex = Integer.toHexString(octet);
-        address += hex + ":";
-      }
-      address = address.substring(0, address.length() - 1);
-      InetAddress addr = null;
-      try {
-        addr = InetAddress.getByName(address);
-        record = new ResourceRecord(hostName, RecordType.getByCode(typeCode), TTL, addr);
-        verbosePrintResourceRecord(record, 0);
-      } catch (UnknownHostException e){
-        errorOccured = true;
-      }
-    } else if (typeCode == 2 || typeCode == 5 || typeCode == 6) { // NS or CNAME or SOA
-      String data = getNameFromPointer(responseBuffer, pointer);
-      record = new ResourceRecord(hostName, RecordType.getByCode(typeCode), TTL, data);
-      verbosePrintResourceRecord(record, 0);
-    }
-    else { // all other types are assumed to have value like NS or CNAME
-      String data = getNameFromPointer(responseBuffer, pointer);
-      record = new ResourceRecord(hostName, RecordType.getByCode(typeCode), TTL, data);
-      verbosePrintResourceRecord(record, 0);
-    }
+  private static Response decodeAndCacheResponse(int queryID, DNSNode node, DomainName zone, DNSMessageDecoder decoder, DNSCache cache, boolean tracing) {
+    boolean authoritative = decoder.isAuthoritative();
+    int RCODE = decoder.getRcode();
 
-    if (!errorOccured) {
-      cache.addResult(record);
-    }
-    return record;
-  }
-    /**
-     * Decodes the DNS server response and caches it.
-     *
-     * @param transactionID  Transaction ID of the current communication with the DNS server
-     * @param responseBuffer DNS server's response
-     * @param cache          To store the decoded server's response
-     * @return A set of resource records corresponding to the name servers of the response.
-     */
+    if (tracing)
+      System.out.println("Response ID: " + decoder.getID() + " Authoritative = " + authoritative);
 
-   public static Set<ResourceRecord> decodeAndCacheResponse(int queryID, DNSNode node, byte[] responseBuffer) {
-    int responseID = getIntFromTwoBytes(responseBuffer[0],responseBuffer[1]);
-    int QR = (responseBuffer[2] & 0x80) >>> 7; // get 1st bit
-    int opCode = (responseBuffer[2] & 0x78) >>> 3; // get 2nd, 3rd, 4th and 5th bit
-    int AA = (responseBuffer[2] & 0x04) >>> 2; // geth 6th
-    int TC = (responseBuffer[2] & 0x02) >>> 1; // get 7th bit
-    int RD = responseBuffer[2] & 0x01; // get 8th bit
-
-    if (verboseTracing)
-      System.out.println("Response ID: " + responseID + " Authoritative = " + (AA == 1));
-
-    int RA = responseBuffer[3] & 0x80;
-    int RCODE = responseBuffer[3] & 0x0F;
-    String message = "";
-    switch (RCODE) {
-      case 0: message = "OK. No error on RCODE";
-          break;
-      case 1: message = "FAILED. Format error, name server didn't understand query";
-          break;
-      case 2: message = "FAILED. Server error";
-          break;
-      case 3: message = "FAILED. Name error – the name doesn't exist";
-          break;
-      case 4: message = "FAILED. Support for query not implemented";
-          break;
-      case 5: message = "FAILED. Request refused";
-          break;
-      default: message = "FAILED. Unknown RCODE";
-          break;
-    }
+    if (decoder.getID() != queryID || !decoder.isResponse())
+      return Response.FAILURE;
 
-    int QDCOUNT = getIntFromTwoBytes(responseBuffer[4], responseBuffer[5]);
-    int ANCOUNT = getIntFromTwoBytes(responseBuffer[6], responseBuffer[7]);
-    int NSCOUNT = getIntFromTwoBytes(responseBuffer[8], responseBuffer[9]);
-    int ARCOUNT = getIntFromTwoBytes(responseBuffer[10], responseBuffer[11]);
-    pointer = 12;
-    String receivedQNAME = "";
-    while(true) {
-      int labelLength = responseBuffer[pointer++] & 0xFF;
-      if (labelLength == 0)
-        break;
-      for (int i = 0; i < labelLength; i++) {
-        char ch = (char) (responseBuffer[pointer++] & 0xFF);
-        receivedQNAME += ch;
-      }
-      receivedQNAME += '.';
+    for (int i = 0; i < decoder.getQuestionCount(); i++) {
+      decoder.readQuestion();
     }
-    //receivedQNAME = receivedQNAME.substring(0, receivedQNAME.length() - 1);
-    int QTYPE = getIntFromTwoBytes(responseBuffer[pointer++], responseBuffer[pointer++]);
-    int QCLASS = getIntFromTwoBytes(responseBuffer[pointer++], responseBuffer[pointer++]);
 
     ResourceRecord record = null;
 
-    if (verboseTracing)
-      System.out.println("  Answers (" + ANCOUNT + ")");
-    for (int i=0; i < ANCOUNT; i++) {
-      decodeSingleRecord(responseBuffer);
+    if (tracing)
+      System.out.println("  Answers (" + decoder.getAnswerCount() + ")");
+    ArrayList<ResourceRecord> answers = new ArrayList<ResourceRecord>();
+    for (int i=0; i < decoder.getAnswerCount(); i++) {
+      record = decodeSingleRecord(decoder, tracing);
+      if (record != null && inBailiwick(record, zone, tracing)) {
+        answers.add(record);
+      }
     }
+    DomainName target = aliasTarget(node.getName(), answers);
 
     ArrayList<ResourceRecord> nameServers = new ArrayList<ResourceRecord>();
-    if (verboseTracing)
-      System.out.println("  Nameservers (" + NSCOUNT + ")");
-    for (int i=0; i < NSCOUNT; i++) {
-      record = decodeSingleRecord(responseBuffer);
-      if (record != null) {
-        nameServers.add(record);
+    if (tracing)
+      System.out.println("  Nameservers (" + decoder.getAuthorityCount() + ")");
+    for (int i=0; i < decoder.getAuthorityCount(); i++) {
+      record = decodeSingleRecord(decoder, tracing);
+      if (record != null && inBailiwick(record, zone, tracing)) {
+        DomainName owner = record.getNode().getName();
+        if (node.getName().isSubdomainOf(owner) || target.isSubdomainOf(owner))
+          nameServers.add(record);
+        else if (tracing)
+          System.out.println("       (ignored: " + record.getHostName() + " does not enclose the name queried)");
       }
     }
 
     ArrayList<ResourceRecord> additionals = new ArrayList<ResourceRecord>();
-    if (verboseTracing)
-      System.out.println("  Additional Information (" + ARCOUNT + ")");
-    for (int i=0; i < ARCOUNT; i++) {
-      record = decodeSingleRecord(responseBuffer);
-      if (record != null) {
+    if (tracing)
+      System.out.println("  Additional Information (" + decoder.getAdditionalCount() + ")");
+    for (int i=0; i < decoder.getAdditionalCount(); i++) {
+      record = decodeSingleRecord(decoder, tracing);
+      if (record != null && inBailiwick(record, zone, tracing)) {
         additionals.add(record);
       }
     }
 
-    if (AA == 1 || RCODE != 0){
-      return null;
-    } else { // AA = 0 case
+    if (RCODE != 0 && RCODE != 3) {
+      // SERVFAIL, REFUSED, FORMERR...: this server cannot answer, another one may
+      if (tracing)
+        System.out.println("  Server error (RCODE " + RCODE + ")");
+      return Response.FAILURE;
+    }
+
+    // a referral: NS records for a zone below the zone queried, from a server that is not
+    // authoritative for the name
+    DomainName referralZone = null;
+    if (!authoritative && RCODE == 0) {
+      for (ResourceRecord nameServer : nameServers) {
+        DomainName owner = nameServer.getNode().getName();
+        if (nameServer.getType() == RecordType.NS && owner != zone) {
+          referralZone = owner;
+          break;
+        }
+      }
+    }
+    for (ResourceRecord answer : answers)
+      cache.addResult(answer);
+    for (ResourceRecord nameServer : nameServers) {
+      if (nameServer.getType() == RecordType.NS && nameServer.getNode().getName() == referralZone)
+        cache.addDelegation(nameServer);
+      else
+        cache.addResult(nameServer);
+    }
+    for (ResourceRecord additional : additionals)
+      cache.addResult(additional);
+
+    if (RCODE == 3 || (authoritative && decoder.getAnswerCount() == 0)) {
+      return cacheNegativeResponse(node, RCODE == 3, target, answers, nameServers, cache, tracing);
+    } else if (authoritative){
+      return new Response(null, null, answers, RCODE, null, null);
+    } else if (referralZone != null) { // AA = 0 case
       Set<ResourceRecord> resourceRecords = new HashSet<ResourceRecord>();
       for (ResourceRecord nameserver: nameServers) {
-        String name = nameserver.getTextResult();
+        if (nameserver.getNode().getName() != referralZone || nameserver.getType() != RecordType.NS)
+          continue;
+        DomainName name = nameserver.getNameResult();
         for (ResourceRecord additional: additionals) {
-          if (additional.getHostName().equals(name) && additional.getType().getCode() == 1){
-            // A records for name servers
+          if (additional.getNode().getName().equals(name)
+                  && (additional.getType() == RecordType.A || additional.getType() == RecordType.AAAA)){
+            // A and AAAA records for name servers
             resourceRecords.add(additional);
           }
         }
       }
       if (resourceRecords.isEmpty()){
+        // no glue: the caller must resolve the name server names
         for (ResourceRecord nameserver: nameServers) {
-          String name = nameserver.getTextResult();
-          // search for nameserver A record
-          DNSNode nsServerNode = new DNSNode(name, RecordType.getByCode(1));
-          Set<ResourceRecord> newResults = DNSLookupService.getResults(nsServerNode, 0);
-          if (!newResults.isEmpty()){
-            resourceRecords.addAll(newResults);
-            break;
-          }
+          if (nameserver.getType() == RecordType.NS && nameserver.getNode().getName() == referralZone)
+            resourceRecords.add(nameserver);
         }
       }
-      return resourceRecords; 
+      return new Response(resourceRecords, referralZone, answers, RCODE, null, null);
     }
+    // neither a referral nor an authoritative answer: only usable if it has answers
+    return answers.isEmpty() ? Response.FAILURE : new Response(null, null, answers, RCODE, null, null);
   }
 
-    
+  /**
+   * Returns the name at the end of the CNAME chain that starts at a name in an answer section.
+   *
+   * @param name    Name queried
+   * @param answers Records of the answer section
+   * @return The last name of the chain, or the name queried if it has no CNAME record.
+   */
+  private static DomainName aliasTarget(DomainName name, List<ResourceRecord> answers) {
+    for (int i = 0; i < answers.size(); i++) {
+      boolean followed = false;
+      for (ResourceRecord answer : answers) {
+        if (answer.getType() == RecordType.CNAME && answer.getNode().getName().equals(name)) {
+          name = answer.getNameResult();
+          followed = true;
+          break;
+        }
+      }
+      if (!followed)
+        break;
+    }
+    return name;
+  }
 
+  /**
+   * Caches a negative response (RFC 2308). The response applies to the name at the end of
+   * any CNAME chain in the answer section, and is cached for the TTL of the SOA record in
+   * the authority section, or the SOA MINIMUM field if lower. Responses without a SOA record
+   * are not cached, nor are those whose negative TTL is 0, but the negative answer is still
+   * returned to the lookup.
+   *
+   * @param node Host name and record type of the query.
+   * @param nameError true if the server returned NXDOMAIN, false for an empty (NODATA) answer.
+   * @param name Name at the end of the CNAME chain of the answer section.
+   * @param answers Records in the answer section of the response.
+   * @param nameServers Records in the authority section of the response.
+   * @param cache Cache where the negative answer is added.
+   * @param tracing Whether the negative answer is printed.
+   * @return The negative answer, with its SOA record (if any) set to the negative TTL.
+   */
+  private static Response cacheNegativeResponse(DNSNode node, boolean nameError, DomainName name, List<ResourceRecord> answers, List<ResourceRecord> nameServers, DNSCache cache, boolean tracing) {
+    ResourceRecord soa = null;
+    for (ResourceRecord nameServer : nameServers) {
+      if (nameServer.getType() == RecordType.SOA) {
+        String[] fields = nameServer.getTextResult().split(" ");
+        long ttl = Math.max(0, Math.min(nameServer.getTTL(), Long.parseLong(fields[fields.length - 1])));
+        cache.addNegativeResult(new DNSNode(name, node.getType()), ttl, nameError, nameServer);
+        soa = new ResourceRecord(nameServer.getNode(), System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl),
+                nameServer.getTextResult(), null, null);
+        if (tracing)
+          System.out.println("  Negative answer (" + (nameError ? "NXDOMAIN" : "NODATA") + ") cached for " + ttl + "s");
+        break;
+      }
+    }
+    return new Response(null, null, answers, nameError ? 3 : 0, soa, name);
+  }
+
+    /**
+     * What a response means for the lookup that sent the query. A referral gives the name servers
+     * of a subzone, to be queried next. An answer ends the lookup: it has the records of the
+     * answer section, or a negative answer (NXDOMAIN or NODATA) for the name at the end of any
+     * CNAME chain in them. Its records and negative answer are also cached, unless their TTL is 0.
+     * A failure means the server could not answer (an error RCODE such as SERVFAIL or REFUSED, a
+     * response that is neither an answer nor a referral, or a malformed message), and the query
+     * should be sent to another server of the zone.
+     */
+    public static final class Response {
+      static final Response FAILURE = new Response(null, null, Collections.emptyList(), 2, null, null);
+
+      private final Set<ResourceRecord> referral;
+      private final DomainName referralZone;
+      private final List<ResourceRecord> answers;
+      private final int rcode;
+      private final ResourceRecord soa;
+      private final DomainName negativeName;
+
+      private Response(Set<ResourceRecord> referral, DomainName referralZone, List<ResourceRecord> answers, int rcode,
+                       ResourceRecord soa, DomainName negativeName) {
+        this.referral = referral;
+        this.referralZone = referralZone;
+        this.answers = answers;
+        this.rcode = rcode;
+        this.soa = soa;
+        this.negativeName = negativeName;
+      }
 
+      /** Returns the glue address records or NS records of a referral, or null if the response
+       * is not a referral. */
+      public Set<ResourceRecord> getReferral() {
+        return referral;
+      }
+
+      /** Returns the zone delegated by a referral, or null if the response is not a referral. */
+      public DomainName getReferralZone() {
+        return referralZone;
+      }
+
+      /** Returns the records of the answer section. */
+      public List<ResourceRecord> getAnswers() {
+        return answers;
+      }
+
+      /** Returns the RCODE of the response: 0 (NOERROR) or 3 (NXDOMAIN) unless it is a failure. */
+      public int getRcode() {
+        return rcode;
+      }
+
+      /** Returns the name a negative answer applies to, after following the CNAME records of the
+       * answer section, or null if the response is not a negative answer. */
+      public DomainName getNegativeName() {
+        return negativeName;
+      }
+
+      /** Returns the SOA record of a negative answer, with the negative TTL, or null. */
+      public ResourceRecord getSoa() {
+        return soa;
+      }
+
+      /** Returns true if the server failed to answer the query. */
+      public boolean isFailure() {
+        return this == FAILURE;
+      }
+    }
 
     /**
      * Formats and prints record details (for when trace is on)
      *
-     * @param record The record to be printed
-     * @param rtype  The type of the record to be printed
+     * @param record  The record to be printed
+     * @param tracing Whether the record should be printed
      */
-    private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
-        if (verboseTracing)
+    private static void verbosePrintResourceRecord(ResourceRecord record, boolean tracing) {
+        if (tracing)
             System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(),
                     record.getTTL(),
-                    record.getType() == RecordType.OTHER ? rtype : record.getType(),
+                    record.getType(),
                     record.getTextResult());
     }
 
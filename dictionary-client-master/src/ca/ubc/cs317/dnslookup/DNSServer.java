@@ -0,0 +1,741 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Caching DNS server: answers the queries of clients (stub resolvers) over UDP and TCP, from the
+ * cache of a Resolver or, on a miss, by letting the resolver look the name up iteratively.
+ *
+ * The server runs a fixed number of worker threads, each with its own selector, its own receive
+ * and send buffers, and its own shard of the cache (see CacheShard). Where the platform supports
+ * SO_REUSEPORT, each worker also has its own UDP socket and TCP listening socket, all bound to the
+ * same port, and the kernel spreads clients over them, so workers share nothing on the path of a
+ * cached answer. Otherwise all workers wait for queries on the same UDP socket, and TCP
+ * connections are accepted by the first worker and handed to the workers in turn. Each TCP
+ * connection is only used from its worker. A query answered from the cache is encoded and sent by
+ * the worker that received it, in the worker's buffers. A query that needs a lookup is answered
+ * when the lookup completes, from the thread that completes it, so workers never wait for
+ * upstream servers. The number of lookups in progress is limited, and a query that needs a lookup
+ * while the limit is reached gets a SERVFAIL response right away, so a flood of queries for
+ * uncached names cannot pile up lookups and memory without bound.
+ *
+ * Responses follow the query: the question is repeated exactly as received (keeping the case of
+ * the name, which some clients randomize as a defence against spoofing), the RD flag and opcode
+ * are copied, RA is set, and a query with an EDNS0 OPT record gets one back. UDP responses are limited to 512 bytes, or to the payload size
+ * advertised by the client, and are truncated (TC flag) beyond that; TCP responses are not
+ * limited. Only standard queries (opcode 0) are answered, and other opcodes get a NOTIMP
+ * response. Queries for record types the resolver cannot look up (types other than those of
+ * RecordType, including meta types such as ANY) get a REFUSED response, and malformed queries a
+ * FORMERR response.
+ *
+ * A response encoded from the cache is kept with the cached records it holds (see
+ * EncodedResponse), and sent again to later queries for the same name and type with only its ID,
+ * flags, question and TTLs updated, until the records change.
+ */
+public class DNSServer implements Closeable {
+
+    private static final int MAX_MESSAGE_SIZE = 65535;
+    private static final int PLAIN_UDP_SIZE = 512;
+    private static final int MAX_UDP_SIZE = 4096;
+    private static final int MAX_CNAME_CHAIN = 10;
+    private static final int SHARD_CAPACITY = 4096;
+    private static final int MAX_POOLED_RESPONSE_BUFFERS = 64;
+    private static final int DEFAULT_MAX_PENDING_LOOKUPS = 256;
+    private static final long TCP_IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final Resolver resolver;
+    private final DNSCache cache;
+    private final boolean reusePort;
+    private final List<NetworkChannel> channels = new ArrayList<>();
+    private final Worker[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final BufferPool responseBuffers = new BufferPool(MAX_MESSAGE_SIZE, MAX_POOLED_RESPONSE_BUFFERS, true);
+    private final Semaphore pendingLookups;
+    private volatile boolean closed;
+
+    private final LongAdder queryCount = new LongAdder();
+    private final LongAdder cacheAnswerCount = new LongAdder();
+    private final LongAdder encodedAnswerCount = new LongAdder();
+    private final LongAdder failureCount = new LongAdder();
+
+    /** Binds the UDP and TCP sockets of the server and starts its workers, with the default limit
+     * on lookups in progress.
+     *
+     * @param resolver    Resolver used to answer queries; its cache is used for answers that
+     *                    need no lookup.
+     * @param address     Local address and port to listen on. Port 0 chooses a free port, which
+     *                    is then returned by getLocalAddress().
+     * @param workerCount Number of worker threads.
+     * @throws IOException if the sockets could not be bound.
+     */
+    public DNSServer(Resolver resolver, InetSocketAddress address, int workerCount) throws IOException {
+        this(resolver, address, workerCount, DEFAULT_MAX_PENDING_LOOKUPS);
+    }
+
+    /** Binds the UDP and TCP sockets of the server and starts its workers. With more than one
+     * worker, each worker binds its own sockets if the platform supports SO_REUSEPORT.
+     *
+     * @param resolver           Resolver used to answer queries; its cache is used for answers
+     *                           that need no lookup.
+     * @param address            Local address and port to listen on. Port 0 chooses a free port,
+     *                           which is then returned by getLocalAddress().
+     * @param workerCount        Number of worker threads.
+     * @param maxPendingLookups  Maximum number of lookups in progress for queries that missed the
+     *                           cache; further misses are answered with SERVFAIL.
+     * @throws IOException if the sockets could not be bound.
+     */
+    public DNSServer(Resolver resolver, InetSocketAddress address, int workerCount, int maxPendingLookups)
+            throws IOException {
+        if (maxPendingLookups < 1)
+            throw new IllegalArgumentException("The limit on pending lookups must be positive");
+        this.resolver = resolver;
+        this.pendingLookups = new Semaphore(maxPendingLookups);
+        this.cache = resolver.getCache();
+        this.reusePort = workerCount > 1 && isReusePortSupported();
+        this.workers = new Worker[workerCount];
+        try {
+            for (int i = 0; i < workerCount; i++) {
+                DatagramChannel udpChannel = i == 0 ? null : workers[0].udpChannel;
+                ServerSocketChannel tcpChannel = null;
+                if (i == 0 || reusePort) {
+                    udpChannel = bindUdp(address);
+                    // workers after the first bind to the port chosen for the first, if it was 0
+                    address = (InetSocketAddress) udpChannel.getLocalAddress();
+                    tcpChannel = bindTcp(address);
+                }
+                workers[i] = new Worker(i, udpChannel, tcpChannel);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (Worker worker : workers)
+            worker.thread.start();
+    }
+
+    private static boolean isReusePortSupported() {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private DatagramChannel bindUdp(InetSocketAddress address) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channels.add(channel);
+        if (reusePort)
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        channel.bind(address);
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    private ServerSocketChannel bindTcp(InetSocketAddress address) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channels.add(channel);
+        if (reusePort)
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        channel.bind(address);
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /** Returns the local address and port the server listens on. */
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) workers[0].udpChannel.getLocalAddress();
+    }
+
+    /** Returns true if each worker has its own sockets, bound with SO_REUSEPORT. */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /** Returns the number of queries received, over UDP and TCP. */
+    public long getQueryCount() {
+        return queryCount.sum();
+    }
+
+    /** Returns the number of queries answered from the cache, without a lookup. */
+    public long getCacheAnswerCount() {
+        return cacheAnswerCount.sum();
+    }
+
+    /** Returns the number of queries answered from the cache with a response encoded for an
+     * earlier query.
+     */
+    public long getEncodedAnswerCount() {
+        return encodedAnswerCount.sum();
+    }
+
+    /** Returns the number of queries answered with SERVFAIL because the lookup failed, because
+     * too many lookups were in progress, or because of an error while answering them.
+     */
+    public long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    /** Closes the sockets and stops the workers. Lookups in progress are not answered. The
+     * resolver is not closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Worker worker : workers) {
+            if (worker != null) {
+                try {
+                    worker.selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        for (NetworkChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** A query received from a client, with what is needed to answer it. */
+    private static final class ClientQuery {
+        final int id;
+        final int opcode;
+        final boolean recursionDesired;
+        final DNSNode node;
+        final byte[] question;
+        final int ednsPayloadSize;
+
+        ClientQuery(int id, int opcode, boolean recursionDesired, DNSNode node, byte[] question, int ednsPayloadSize) {
+            this.id = id;
+            this.opcode = opcode;
+            this.recursionDesired = recursionDesired;
+            this.node = node;
+            this.question = question;
+            this.ednsPayloadSize = ednsPayloadSize;
+        }
+
+        /** Returns the largest response the client accepts over UDP. */
+        int maxUdpSize() {
+            return ednsPayloadSize < 0 ? PLAIN_UDP_SIZE : Math.max(PLAIN_UDP_SIZE, Math.min(ednsPayloadSize, MAX_UDP_SIZE));
+        }
+    }
+
+    /** Decodes the header and question of a query. Returns null if the message is not a query or
+     * is too short to be answered at all; throws MalformedMessageException if the header is
+     * valid but the rest is not, so a FORMERR response can be sent. The question is also kept as
+     * received, to be repeated in the response.
+     */
+    private static ClientQuery decodeQuery(ByteBuffer message) {
+        if (message.remaining() < 12)
+            return null;
+        DNSMessageDecoder decoder = new DNSMessageDecoder(message);
+        if (decoder.isResponse())
+            return null;
+        if (decoder.getQuestionCount() != 1)
+            throw new DNSMessageDecoder.MalformedMessageException("Query must have exactly one question");
+        DNSNode node = decoder.readQuestion();
+        DomainName name = node.getName();
+        // the question name is the first name in the message, so a pointer could only lead into the
+        // header or forward, never to an earlier name
+        int start = message.position() + 12;
+        if (!name.matchesWire(message, start))
+            throw new DNSMessageDecoder.MalformedMessageException("Compressed question name");
+        byte[] question = new byte[name.getWireLength() + 4];
+        message.get(start, question);
+        for (int i = 0; i < decoder.getAnswerCount() + decoder.getAuthorityCount() + decoder.getAdditionalCount(); i++)
+            decoder.readRecord();
+        return new ClientQuery(decoder.getID(), decoder.getOpcode(), decoder.isRecursionDesired(), node, question,
+                decoder.getEdnsPayloadSize());
+    }
+
+    /** Encodes an error response to a query, with the question if it could be decoded. */
+    private static ByteBuffer encodeError(ByteBuffer out, int maxSize, ClientQuery query, int id, int rcode) {
+        DNSMessageEncoder encoder = new DNSMessageEncoder(out, maxSize, query != null && query.ednsPayloadSize >= 0 ? MAX_UDP_SIZE : 0);
+        encoder.writeHeader(id, query == null ? 0 : query.opcode, query != null && query.recursionDesired, rcode);
+        if (query != null)
+            encoder.writeQuestion(query.node, query.question);
+        return encoder.finish();
+    }
+
+    /** Encodes the response to a query from the entry cached for its question, or copies the
+     * response encoded for an earlier query from the entry. A new response is attached to the
+     * entry for later queries.
+     */
+    private ByteBuffer encodeCachedAnswer(ByteBuffer out, int maxSize, ClientQuery query, DNSCache.CachedEntry entry) {
+        boolean edns = query.ednsPayloadSize >= 0;
+        EncodedResponse encoded = EncodedResponse.find(entry, query.node.getType(), edns, maxSize);
+        if (encoded != null) {
+            encodedAnswerCount.increment();
+            return encoded.writeTo(out, query.id, query.recursionDesired, query.question);
+        }
+        DNSMessageEncoder encoder = encodeAnswer(out, maxSize, query, LookupResult.of(entry));
+        ByteBuffer response = encoder.finish();
+        EncodedResponse.attach(entry, new EncodedResponse(response, encoder, query.node.getType(), edns, maxSize));
+        return response;
+    }
+
+    /** Encodes the response to a query from the results of a lookup, with their response code.
+     * Records of the names the question is an alias for are preceded by the CNAME records leading
+     * to them, and a negative answer has the SOA record of its zone in the authority section
+     * (RFC 2308).
+     *
+     * @param out     Buffer where the response is written.
+     * @param maxSize Maximum size of the response.
+     * @param query   Query being answered.
+     * @param result  Results of the lookup.
+     * @return The encoder of the response, not finished yet.
+     */
+    private DNSMessageEncoder encodeAnswer(ByteBuffer out, int maxSize, ClientQuery query, LookupResult result) {
+        List<ResourceRecord> cnames = new ArrayList<>();
+        DomainName name = query.node.getName();
+        Set<ResourceRecord> results = result.getRecords();
+        if (!result.isFailure() && query.node.getType() != RecordType.CNAME) {
+            // an empty answer may be the negative answer of the target of an alias
+            boolean alias = results.isEmpty();
+            for (ResourceRecord record : results)
+                alias |= !record.getNode().getName().equals(name);
+            // the lookup was already counted, so the CNAME records are read without counting hits
+            for (int i = 0; alias && i < MAX_CNAME_CHAIN; i++) {
+                DNSCache.CachedEntry cname = cache.peekEntry(new DNSNode(name, RecordType.CNAME));
+                if (cname == null || cname.records().isEmpty())
+                    break;
+                ResourceRecord record = cname.records().iterator().next();
+                cnames.add(record);
+                name = record.getNameResult();
+            }
+        }
+        return encodeAnswer(out, maxSize, query, cnames, result);
+    }
+
+    /** Encodes the response to a query from the CNAME records leading from the name of its
+     * question to the name answered, and the results for that name.
+     *
+     * @param out     Buffer where the response is written.
+     * @param maxSize Maximum size of the response.
+     * @param query   Query being answered.
+     * @param cnames  CNAME records leading to the name answered, in order, or an empty list.
+     * @param result  Results for the name answered.
+     * @return The encoder of the response, not finished yet.
+     */
+    private DNSMessageEncoder encodeAnswer(ByteBuffer out, int maxSize, ClientQuery query, List<ResourceRecord> cnames,
+                                           LookupResult result) {
+        Set<ResourceRecord> results = result.getRecords();
+        DNSMessageEncoder encoder = new DNSMessageEncoder(out, maxSize, query.ednsPayloadSize >= 0 ? MAX_UDP_SIZE : 0);
+        encoder.writeHeader(query.id, query.opcode, query.recursionDesired, result.getRcode());
+        encoder.writeQuestion(query.node, query.question);
+        for (ResourceRecord record : cnames)
+            if (!encoder.addAnswer(record))
+                return encoder;
+        for (ResourceRecord record : results)
+            if (record.getType() != RecordType.OTHER && !encoder.addAnswer(record))
+                return encoder;
+        if (results.isEmpty() && result.getSoa() != null)
+            encoder.addAuthority(result.getSoa());
+        return encoder;
+    }
+
+    /** Encodes the response to a query for an alias from the cache, if the CNAME records of the
+     * alias, those of the names they lead to, and the results of the last name are all cached,
+     * as Resolver.followAliases would find them, or copies the response encoded for an earlier
+     * query from the entry of the CNAME records of the alias. A new response is attached to that
+     * entry, with the other entries it was encoded from. A single hit is counted, on the CNAME
+     * records of the alias; the other entries are counted as reads.
+     *
+     * @return The response, or null if part of the chain is not cached.
+     */
+    private ByteBuffer encodeCachedAlias(ByteBuffer out, int maxSize, ClientQuery query, CacheShard shard) {
+        DNSNode cnameNode = new DNSNode(query.node.getName(), RecordType.CNAME);
+        DNSCache.CachedEntry cnameEntry = shard.peekEntry(cnameNode);
+        if (cnameEntry == null || cnameEntry.records().size() != 1)
+            return null;
+        boolean edns = query.ednsPayloadSize >= 0;
+        EncodedResponse encoded = EncodedResponse.find(cnameEntry, query.node.getType(), edns, maxSize);
+        if (encoded != null) {
+            shard.recordHit(cnameNode, cnameEntry);
+            for (int i = 0; i < encoded.getDependencyCount(); i++)
+                shard.recordRead(encoded.getDependencyNode(i), encoded.getDependency(i));
+            encodedAnswerCount.increment();
+            return encoded.writeTo(out, query.id, query.recursionDesired, query.question);
+        }
+
+        List<ResourceRecord> cnames = new ArrayList<>();
+        List<DNSNode> nodes = new ArrayList<>();
+        List<DNSCache.CachedEntry> entries = new ArrayList<>();
+        DNSCache.CachedEntry entry = cnameEntry;
+        while (true) {
+            ResourceRecord cname = entry.records().iterator().next();
+            cnames.add(cname);
+            DNSNode target = new DNSNode(cname.getNameResult(), query.node.getType());
+            entry = shard.peekEntry(target);
+            if (entry != null) {
+                nodes.add(target);
+                entries.add(entry);
+                break;
+            }
+            if (cnames.size() == MAX_CNAME_CHAIN)
+                return null;
+            DNSNode next = new DNSNode(cname.getNameResult(), RecordType.CNAME);
+            entry = shard.peekEntry(next);
+            if (entry == null || entry.records().size() != 1)
+                return null;
+            nodes.add(next);
+            entries.add(entry);
+        }
+
+        DNSMessageEncoder encoder = encodeAnswer(out, maxSize, query, cnames, LookupResult.of(entry));
+        ByteBuffer response = encoder.finish();
+        EncodedResponse.attach(cnameEntry,
+                new EncodedResponse(response, encoder, query.node.getType(), edns, maxSize, nodes, entries));
+        shard.recordHit(cnameNode, cnameEntry);
+        for (int i = 0; i < nodes.size(); i++)
+            shard.recordRead(nodes.get(i), entries.get(i));
+        return response;
+    }
+
+    /** Answers a query. If the results are cached (for an alias, along with the whole CNAME chain
+     * leading to them), or the query is invalid, the response is encoded, or copied from an
+     * encoded response, into the worker's buffer and sent right away, from the calling thread;
+     * otherwise a lookup is started, if fewer lookups than the limit are in progress, and the
+     * response is encoded into a pooled buffer and sent, from the thread completing the lookup,
+     * once it completes. Over the limit, a SERVFAIL response is sent right away.
+     *
+     * @param message Query received, from its position to its limit.
+     * @param shard   Cache shard of the worker.
+     * @param out     Buffer of the worker, for an immediate response.
+     * @param maxSize Maximum size of a response sent through the transport (UDP or TCP); UDP
+     *                responses are further limited by the size advertised by the client.
+     * @param udp     true if the query was received over UDP.
+     * @param sender  Sends the response.
+     * @return true if a response was sent or will be sent, false if the message is ignored.
+     */
+    private boolean answer(ByteBuffer message, CacheShard shard, ByteBuffer out, int maxSize, boolean udp,
+                           ResponseSender sender) {
+        queryCount.increment();
+        ClientQuery query;
+        try {
+            query = decodeQuery(message);
+        } catch (DNSMessageDecoder.MalformedMessageException e) {
+            int id = message.getShort(message.position()) & 0xFFFF;
+            sender.send(encodeError(out, Math.min(maxSize, PLAIN_UDP_SIZE), null, id, DNSMessageEncoder.RCODE_FORMAT_ERROR));
+            return true;
+        }
+        if (query == null)
+            return false;
+        int size = udp ? Math.min(maxSize, query.maxUdpSize()) : maxSize;
+        if (query.opcode != 0) {
+            sender.send(encodeError(out, size, query, query.id, DNSMessageEncoder.RCODE_NOT_IMPLEMENTED));
+            return true;
+        }
+        if (query.node.getType() == RecordType.OTHER) {
+            // a valid type the resolver cannot look up, not an unimplemented operation
+            sender.send(encodeError(out, size, query, query.id, DNSMessageEncoder.RCODE_REFUSED));
+            return true;
+        }
+
+        CompletableFuture<LookupResult> lookup = null;
+        ByteBuffer response = null;
+        try {
+            DNSCache.CachedEntry entry = shard.getCachedEntry(query.node);
+            if (entry != null) {
+                cacheAnswerCount.increment();
+                response = encodeCachedAnswer(out, size, query, entry);
+            } else if (query.node.getType() != RecordType.CNAME
+                    && (response = encodeCachedAlias(out, size, query, shard)) != null) {
+                cacheAnswerCount.increment();
+            } else if (pendingLookups.tryAcquire()) {
+                try {
+                    lookup = resolver.lookupAsync(query.node);
+                } finally {
+                    if (lookup == null)
+                        pendingLookups.release();
+                }
+            } else {
+                // too many lookups in progress: fail fast, the client will retry
+                response = encodeFailure(out, size, query);
+            }
+        } catch (RuntimeException e) {
+            response = encodeFailure(out.clear(), size, query);
+        }
+        if (response != null) {
+            sender.send(response);
+            return true;
+        }
+        lookup.whenComplete((result, error) -> {
+            pendingLookups.release();
+            if (closed)
+                return;
+            LookupResult answer = error == null ? result : LookupResult.SERVER_FAILURE;
+            if (answer.isFailure())
+                failureCount.increment();
+            // TCP responses may take up to 64 KB, so buffers are pooled rather than allocated per lookup
+            ByteBuffer buffer = responseBuffers.acquire();
+            ByteBuffer encoded;
+            try {
+                encoded = encodeAnswer(buffer, size, query, answer).finish();
+            } catch (RuntimeException e) {
+                encoded = encodeFailure(buffer.clear(), size, query);
+            }
+            sender.send(encoded);
+            responseBuffers.release(buffer);
+        });
+        return true;
+    }
+
+    /** Encodes a SERVFAIL response to a query that could not be answered because of an error in
+     * the server, such as a cached record that cannot be encoded. The error is counted as a
+     * failure, and only affects the query being answered.
+     */
+    private ByteBuffer encodeFailure(ByteBuffer out, int maxSize, ClientQuery query) {
+        failureCount.increment();
+        return encodeError(out, maxSize, query, query.id, DNSMessageEncoder.RCODE_SERVER_FAILURE);
+    }
+
+    /** Sends a response to the client a query came from. The buffer holding the response may be
+     * reused as soon as send returns.
+     */
+    private interface ResponseSender {
+        void send(ByteBuffer response);
+    }
+
+    /** A worker thread, with its selector, its sockets, its buffers, its cache shard, and the TCP
+     * connections it serves.
+     */
+    private final class Worker {
+        final Selector selector;
+        final Thread thread;
+        final DatagramChannel udpChannel;
+        final ServerSocketChannel tcpChannel;     // null if connections are accepted by another worker
+        final CacheShard shard = new CacheShard(cache, SHARD_CAPACITY);
+        final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE);
+        final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE);
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final Set<ClientConnection> connections = new HashSet<>();
+
+        Worker(int index, DatagramChannel udpChannel, ServerSocketChannel tcpChannel) throws IOException {
+            this.udpChannel = udpChannel;
+            this.tcpChannel = tcpChannel;
+            selector = Selector.open();
+            udpChannel.register(selector, SelectionKey.OP_READ);
+            if (tcpChannel != null)
+                tcpChannel.register(selector, SelectionKey.OP_ACCEPT);
+            thread = new Thread(this::run, "dns-server-" + index);
+            thread.setDaemon(true);
+        }
+
+        /** Runs a task in this worker's thread. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void run() {
+            long nextSweep = System.nanoTime();
+            try {
+                while (!closed) {
+                    selector.select(SWEEP_INTERVAL_MILLIS);
+                    for (Runnable task; (task = tasks.poll()) != null; )
+                        task.run();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.channel() == udpChannel)
+                            receiveUdp();
+                        else if (key.channel() == tcpChannel)
+                            accept();
+                        else
+                            ((ClientConnection) key.attachment()).handle(key);
+                    }
+
+                    long now = System.nanoTime();
+                    if (now - nextSweep >= 0) {
+                        for (ClientConnection connection : new ArrayList<>(connections))
+                            if (connection.pending == 0 && now - connection.lastActivity > TCP_IDLE_TIMEOUT_NANOS)
+                                connection.close();
+                        nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                // Server closed
+            } finally {
+                for (ClientConnection connection : new ArrayList<>(connections))
+                    connection.close();
+            }
+        }
+
+        private void receiveUdp() throws IOException {
+            while (true) {
+                receiveBuffer.clear();
+                SocketAddress client = udpChannel.receive(receiveBuffer);
+                if (client == null)
+                    return;
+                receiveBuffer.flip();
+                sendBuffer.clear();
+                answer(receiveBuffer, shard, sendBuffer, MAX_UDP_SIZE, true, response -> sendUdp(response, client));
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = tcpChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                if (reusePort) {
+                    register(channel);
+                    continue;
+                }
+                SocketChannel accepted = channel;
+                Worker worker = workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+                worker.execute(() -> worker.register(accepted));
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                ClientConnection connection = new ClientConnection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.add(connection);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void sendUdp(ByteBuffer response, SocketAddress client) {
+            try {
+                udpChannel.send(response, client);
+            } catch (IOException ignored) {
+                // the client will retry
+            }
+        }
+    }
+
+    /** A TCP connection from a client. Queries are read as they arrive (each preceded by its
+     * length) and may be answered in any order, as their lookups complete.
+     */
+    private final class ClientConnection {
+        final Worker worker;
+        final SocketChannel channel;
+        final ByteBuffer lengthBuffer = ByteBuffer.allocate(2);
+        final Deque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        ByteBuffer queryBuffer;
+        SelectionKey key;
+        int pending;
+        long lastActivity = System.nanoTime();
+        boolean closed;
+
+        ClientConnection(Worker worker, SocketChannel channel) {
+            this.worker = worker;
+            this.channel = channel;
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                if (key.isReadable())
+                    read();
+                if (key.isValid() && key.isWritable())
+                    write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void read() throws IOException {
+            while (!closed) {
+                ByteBuffer buffer = queryBuffer == null ? lengthBuffer : queryBuffer;
+                if (channel.read(buffer) < 0)
+                    throw new EOFException();
+                if (buffer.hasRemaining())
+                    return;
+                lastActivity = System.nanoTime();
+                if (queryBuffer == null) {
+                    lengthBuffer.flip();
+                    queryBuffer = ByteBuffer.allocate(lengthBuffer.getShort() & 0xFFFF);
+                    lengthBuffer.clear();
+                    continue;
+                }
+
+                queryBuffer.flip();
+                worker.sendBuffer.clear();
+                pending++;
+                if (!answer(queryBuffer, worker.shard, worker.sendBuffer, MAX_MESSAGE_SIZE - 2, false, this::respond))
+                    pending--;
+                queryBuffer = null;
+            }
+        }
+
+        /** Queues a response for writing, from the worker thread or from the thread that
+         * completed a lookup. */
+        private void respond(ByteBuffer response) {
+            ByteBuffer message = ByteBuffer.allocate(response.remaining() + 2);
+            message.putShort((short) response.remaining()).put(response).flip();
+            if (Thread.currentThread() == worker.thread)
+                send(message);
+            else
+                worker.execute(() -> send(message));
+        }
+
+        private void send(ByteBuffer message) {
+            pending--;
+            if (closed)
+                return;
+            writeQueue.add(message);
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void write() throws IOException {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer message = writeQueue.peek();
+                channel.write(message);
+                if (message.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.poll();
+            }
+            lastActivity = System.nanoTime();
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            worker.connections.remove(this);
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+}
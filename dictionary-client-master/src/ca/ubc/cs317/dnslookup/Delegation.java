@@ -0,0 +1,42 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/** A zone cut known to the cache: a zone, the names of its name servers and the addresses known
+ * for them. A lookup for any name in the zone may start by querying one of these addresses
+ * instead of a root server.
+ */
+public final class Delegation {
+
+    private final DomainName zone;
+    private final Set<DomainName> nameServers;
+    private final List<InetAddress> addresses;
+
+    Delegation(DomainName zone, Set<DomainName> nameServers, List<InetAddress> addresses) {
+        this.zone = zone;
+        this.nameServers = Collections.unmodifiableSet(nameServers);
+        this.addresses = Collections.unmodifiableList(addresses);
+    }
+
+    public DomainName getZone() {
+        return zone;
+    }
+
+    /** Returns the names of all name servers of the zone, including those with no known address. */
+    public Set<DomainName> getNameServers() {
+        return nameServers;
+    }
+
+    /** Returns the known addresses of the name servers of the zone. */
+    public List<InetAddress> getAddresses() {
+        return addresses;
+    }
+
+    @Override
+    public String toString() {
+        return (zone == DomainName.ROOT ? "." : zone.toString()) + " " + nameServers + " " + addresses;
+    }
+}
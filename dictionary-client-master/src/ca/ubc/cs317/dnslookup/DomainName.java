@@ -0,0 +1,242 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/** A fully-qualified domain name in canonical form. Names are case-insensitive, so a domain name
+ * is stored in lower case, in the uncompressed wire format used in DNS messages (a length byte
+ * followed by the characters of each label, ending with a zero byte). A trailing dot in the
+ * textual form is ignored, and the root name is represented by an empty string.
+ *
+ * Domain names are interned: there is a single instance for each distinct name in use, held in a
+ * weak pool so that names no longer referenced anywhere are reclaimed. Names can then be compared
+ * by reference, and a name decoded from thousands of responses takes memory only once.
+ */
+public final class DomainName implements Comparable<DomainName>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int STRIPES = 32;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Map<DomainName, WeakReference<DomainName>>[] pool = new Map[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++)
+            pool[i] = new WeakHashMap<>();
+    }
+
+    /** The root name, written as an empty string. */
+    public static final DomainName ROOT = intern(new DomainName(new byte[]{0}, ""));
+
+    private final byte[] wire;
+    private final int hash;
+    private transient String text;
+
+    private DomainName(byte[] wire, String text) {
+        this.wire = wire;
+        this.hash = Arrays.hashCode(wire);
+        this.text = text;
+    }
+
+    /** Returns the canonical domain name for a textual name.
+     *
+     * @param name Domain name, with labels separated by dots, in any case, with or without a
+     *             trailing dot. The root name is "" or ".".
+     * @return The interned domain name.
+     * @throws IllegalArgumentException if the name has an empty label (as in "a..b" or ".a"), a
+     *                                  character that is not ASCII (internationalized names must
+     *                                  be given in their ASCII form, "xn--..."), a label longer
+     *                                  than 63 characters, or is longer than 255 bytes.
+     */
+    public static DomainName of(String name) {
+        if (name.equals("."))
+            return ROOT;
+        byte[] wire = new byte[name.length() + 2];
+        int ptr = 0;
+        int labelStart = 0;
+        while (labelStart < name.length()) {
+            int labelEnd = name.indexOf('.', labelStart);
+            if (labelEnd < 0)
+                labelEnd = name.length();
+            int labelLength = labelEnd - labelStart;
+            if (labelLength == 0)
+                throw new IllegalArgumentException("Empty label in " + name);
+            if (labelLength > MAX_LABEL_LENGTH)
+                throw new IllegalArgumentException("Label longer than 63 characters in " + name);
+            wire[ptr++] = (byte) labelLength;
+            for (int i = labelStart; i < labelEnd; i++) {
+                char c = name.charAt(i);
+                if (c > 0x7F)
+                    throw new IllegalArgumentException("Character that is not ASCII in " + name);
+                wire[ptr++] = toLowerCase((byte) c);
+            }
+            labelStart = labelEnd + 1;
+        }
+        wire[ptr++] = 0;
+        return fromWire(wire, ptr);
+    }
+
+    /** Returns the canonical domain name for a name in uncompressed wire format. The array is not
+     * retained, so the caller may reuse it.
+     *
+     * @param wire   Array holding the name, starting at index 0. Labels may be in any case; the
+     *               array is lower-cased in place.
+     * @param length Length of the name in the array, including the final zero byte.
+     * @return The interned domain name.
+     * @throws IllegalArgumentException if the name is longer than 255 bytes.
+     */
+    static DomainName fromWire(byte[] wire, int length) {
+        if (length > MAX_NAME_LENGTH)
+            throw new IllegalArgumentException("Name longer than 255 bytes");
+        for (int i = 0; i < length - 1; i += (wire[i] & 0xFF) + 1)
+            for (int j = i + 1; j <= i + (wire[i] & 0xFF); j++)
+                wire[j] = toLowerCase(wire[j]);
+
+        return intern(new DomainName(Arrays.copyOf(wire, length), null));
+    }
+
+    private static DomainName intern(DomainName name) {
+        Map<DomainName, WeakReference<DomainName>> stripe = pool[(name.hash & 0x7FFFFFFF) % STRIPES];
+        synchronized (stripe) {
+            WeakReference<DomainName> existing = stripe.get(name);
+            DomainName canonical = existing == null ? null : existing.get();
+            if (canonical != null)
+                return canonical;
+            stripe.put(name, new WeakReference<>(name));
+            return name;
+        }
+    }
+
+    /** Returns the number of labels in this name (zero for the root).
+     *
+     * @return The number of labels.
+     */
+    public int getLabelCount() {
+        int count = 0;
+        for (int i = 0; wire[i] != 0; i += (wire[i] & 0xFF) + 1)
+            count++;
+        return count;
+    }
+
+    /** Returns the name obtained by removing the first label of this name, for example "example.com"
+     * for "www.example.com".
+     *
+     * @return The parent name, or null if this name is the root.
+     */
+    public DomainName getParent() {
+        if (wire[0] == 0)
+            return null;
+        int skip = (wire[0] & 0xFF) + 1;
+        return intern(new DomainName(Arrays.copyOfRange(wire, skip, wire.length), null));
+    }
+
+    /** Returns true if this name is equal to another name or is a subdomain of it. Every name is a
+     * subdomain of the root.
+     *
+     * @param ancestor Name to be compared with.
+     * @return true if this name ends with all labels of the ancestor.
+     */
+    public boolean isSubdomainOf(DomainName ancestor) {
+        int offset = wire.length - ancestor.wire.length;
+        if (offset < 0)
+            return false;
+        // the suffix must start at a label boundary
+        int i = 0;
+        while (i < offset)
+            i += (wire[i] & 0xFF) + 1;
+        if (i != offset)
+            return false;
+        for (int j = 0; j < ancestor.wire.length; j++)
+            if (wire[offset + j] != ancestor.wire[j])
+                return false;
+        return true;
+    }
+
+    /** Returns the length of this name in wire format, including the final zero byte. */
+    public int getWireLength() {
+        return wire.length;
+    }
+
+    /** Returns true if a buffer holds this name, uncompressed and in any case, at an index.
+     *
+     * @param buffer Buffer holding a name in wire format.
+     * @param index  Index of the name in the buffer.
+     */
+    boolean matchesWire(ByteBuffer buffer, int index) {
+        if (buffer.limit() - index < wire.length)
+            return false;
+        for (int i = 0; i < wire.length; i++)
+            if (toLowerCase(buffer.get(index + i)) != wire[i])
+                return false;
+        return true;
+    }
+
+    /** Writes this name, uncompressed and in lower case, at the current position of a buffer.
+     *
+     * @param buffer Buffer where the name is written.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(wire);
+    }
+
+    /** Writes this name, uncompressed and in lower case, to a stream. */
+    void writeTo(DataOutput out) throws IOException {
+        out.write(wire);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        DomainName that = (DomainName) o;
+        return hash == that.hash && Arrays.equals(wire, that.wire);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /** Returns the name in textual form, in lower case and without a trailing dot. */
+    @Override
+    public String toString() {
+        String result = text;
+        if (result == null) {
+            StringBuilder builder = new StringBuilder(wire.length);
+            for (int i = 0; wire[i] != 0; ) {
+                int labelLength = wire[i++] & 0xFF;
+                if (builder.length() > 0)
+                    builder.append('.');
+                for (int j = 0; j < labelLength; j++)
+                    builder.append((char) (wire[i++] & 0xFF));
+            }
+            result = builder.toString();
+            text = result;
+        }
+        return result;
+    }
+
+    @Override
+    public int compareTo(DomainName o) {
+        return toString().compareTo(o.toString());
+    }
+
+    /** Replaces a deserialized name with the interned instance. */
+    private Object readResolve() throws ObjectStreamException {
+        return intern(new DomainName(wire, null));
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
@@ -0,0 +1,178 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** A response encoded once and sent again to later queries with the same question, with only
+ * the ID, the RD flag, the question and the TTLs of its records updated. Encoded responses are
+ * attached to the cache entry whose records they hold (see DNSCache.getCachedEntry), so they are
+ * dropped as soon as those records change, expire or are evicted, and a response is never sent
+ * with records the cache no longer has.
+ *
+ * The response to a query for an alias holds the records of several entries: the CNAME records
+ * of the alias, those of the names they lead to, and the records of the last name. It is
+ * attached to the entry of the CNAME records of the alias, for the type of the question, and
+ * keeps the other entries it was encoded from; it is only reused while they are all current.
+ *
+ * The ID, the RD flag and the question (whose name may be in any case, see
+ * DNSMessageEncoder.writeQuestion) are copied from each query into the response sent to it. The
+ * same question may still need different responses: an OPT record is only included if the query
+ * had one, and the size limit depends on the transport and on the client. A cache entry keeps a
+ * few responses, and a response is reused for a query with the same use of EDNS0 if it is
+ * complete and fits in the size limit of the query, or if it was truncated to exactly that
+ * limit.
+ */
+final class EncodedResponse {
+
+    private static final int MAX_RESPONSES_PER_ENTRY = 4;
+    private static final int FLAGS_OFFSET = 2;
+    private static final int QUESTION_OFFSET = 12;
+    private static final int RD_FLAG = 0x01;
+
+    private final byte[] message;
+    private final int[] ttlOffsets;
+    private final long[] expirationTimes;
+    private final RecordType type;
+    private final DNSNode[] dependencyNodes;
+    private final DNSCache.CachedEntry[] dependencies;
+    private final boolean edns;
+    private final int maxSize;
+    private final boolean truncated;
+
+    /** Keeps a copy of a response that was just encoded from the records of a single entry.
+     *
+     * @param message The response, from its position to its limit.
+     * @param encoder Encoder that wrote the response, with the position of each TTL.
+     * @param type    Record type of the question.
+     * @param edns    true if the query had an OPT record.
+     * @param maxSize Size limit of the response.
+     */
+    EncodedResponse(ByteBuffer message, DNSMessageEncoder encoder, RecordType type, boolean edns, int maxSize) {
+        this(message, encoder, type, edns, maxSize, Collections.emptyList(), Collections.emptyList());
+    }
+
+    /** Keeps a copy of a response that was just encoded from the records of several entries, to
+     * be attached to the first one.
+     *
+     * @param message         The response, from its position to its limit.
+     * @param encoder         Encoder that wrote the response, with the position of each TTL.
+     * @param type            Record type of the question.
+     * @param edns            true if the query had an OPT record.
+     * @param maxSize         Size limit of the response.
+     * @param dependencyNodes Nodes of the other entries the response was encoded from.
+     * @param dependencies    The other entries the response was encoded from.
+     */
+    EncodedResponse(ByteBuffer message, DNSMessageEncoder encoder, RecordType type, boolean edns, int maxSize,
+                    List<DNSNode> dependencyNodes, List<DNSCache.CachedEntry> dependencies) {
+        this.message = new byte[message.remaining()];
+        message.duplicate().get(this.message);
+        int count = encoder.getRecordCount();
+        this.ttlOffsets = new int[count];
+        this.expirationTimes = new long[count];
+        for (int i = 0; i < count; i++) {
+            ttlOffsets[i] = encoder.getTtlOffset(i);
+            expirationTimes[i] = encoder.getExpirationTime(i);
+        }
+        this.type = type;
+        this.dependencyNodes = dependencyNodes.toArray(new DNSNode[0]);
+        this.dependencies = dependencies.toArray(new DNSCache.CachedEntry[0]);
+        this.edns = edns;
+        this.maxSize = maxSize;
+        this.truncated = encoder.isTruncated();
+    }
+
+    /** Returns a response attached to a cache entry that can answer a query, or null.
+     *
+     * @param entry   Cache entry of the question, or of the CNAME records of its name.
+     * @param type    Record type of the question.
+     * @param edns    true if the query had an OPT record.
+     * @param maxSize Size limit of the response to the query.
+     */
+    static EncodedResponse find(DNSCache.CachedEntry entry, RecordType type, boolean edns, int maxSize) {
+        EncodedResponse[] responses = (EncodedResponse[]) entry.getAttachment();
+        if (responses != null)
+            for (EncodedResponse response : responses)
+                if (response.type == type && response.edns == edns
+                        && (response.truncated ? response.maxSize == maxSize : response.message.length <= maxSize)
+                        && response.dependenciesCurrent())
+                    return response;
+        return null;
+    }
+
+    private boolean dependenciesCurrent() {
+        if (dependencies.length == 0)
+            return true;
+        long now = System.nanoTime();
+        for (DNSCache.CachedEntry dependency : dependencies)
+            if (!dependency.isCurrent(now))
+                return false;
+        return true;
+    }
+
+    /** Returns the number of entries, other than the one it is attached to, the response was
+     * encoded from. */
+    int getDependencyCount() {
+        return dependencies.length;
+    }
+
+    /** Returns the node of one of the other entries the response was encoded from. */
+    DNSNode getDependencyNode(int index) {
+        return dependencyNodes[index];
+    }
+
+    /** Returns one of the other entries the response was encoded from. */
+    DNSCache.CachedEntry getDependency(int index) {
+        return dependencies[index];
+    }
+
+    /** Attaches a response to a cache entry. If the entry already has as many responses as it may
+     * keep, the oldest one is dropped. Responses attached concurrently to the same entry may be
+     * lost, in which case they are encoded again for a later query.
+     *
+     * @param entry    Cache entry whose records the response holds.
+     * @param response Response to be attached.
+     */
+    static void attach(DNSCache.CachedEntry entry, EncodedResponse response) {
+        EncodedResponse[] responses = (EncodedResponse[]) entry.getAttachment();
+        EncodedResponse[] updated;
+        if (responses == null) {
+            updated = new EncodedResponse[]{response};
+        } else if (responses.length < MAX_RESPONSES_PER_ENTRY) {
+            updated = Arrays.copyOf(responses, responses.length + 1);
+            updated[responses.length] = response;
+        } else {
+            updated = Arrays.copyOfRange(responses, 1, responses.length + 1);
+            updated[responses.length - 1] = response;
+        }
+        entry.setAttachment(updated);
+    }
+
+    /** Writes the response to a query into a buffer, with the ID, the RD flag and the question of
+     * the query, and the TTL of each record computed, as when the response was encoded, from the
+     * expiration time of the record.
+     *
+     * @param out              Buffer where the response is written, at its position.
+     * @param id               ID of the query being answered.
+     * @param recursionDesired Value of the RD flag of the query.
+     * @param question         Question of the query in wire format, which only differs from the
+     *                         question of the response in the case of the name, or in its class.
+     * @return The buffer, with the response between its position and limit.
+     */
+    ByteBuffer writeTo(ByteBuffer out, int id, boolean recursionDesired, byte[] question) {
+        int start = out.position();
+        out.put(message);
+        out.putShort(start, (short) id);
+        byte flags = message[FLAGS_OFFSET];
+        out.put(start + FLAGS_OFFSET, (byte) (recursionDesired ? flags | RD_FLAG : flags & ~RD_FLAG));
+        out.put(start + QUESTION_OFFSET, question);
+        long now = System.nanoTime();
+        for (int i = 0; i < ttlOffsets.length; i++) {
+            long ttl = (expirationTimes[i] - now + 999_999_999L) / 1_000_000_000L;
+            out.putInt(start + ttlOffsets[i], (int) Math.max(0, Math.min(ttl, Integer.MAX_VALUE)));
+        }
+        out.limit(out.position()).position(start);
+        return out;
+    }
+}
@@ -0,0 +1,126 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/** Hierarchical timing wheel used to expire cached entries. Each level has 64 slots; a slot in
+ * the first level covers one tick, a slot in the second level covers 64 ticks, and so on. An
+ * entry is placed in the lowest level that can hold its deadline, and moved down to a finer
+ * level when the wheel reaches its slot. Deadlines that are too far in the future for all
+ * levels are kept in an overflow list, which is reviewed every time the last level wraps.
+ *
+ * Scheduling only appends to a lock-free queue, so it can be called from any thread (including
+ * from inside a map update). The wheel itself is only modified by the thread calling advance(),
+ * which also runs the expiration action for every entry whose deadline has passed.
+ *
+ * @param <K> Type of the keys scheduled for expiration.
+ */
+final class ExpiryWheel<K> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final long tickNanos;
+    private final long origin;
+    private final Consumer<K> expirer;
+    private final Queue<Entry<K>> pending = new ConcurrentLinkedQueue<>();
+    private final List<List<Entry<K>>> slots = new ArrayList<>(LEVELS * SLOTS);
+    private List<Entry<K>> overflow = new ArrayList<>();
+    private long currentTick = 0;
+
+    /** Creates a new timing wheel.
+     *
+     * @param tick    Duration of the smallest wheel slot. Entries expire at most this long after
+     *                their deadline.
+     * @param unit    Unit of the tick duration.
+     * @param expirer Action called, from the thread advancing the wheel, for each expired key.
+     */
+    ExpiryWheel(long tick, TimeUnit unit, Consumer<K> expirer) {
+        this.tickNanos = unit.toNanos(tick);
+        this.origin = System.nanoTime();
+        this.expirer = expirer;
+        for (int i = 0; i < LEVELS * SLOTS; i++)
+            slots.add(new ArrayList<>());
+    }
+
+    /** Schedules a key to be expired once a deadline has passed. The same key may be scheduled
+     * more than once; the expiration action must be safe to repeat.
+     *
+     * @param key      Key to be expired.
+     * @param deadline Expiration deadline, as a value of System.nanoTime().
+     */
+    void schedule(K key, long deadline) {
+        pending.add(new Entry<>(key, deadline));
+    }
+
+    /** Moves the wheel forward to the current time, expiring every entry whose deadline has
+     * passed. Must not be called concurrently.
+     */
+    void advance() {
+        long targetTick = (System.nanoTime() - origin) / tickNanos;
+        List<Entry<K>> due = new ArrayList<>();
+
+        Entry<K> entry;
+        while ((entry = pending.poll()) != null)
+            place(entry, due);
+
+        while (currentTick < targetTick) {
+            currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0)
+                    continue;
+                if (level == LEVELS - 1 && (currentTick & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0) {
+                    List<Entry<K>> entries = overflow;
+                    overflow = new ArrayList<>();
+                    for (Entry<K> e : entries)
+                        place(e, due);
+                }
+                cascade(level, (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK), due);
+            }
+            cascade(0, (int) (currentTick & SLOT_MASK), due);
+        }
+
+        for (Entry<K> e : due)
+            expirer.accept(e.key);
+    }
+
+    private void cascade(int level, int slot, List<Entry<K>> due) {
+        List<Entry<K>> entries = slots.get(level * SLOTS + slot);
+        if (entries.isEmpty())
+            return;
+        slots.set(level * SLOTS + slot, new ArrayList<>());
+        for (Entry<K> e : entries)
+            place(e, due);
+    }
+
+    private void place(Entry<K> entry, List<Entry<K>> due) {
+        long deadlineTick = (entry.deadline - origin + tickNanos - 1) / tickNanos;
+        long delta = deadlineTick - currentTick;
+        if (delta <= 0) {
+            due.add(entry);
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (SLOT_BITS * (level + 1))) {
+                int slot = (int) ((deadlineTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                slots.get(level * SLOTS + slot).add(entry);
+                return;
+            }
+        }
+        overflow.add(entry);
+    }
+
+    private static final class Entry<K> {
+        private final K key;
+        private final long deadline;
+
+        Entry(K key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package ca.ubc.cs317.dnslookup;
+
+/** Approximate access frequency counter, used by the cache to decide which entries are worth
+ * keeping. This is a count-min sketch with 4-bit counters: each key is counted in four
+ * counters, and its estimated frequency is the smallest of them. Counters saturate at 15, and
+ * all counters are halved once the number of increments reaches a sample size proportional to
+ * the cache capacity, so old popularity fades over time.
+ *
+ * This class is not thread-safe; it is only used while holding the cache policy lock.
+ */
+final class FrequencySketch {
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    /** Creates a sketch sized for a given number of entries.
+     *
+     * @param maximumEntries Expected maximum number of distinct entries in the cache.
+     */
+    FrequencySketch(long maximumEntries) {
+        int maximum = (int) Math.min(Math.max(maximumEntries, 16), 1 << 30);
+        table = new long[Integer.highestOneBit(maximum - 1) << 1];
+        tableMask = table.length - 1;
+        sampleSize = (int) Math.min(10L * maximum, Integer.MAX_VALUE);
+    }
+
+    /** Returns the estimated number of times a key was counted, up to 15.
+     *
+     * @param hashCode Hash code of the key.
+     * @return The estimated frequency of the key.
+     */
+    int frequency(int hashCode) {
+        int hash = spread(hashCode);
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++)
+            frequency = Math.min(frequency, (int) ((table[indexOf(hash, i)] >>> offsetOf(hash, i)) & 0xF));
+        return frequency;
+    }
+
+    /** Counts one occurrence of a key.
+     *
+     * @param hashCode Hash code of the key.
+     */
+    void increment(int hashCode) {
+        int hash = spread(hashCode);
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = offsetOf(hash, i);
+            if (((table[index] >>> offset) & 0xF) != 0xF) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++size >= sampleSize)
+            reset();
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        size /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int offsetOf(int hash, int i) {
+        return ((i << 2) + ((hash >>> (i << 3)) & 3)) << 2;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
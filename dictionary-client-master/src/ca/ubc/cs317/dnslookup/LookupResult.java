@@ -0,0 +1,79 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.Collections;
+import java.util.Set;
+
+/** The outcome of a lookup: the records found, and the response code a server answering the same
+ * question would send. The code is NOERROR if records were found, or if the name exists but has
+ * no records of the type (NODATA); NXDOMAIN if the name does not exist; and SERVFAIL if no server
+ * could answer. A negative answer (NXDOMAIN or NODATA) carries the SOA record of the zone that gave
+ * it, if the zone sent one, with the TTL of the negative answer (RFC 2308).
+ *
+ * For an alias, the records and the response code are those of the name at the end of the CNAME
+ * chain.
+ */
+public final class LookupResult {
+
+    static final LookupResult SERVER_FAILURE =
+            new LookupResult(Collections.emptySet(), DNSMessageEncoder.RCODE_SERVER_FAILURE, null);
+
+    private final Set<ResourceRecord> records;
+    private final int rcode;
+    private final ResourceRecord soa;
+
+    private LookupResult(Set<ResourceRecord> records, int rcode, ResourceRecord soa) {
+        this.records = records;
+        this.rcode = rcode;
+        this.soa = soa;
+    }
+
+    /** Returns the result of a lookup that found records. */
+    static LookupResult of(Set<ResourceRecord> records) {
+        return new LookupResult(records, DNSMessageEncoder.RCODE_NO_ERROR, null);
+    }
+
+    /** Returns the result of a lookup that got a negative answer.
+     *
+     * @param nameError true if the name does not exist (NXDOMAIN), false for NODATA.
+     * @param soa       SOA record sent with the negative answer, or null.
+     */
+    static LookupResult negative(boolean nameError, ResourceRecord soa) {
+        return new LookupResult(Collections.emptySet(),
+                nameError ? DNSMessageEncoder.RCODE_NAME_ERROR : DNSMessageEncoder.RCODE_NO_ERROR, soa);
+    }
+
+    /** Returns the result held by a cache entry: its records, or its negative answer. */
+    static LookupResult of(DNSCache.CachedEntry entry) {
+        return entry.isNegative() ? negative(entry.isNameError(), entry.getSoa()) : of(entry.records());
+    }
+
+    /** Returns the records found, empty for a negative answer or a failure. */
+    public Set<ResourceRecord> getRecords() {
+        return records;
+    }
+
+    /** Returns the response code: NOERROR, NXDOMAIN or SERVFAIL (see DNSMessageEncoder). */
+    public int getRcode() {
+        return rcode;
+    }
+
+    /** Returns the SOA record sent with a negative answer, or null. */
+    public ResourceRecord getSoa() {
+        return soa;
+    }
+
+    /** Returns true if the name does not exist (NXDOMAIN). */
+    public boolean isNameError() {
+        return rcode == DNSMessageEncoder.RCODE_NAME_ERROR;
+    }
+
+    /** Returns true if the name exists but has no records of the type (NODATA). */
+    public boolean isNoData() {
+        return rcode == DNSMessageEncoder.RCODE_NO_ERROR && records.isEmpty();
+    }
+
+    /** Returns true if no server could answer (SERVFAIL). */
+    public boolean isFailure() {
+        return rcode == DNSMessageEncoder.RCODE_SERVER_FAILURE;
+    }
+}
@@ -0,0 +1,200 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+/** Chooses which of the name servers of a zone to query, and how long to wait for each of them,
+ * based on the round-trip times measured for each server. For every server the selector keeps a
+ * smoothed round-trip time (SRTT) and its mean deviation, updated as in TCP (RFC 6298). Servers
+ * are tried from the fastest to the slowest, so a lookup falls through to the next server when
+ * one does not answer.
+ *
+ * The retransmission timeout (RTO) of a server is SRTT + 4 * deviation, as in TCP, so a server
+ * that answers in 2 ms is given up on after a few milliseconds rather than seconds. Each timeout
+ * doubles the RTO of the server (exponential backoff) until it answers again; the RTO is always
+ * kept between a minimum and a maximum, and randomly varied by up to 1/8 so that retransmissions
+ * of many queries do not happen in lockstep. Servers that timed out also sort behind the ones that
+ * answer. A server that answers with an error is not slow, so its RTO is left alone; it only
+ * sorts behind the others, as if its SRTT doubled with each error, until it answers correctly.
+ *
+ * Servers never queried before get a small random SRTT, so each is tried early and measured, and
+ * the initial RTO. To notice when a slower server becomes faster (or a failed server recovers),
+ * one query in PROBE_INTERVAL starts with a randomly chosen server instead of the fastest one.
+ *
+ * The selector may be used concurrently from any number of threads.
+ */
+public class NameServerSelector {
+
+    private static final long UNKNOWN_RTT_NANOS = TimeUnit.MILLISECONDS.toNanos(32);
+    private static final long MAX_RTT_NANOS = TimeUnit.SECONDS.toNanos(120);
+    private static final int PROBE_INTERVAL = 20;
+    private static final int MAX_SERVERS = 4096;
+    private static final int MAX_BACKOFF = 16;
+
+    private final long initialRtoNanos;
+    private final long minRtoNanos;
+    private final long maxRtoNanos;
+    private final ConcurrentMap<InetAddress, RttEstimate> estimates = new ConcurrentHashMap<>();
+
+    /** Creates a selector with an initial RTO of 400 ms, kept between 50 ms and 5 s.
+     */
+    public NameServerSelector() {
+        this(400, 50, 5000, TimeUnit.MILLISECONDS);
+    }
+
+    /** Creates a selector with the given retransmission timeout limits.
+     *
+     * @param initialRto RTO of a server that has not answered yet.
+     * @param minRto     Minimum RTO of any server.
+     * @param maxRto     Maximum RTO of any server, including backoff.
+     * @param unit       Unit of the timeouts.
+     */
+    public NameServerSelector(long initialRto, long minRto, long maxRto, TimeUnit unit) {
+        this.initialRtoNanos = unit.toNanos(initialRto);
+        this.minRtoNanos = unit.toNanos(minRto);
+        this.maxRtoNanos = unit.toNanos(maxRto);
+    }
+
+    /** Returns the order in which a set of equivalent servers should be queried.
+     *
+     * @param servers Addresses of the name servers of a zone.
+     * @return A new list with the same addresses, the one to query first at index 0.
+     */
+    public List<InetAddress> order(List<InetAddress> servers) {
+        List<InetAddress> result = new ArrayList<>(servers);
+        if (result.size() < 2)
+            return result;
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Map<InetAddress, Long> rtts = new HashMap<>();
+        for (InetAddress server : result) {
+            RttEstimate estimate = estimates.get(server);
+            rtts.put(server, estimate == null ? random.nextLong(UNKNOWN_RTT_NANOS)
+                    : estimate.srtt << Math.min(estimate.backoff + estimate.failures, MAX_BACKOFF));
+        }
+        result.sort(Comparator.comparingLong(rtts::get));
+
+        if (random.nextInt(PROBE_INTERVAL) == 0)
+            Collections.swap(result, 0, 1 + random.nextInt(result.size() - 1));
+        return result;
+    }
+
+    /** Returns how long to wait for the response of a server before retransmitting the query or
+     * trying another server.
+     *
+     * @param server Address of the server.
+     * @param unit   Unit of the returned value.
+     * @return The current, jittered, retransmission timeout of the server.
+     */
+    public long getRetransmissionTimeout(InetAddress server, TimeUnit unit) {
+        RttEstimate estimate = estimates.get(server);
+        long rto = initialRtoNanos;
+        if (estimate != null) {
+            rto = estimate.srtt + 4 * estimate.rttvar;
+            rto = estimate.backoff >= Long.numberOfLeadingZeros(rto) - 1 ? maxRtoNanos : rto << estimate.backoff;
+        }
+        rto = Math.max(minRtoNanos, Math.min(rto, maxRtoNanos));
+        rto += ThreadLocalRandom.current().nextLong(-rto / 8, rto / 8 + 1);
+        return unit.convert(rto, TimeUnit.NANOSECONDS);
+    }
+
+    /** Records the round-trip time of a query answered by a server, and ends any backoff of the
+     * server and any penalty for errors. Only queries answered on their first transmission give a
+     * valid sample (Karn's algorithm); use recordRetransmittedResponse otherwise.
+     *
+     * @param server Address of the server.
+     * @param rtt    Time between sending the query and receiving the response.
+     * @param unit   Unit of the round-trip time.
+     */
+    public void recordResponse(InetAddress server, long rtt, TimeUnit unit) {
+        long sample = Math.min(unit.toNanos(rtt), MAX_RTT_NANOS);
+        update(server, estimate -> {
+            if (estimate == null)
+                return new RttEstimate(sample, sample / 2, 0, 0);
+            long error = sample - estimate.srtt;
+            return new RttEstimate(estimate.srtt + error / 8,
+                    estimate.rttvar + (Math.abs(error) - estimate.rttvar) / 4, 0, 0);
+        });
+    }
+
+    /** Records that a server answered a query sent more than once. The response may answer any of
+     * the transmissions, so it gives no RTT sample, but it ends the backoff of the server and any
+     * penalty for errors.
+     *
+     * @param server Address of the server.
+     */
+    public void recordRetransmittedResponse(InetAddress server) {
+        update(server, estimate -> estimate == null || estimate.backoff == 0 && estimate.failures == 0 ? estimate
+                : new RttEstimate(estimate.srtt, estimate.rttvar, 0, 0));
+    }
+
+    /** Records that a query sent to a server was not answered in time, which doubles the RTO of
+     * the server and moves it behind the servers that answer.
+     *
+     * @param server Address of the server.
+     */
+    public void recordTimeout(InetAddress server) {
+        update(server, estimate -> estimate == null
+                ? new RttEstimate(initialRtoNanos, 0, 1, 0)
+                : new RttEstimate(estimate.srtt, estimate.rttvar, Math.min(estimate.backoff + 1, MAX_BACKOFF),
+                        estimate.failures));
+    }
+
+    /** Records that a server answered a query with an error (such as SERVFAIL or REFUSED) or a
+     * response that could not be used, instead of recordResponse. The server answered, so its
+     * RTO is not backed off, but it sorts behind the servers that answer correctly, further with
+     * each error, until it does so again.
+     *
+     * @param server Address of the server.
+     */
+    public void recordFailure(InetAddress server) {
+        update(server, estimate -> estimate == null
+                ? new RttEstimate(initialRtoNanos, 0, 0, 1)
+                : new RttEstimate(estimate.srtt, estimate.rttvar, estimate.backoff,
+                        Math.min(estimate.failures + 1, MAX_BACKOFF)));
+    }
+
+    /** Returns the smoothed round-trip time measured for a server.
+     *
+     * @param server Address of the server.
+     * @param unit   Unit of the returned value.
+     * @return The SRTT of the server, or -1 if it has not been queried yet.
+     */
+    public long getSmoothedRtt(InetAddress server, TimeUnit unit) {
+        RttEstimate estimate = estimates.get(server);
+        return estimate == null ? -1 : unit.convert(estimate.srtt, TimeUnit.NANOSECONDS);
+    }
+
+    private void update(InetAddress server, UnaryOperator<RttEstimate> function) {
+        if (estimates.size() >= MAX_SERVERS && !estimates.containsKey(server))
+            estimates.clear(); // estimates are relearned quickly; this only bounds memory
+        estimates.compute(server, (key, estimate) -> function.apply(estimate));
+    }
+
+    /** Immutable round-trip time estimate for one server, in nanoseconds, with the number of
+     * timeouts since the server last answered, and of errors since it last answered correctly.
+     */
+    private static final class RttEstimate {
+        final long srtt;
+        final long rttvar;
+        final int backoff;
+        final int failures;
+
+        RttEstimate(long srtt, long rttvar, int backoff, int failures) {
+            this.srtt = srtt;
+            this.rttvar = rttvar;
+            this.backoff = backoff;
+            this.failures = failures;
+        }
+    }
+}
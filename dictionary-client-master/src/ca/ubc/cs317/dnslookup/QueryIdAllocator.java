@@ -0,0 +1,84 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Allocates 16-bit DNS query IDs that are unique among the queries currently in flight. IDs in
+ * use are tracked in a bitset, and an ID is free again as soon as it is released, so the
+ * allocator never runs out as long as fewer than 65536 queries are in flight at once.
+ *
+ * IDs are chosen at random, so they are hard to predict. A random ID is free with probability at
+ * least 1/2 while fewer than half of the IDs are in use, which makes allocation take constant
+ * expected time; when most IDs are in use, the allocator falls back to scanning the bitset from a
+ * random position. All methods are lock-free and may be called from any thread.
+ */
+public class QueryIdAllocator {
+
+    private static final int ID_COUNT = 1 << 16;
+    private static final int RANDOM_ATTEMPTS = 32;
+
+    private final AtomicLongArray inUse = new AtomicLongArray(ID_COUNT / 64);
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /** Allocates a query ID that is not currently in use.
+     *
+     * @return A query ID between 0 and 65535.
+     * @throws IllegalStateException if all 65536 IDs are in use.
+     */
+    public int allocate() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < RANDOM_ATTEMPTS; i++) {
+            int id = random.nextInt(ID_COUNT);
+            if (tryAcquire(id))
+                return id;
+        }
+        int start = random.nextInt(ID_COUNT);
+        for (int i = 0; i < ID_COUNT; i++) {
+            int id = (start + i) & (ID_COUNT - 1);
+            if (tryAcquire(id))
+                return id;
+        }
+        throw new IllegalStateException("All query IDs are in use");
+    }
+
+    /** Releases a query ID once its transaction is complete, so it may be allocated again.
+     *
+     * @param id Query ID previously returned by allocate().
+     */
+    public void release(int id) {
+        int word = id >>> 6;
+        long bit = 1L << (id & 63);
+        while (true) {
+            long current = inUse.get(word);
+            if ((current & bit) == 0)
+                return;
+            if (inUse.compareAndSet(word, current, current & ~bit)) {
+                inFlight.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /** Returns the number of IDs currently allocated.
+     *
+     * @return The number of queries in flight.
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    private boolean tryAcquire(int id) {
+        int word = id >>> 6;
+        long bit = 1L << (id & 63);
+        while (true) {
+            long current = inUse.get(word);
+            if ((current & bit) != 0)
+                return false;
+            if (inUse.compareAndSet(word, current, current | bit)) {
+                inFlight.incrementAndGet();
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,770 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/** Iterative DNS resolver. A resolver holds its own configuration, cache and transport, so several
+ * resolvers may be used in the same process. All methods may be called concurrently from any
+ * number of threads; lookups for different names proceed in parallel and share the cache.
+ */
+public class Resolver implements Closeable {
+
+    private static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final int QUERY_BUFFER_SIZE = 512;
+    private static final int MAX_POOLED_QUERY_BUFFERS = 256;
+    private static final int MAX_TRANSMISSIONS_PER_SERVER = 4;
+
+    private final InetAddress rootServer;
+    private final int port;
+    private final long queryTimeoutMillis;
+    private final long staleAnswerTimeoutMillis;
+    private final boolean encodeOnly;
+    private final DNSCache cache;
+    private final UdpTransport transport;
+    private final TcpTransport tcpTransport;
+    private final int ednsBufferSize;
+    private final QueryIdAllocator queryIds = new QueryIdAllocator();
+    private final NameServerSelector serverSelector;
+    private final SingleFlight<DNSNode, LookupResult> lookups = new SingleFlight<>();
+    private final SingleFlight<HopKey, DNSQueryHandler.Response> hops = new SingleFlight<>();
+    private final BufferPool queryBuffers = new BufferPool(QUERY_BUFFER_SIZE, MAX_POOLED_QUERY_BUFFERS, true);
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final Semaphore prefetchPermits;
+    private final Predicate<DNSNode> prefetchHandler = this::prefetch;
+    private volatile boolean verboseTracing;
+
+    /** Creates a resolver with its own, unbounded, cache.
+     *
+     * @param config Resolver settings.
+     * @throws IOException if the network transport could not be opened.
+     */
+    public Resolver(ResolverConfig config) throws IOException {
+        this(config, new DNSCache());
+    }
+
+    /** Creates a resolver that uses an existing cache, possibly shared with other resolvers.
+     *
+     * @param config Resolver settings.
+     * @param cache  Cache where results are stored and looked up.
+     * @throws IOException if the network transport could not be opened.
+     */
+    public Resolver(ResolverConfig config, DNSCache cache) throws IOException {
+        this.rootServer = Objects.requireNonNull(config.getRootServer(), "rootServer");
+        this.port = config.getPort();
+        this.queryTimeoutMillis = config.getQueryTimeoutMillis();
+        this.staleAnswerTimeoutMillis = config.getStaleAnswerTimeoutMillis();
+        this.serverSelector = new NameServerSelector(config.getInitialRetransmitTimeoutMillis(),
+                config.getMinRetransmitTimeoutMillis(), config.getMaxRetransmitTimeoutMillis(), TimeUnit.MILLISECONDS);
+        this.encodeOnly = config.isEncodeOnly();
+        this.ednsBufferSize = config.getEdnsBufferSize();
+        this.verboseTracing = config.isVerboseTracing();
+        this.cache = cache;
+        this.transport = new UdpTransport(config.getUdpChannelCount());
+        try {
+            this.tcpTransport = new TcpTransport(config.getTcpIdleTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            transport.close();
+            throw e;
+        }
+        if (config.getExecutor() != null) {
+            this.executor = config.getExecutor();
+            this.ownsExecutor = false;
+        } else {
+            AtomicInteger threadCount = new AtomicInteger();
+            this.executor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "dns-resolver-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.ownsExecutor = true;
+        }
+        this.prefetchPermits = new Semaphore(config.getMaxConcurrentPrefetches());
+        if (config.getPrefetchMinimumHits() > 0)
+            cache.setRefreshHandler(prefetchHandler, config.getPrefetchMinimumHits());
+    }
+
+    public InetAddress getRootServer() {
+        return rootServer;
+    }
+
+    public DNSCache getCache() {
+        return cache;
+    }
+
+    /** Returns the selector holding the round-trip times measured for each name server. */
+    public NameServerSelector getServerSelector() {
+        return serverSelector;
+    }
+
+    /** Turns printing of queries and responses on or off. */
+    public void setVerboseTracing(boolean verboseTracing) {
+        this.verboseTracing = verboseTracing;
+    }
+
+    /** Finds all results for a host name and type, waiting for the lookup to complete. If the
+     * results are not cached and a lookup for the same host name and type is already in progress,
+     * this method waits for that lookup instead of starting another one.
+     *
+     * If the cache keeps expired records (serve-stale), stale records are returned when the
+     * lookup fails or takes longer than staleAnswerTimeoutMillis; the lookup then continues in
+     * the background.
+     *
+     * @param node Host name and record type to be used for search.
+     * @return A set of resource records corresponding to the query, empty if none were found.
+     */
+    public Set<ResourceRecord> resolve(DNSNode node) {
+        return lookup(node).getRecords();
+    }
+
+    /** Finds all results for a host name and type, as resolve() does, with the response code a
+     * server would send with them and, for a negative answer, the SOA record of the zone.
+     *
+     * @param node Host name and record type to be used for search.
+     * @return The results of the lookup, with their status.
+     */
+    public LookupResult lookup(DNSNode node) {
+        LookupResult cachedResult = getCachedResult(node);
+        if (cachedResult != null)
+            return cachedResult;
+        if (cache.getServeStaleWindow(TimeUnit.NANOSECONDS) > 0)
+            return withStaleFallback(node, startLookup(node)).join();
+        return lookups.execute(node, () -> getResults(node, 0));
+    }
+
+    /** Starts a lookup for a host name and type, and returns without waiting for it. As with
+     * resolve(), a lookup already in progress for the same host name and type is shared, and
+     * stale records may be returned if the cache keeps them.
+     *
+     * @param node Host name and record type to be used for search.
+     * @return A future completed with the set of resource records corresponding to the query.
+     */
+    public CompletableFuture<Set<ResourceRecord>> resolveAsync(DNSNode node) {
+        return lookupAsync(node).thenApply(LookupResult::getRecords);
+    }
+
+    /** Starts a lookup for a host name and type, as resolveAsync() does, and returns without
+     * waiting for it.
+     *
+     * @param node Host name and record type to be used for search.
+     * @return A future completed with the results of the lookup, with their status.
+     */
+    public CompletableFuture<LookupResult> lookupAsync(DNSNode node) {
+        LookupResult cachedResult = getCachedResult(node);
+        if (cachedResult != null)
+            return CompletableFuture.completedFuture(cachedResult);
+        if (cache.getServeStaleWindow(TimeUnit.NANOSECONDS) > 0)
+            return withStaleFallback(node, startLookup(node));
+        return startLookup(node);
+    }
+
+    private CompletableFuture<LookupResult> startLookup(DNSNode node) {
+        return lookups.executeAsync(node, () -> CompletableFuture.supplyAsync(() -> getResults(node, 0), executor));
+    }
+
+    /** Returns the records or negative answer cached for a node, or null if nothing is cached.
+     * If the host name is an alias, the CNAME records and the results of the name they lead to
+     * are returned if they are all cached. Counts a single hit or miss: only called once per
+     * lookup, when it starts.
+     */
+    private LookupResult getCachedResult(DNSNode node) {
+        DNSCache.CachedEntry entry = cache.peekEntry(node);
+        if (entry != null) {
+            cache.recordHits(node, entry, 1);
+            return LookupResult.of(entry);
+        }
+        if (node.getType() != RecordType.CNAME) {
+            // an alias: only answered from the cache if the whole chain is cached
+            DNSNode cnameNode = new DNSNode(node.getName(), RecordType.CNAME);
+            DNSCache.CachedEntry cnameEntry = cache.peekEntry(cnameNode);
+            for (int i = 0; cnameEntry != null && cnameEntry.records().size() == 1 && i < MAX_INDIRECTION_LEVEL; i++) {
+                DNSNode target = new DNSNode(cnameEntry.records().iterator().next().getNameResult(), node.getType());
+                entry = cache.peekEntry(target);
+                if (entry != null) {
+                    cache.recordHits(cnameNode, cnameEntry, 1);
+                    cache.recordRead(target, entry);
+                    return LookupResult.of(entry);
+                }
+                cnameNode = new DNSNode(target.getName(), RecordType.CNAME);
+                cnameEntry = cache.peekEntry(cnameNode);
+            }
+        }
+        cache.recordMiss();
+        return null;
+    }
+
+    /** Returns the records or negative answer cached for a node, or null if nothing is cached,
+     * without counting a hit or a miss. */
+    private LookupResult peekCachedResult(DNSNode node) {
+        DNSCache.CachedEntry entry = cache.peekEntry(node);
+        return entry == null ? null : LookupResult.of(entry);
+    }
+
+    /** Returns the records (never a negative answer) cached for a node, without counting a hit or
+     * a miss. */
+    private Set<ResourceRecord> peekCachedRecords(DNSNode node) {
+        DNSCache.CachedEntry entry = cache.peekEntry(node);
+        return entry == null ? Collections.emptySet() : entry.records();
+    }
+
+    /** Returns a future completed with the results of a lookup, or with stale records if the
+     * lookup fails or does not complete within staleAnswerTimeoutMillis (RFC 8767). The lookup
+     * is not cancelled, so it still refreshes the cache when its servers answer.
+     *
+     * @param node   Host name and record type being looked up.
+     * @param lookup Future of the lookup, not shared with other callers.
+     * @return A future completed with fresh results, stale results, or the failed results of the
+     *         lookup if no stale records are kept.
+     */
+    private CompletableFuture<LookupResult> withStaleFallback(DNSNode node, CompletableFuture<LookupResult> lookup) {
+        CompletableFuture<LookupResult> deadline = lookup.copy();
+        if (staleAnswerTimeoutMillis > 0)
+            deadline.completeOnTimeout(null, staleAnswerTimeoutMillis, TimeUnit.MILLISECONDS);
+        return deadline.thenCompose(result -> {
+            if (result != null && !result.isFailure())
+                return CompletableFuture.completedFuture(result);
+            Set<ResourceRecord> staleResults = getStaleResults(node, 0);
+            if (!staleResults.isEmpty()) {
+                if (verboseTracing)
+                    System.out.println("Answering " + node + " with stale records: lookup "
+                            + (result == null ? "still running" : "failed"));
+                return CompletableFuture.completedFuture(LookupResult.of(staleResults));
+            }
+            return result == null ? lookup : CompletableFuture.completedFuture(result);
+        });
+    }
+
+    /** Returns the stale records kept by the cache for a node, following CNAME records (fresh or
+     * stale) as getResults does.
+     *
+     * @param node             Host name and record type to be used for search.
+     * @param indirectionLevel Number of CNAME records followed so far.
+     * @return A set of stale (and possibly fresh) records of the node or of the names it is an
+     *         alias for, empty if none are kept.
+     */
+    private Set<ResourceRecord> getStaleResults(DNSNode node, int indirectionLevel) {
+        Set<ResourceRecord> staleResults = cache.getStaleResults(node);
+        if (!staleResults.isEmpty() || indirectionLevel >= MAX_INDIRECTION_LEVEL || node.getType() == RecordType.CNAME)
+            return staleResults;
+
+        DNSNode cnameNode = new DNSNode(node.getName(), RecordType.CNAME);
+        Set<ResourceRecord> cnameRecords = peekCachedRecords(cnameNode);
+        if (cnameRecords.isEmpty())
+            cnameRecords = cache.getStaleResults(cnameNode);
+        Set<ResourceRecord> allResults = new HashSet<>();
+        for (ResourceRecord cnameRecord : cnameRecords) {
+            DNSNode target = new DNSNode(cnameRecord.getNameResult(), node.getType());
+            Set<ResourceRecord> targetResults = peekCachedRecords(target);
+            allResults.addAll(targetResults.isEmpty() ? getStaleResults(target, indirectionLevel + 1) : targetResults);
+        }
+        return Collections.unmodifiableSet(allResults);
+    }
+
+    /** Returns the number of lookups and queries that were not started because an identical one
+     * was already in progress.
+     */
+    public long getCoalescedCount() {
+        return lookups.getCoalescedCount() + hops.getCoalescedCount();
+    }
+
+    /** Starts lookups for several queries at once. The lookups run concurrently.
+     *
+     * @param nodes Host names and record types to be searched.
+     * @return A future completed, once all lookups are done, with the results of each query.
+     */
+    public CompletableFuture<Map<DNSNode, Set<ResourceRecord>>> resolveAll(Collection<DNSNode> nodes) {
+        Map<DNSNode, CompletableFuture<Set<ResourceRecord>>> futures = new LinkedHashMap<>();
+        for (DNSNode node : nodes)
+            futures.computeIfAbsent(node, this::resolveAsync);
+
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> {
+                    Map<DNSNode, Set<ResourceRecord>> results = new LinkedHashMap<>();
+                    futures.forEach((node, future) -> results.put(node, future.join()));
+                    return results;
+                });
+    }
+
+    /** Closes the network transport, and the executor if it was created by this resolver. The
+     * cache is not closed, since it may be shared, but this resolver stops refreshing its records.
+     */
+    @Override
+    public void close() {
+        cache.removeRefreshHandler(prefetchHandler);
+        transport.close();
+        tcpTransport.close();
+        if (ownsExecutor)
+            executor.shutdown();
+    }
+
+    /**
+     * Finds all the results for a specific node. The cache is read without counting a hit or a
+     * miss, which the caller counts if this is the start of a lookup.
+     *
+     * @param node             Host and record type to be used for search.
+     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
+     *                         The initial call should be made with 0 (zero), while recursive calls for
+     *                         regarding CNAME results should increment this value by 1. Once this value
+     *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
+     *                         returns a failure.
+     * @return The resource records corresponding to the specific query requested, with their status.
+     */
+    LookupResult getResults(DNSNode node, int indirectionLevel) {
+        if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
+            System.err.println("Maximum number of indirection levels reached.");
+            return LookupResult.SERVER_FAILURE;
+        }
+
+        // If the information is in the cache, return it directly
+        LookupResult cachedResult = peekCachedResult(node);
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+        return lookup(node, indirectionLevel, false);
+    }
+
+    /**
+     * Looks up a node by querying servers, starting at the closest known delegation.
+     *
+     * @param node             Host and record type to be used for search.
+     * @param indirectionLevel Number of CNAME and name server lookups this lookup is nested in.
+     * @param refresh          If true, the records cached for the node are ignored, and the
+     *                         lookup continues until a server gives an answer rather than a referral.
+     * @return The resource records corresponding to the specific query requested, with their
+     *         status. The status is taken from the response of the server rather than from the
+     *         cache, so negative answers that are not cached (with no SOA record, or a negative
+     *         TTL of 0) are still reported as such.
+     */
+    private LookupResult lookup(DNSNode node, int indirectionLevel, boolean refresh) {
+        DNSNode cnameNode = new DNSNode(node.getName(), RecordType.CNAME);
+        Delegation delegation = startingDelegation(node);
+        DomainName zone = delegation.getZone();
+        List<InetAddress> nameServers = delegation.getAddresses();
+
+        // Max 20 iterations
+        for (int i = 0; i < 20; i++) {
+            // Check if we have CNAME in the cache
+            DNSCache.CachedEntry cnameEntry = refresh ? null : cache.peekEntry(cnameNode);
+            if (cnameEntry != null && !cnameEntry.records().isEmpty()) {
+                // before the first query, the alias is answered from the cache: a read of its records
+                if (i == 0)
+                    cache.recordRead(cnameNode, cnameEntry);
+                return followAliases(node, cnameEntry.records(), indirectionLevel, i == 0);
+            }
+            // We don't have CNAME in cache
+            if (nameServers == null)
+                break;
+            DNSQueryHandler.Response response = retrieveResultsFromServer(node, zone, nameServers);
+            if (response.isFailure())
+                return LookupResult.SERVER_FAILURE;
+            Set<ResourceRecord> referral = response.getReferral();
+            nameServers = referral == null ? null : nextServerAddresses(referral, indirectionLevel);
+            if (referral != null)
+                zone = response.getReferralZone();
+            if (refresh && referral != null)
+                continue;
+            // update cache results
+            LookupResult cachedResult = peekCachedResult(node);
+            if (cachedResult != null)
+                return cachedResult;
+            if (referral == null) {
+                // a final answer that is not cached, or an alias
+                LookupResult answer = answerOf(node, response, indirectionLevel);
+                if (answer != null)
+                    return answer;
+            }
+        }
+
+        return LookupResult.SERVER_FAILURE;
+    }
+
+    /**
+     * Returns the results given for a node by the final response of a server: the records of the
+     * node in the answer section, the negative answer if it applies to the node itself, or the
+     * results of the names the node is an alias for.
+     *
+     * @param node             Host and record type of the query.
+     * @param response         Response of the server, which is not a referral.
+     * @param indirectionLevel Indirection level of the lookup.
+     * @return The results, or null if the response gives none for the node.
+     */
+    private LookupResult answerOf(DNSNode node, DNSQueryHandler.Response response, int indirectionLevel) {
+        Set<ResourceRecord> records = new HashSet<>();
+        Set<ResourceRecord> cnameRecords = new HashSet<>();
+        for (ResourceRecord record : response.getAnswers()) {
+            if (!record.getNode().getName().equals(node.getName()))
+                continue;
+            if (record.getType() == node.getType())
+                records.add(record);
+            else if (record.getType() == RecordType.CNAME)
+                cnameRecords.add(record);
+        }
+        if (!records.isEmpty())
+            return LookupResult.of(Collections.unmodifiableSet(records));
+        if (node.getName().equals(response.getNegativeName()))
+            return LookupResult.negative(response.getRcode() == DNSMessageEncoder.RCODE_NAME_ERROR, response.getSoa());
+        if (!cnameRecords.isEmpty())
+            return followAliases(node, cnameRecords, indirectionLevel, false);
+        return null;
+    }
+
+    /**
+     * Looks up the names a node is an alias for, with the type of the node.
+     *
+     * @param node             Host and record type of the query.
+     * @param cnameRecords     CNAME records of the host name of the node.
+     * @param indirectionLevel Indirection level of the lookup.
+     * @param cached           true if the CNAME records were read from the cache rather than
+     *                         received, in which case target records found in the cache are
+     *                         reported to the cache as read.
+     * @return The records found for all target names, or, if there are none, the status of the
+     *         (last) target name.
+     */
+    private LookupResult followAliases(DNSNode node, Set<ResourceRecord> cnameRecords, int indirectionLevel, boolean cached) {
+        // start new query with CNAME and node's type
+        Set<ResourceRecord> allResults = new HashSet<ResourceRecord>();
+        LookupResult result = null;
+        for (ResourceRecord cnameRecord : cnameRecords) {
+            DNSNode newNode = new DNSNode(cnameRecord.getNameResult(), node.getType());
+            DNSCache.CachedEntry entry = cached ? cache.peekEntry(newNode) : null;
+            if (entry != null)
+                cache.recordRead(newNode, entry);
+            result = entry != null ? LookupResult.of(entry) : getResults(newNode, indirectionLevel + 1);
+            allResults.addAll(result.getRecords());
+        }
+        if (allResults.isEmpty())
+            return result;
+        return LookupResult.of(Collections.unmodifiableSet(allResults)); // may be shared by coalesced lookups
+    }
+
+    /**
+     * Starts refreshing cached records that are about to expire, if fewer than
+     * maxConcurrentPrefetches refreshes are running. Called by the cache when it reads popular
+     * records in the last part of their TTL.
+     *
+     * @param node Host name and record type to be refreshed.
+     * @return true if the refresh was started, false if too many refreshes are running.
+     */
+    private boolean prefetch(DNSNode node) {
+        if (!prefetchPermits.tryAcquire())
+            return false;
+        try {
+            executor.execute(() -> {
+                try {
+                    if (verboseTracing)
+                        System.out.println("Refreshing " + node + " before it expires");
+                    lookup(node, 0, true);
+                } finally {
+                    prefetchPermits.release();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            prefetchPermits.release();
+            return false;
+        }
+    }
+
+    /**
+     * Chooses the zone where a lookup starts: the closest zone enclosing the host name whose
+     * delegation is in the cache, or the root zone if there is none. A lookup for a name in a
+     * zone that was visited before then needs a single query.
+     *
+     * @param node Host name and record type to be used for search.
+     * @return The zone, with the addresses of its servers for the first query.
+     */
+    private Delegation startingDelegation(DNSNode node) {
+        Delegation delegation = cache.getClosestDelegation(node.getName(), transport.isIPv6Supported());
+        if (delegation == null)
+            return new Delegation(DomainName.ROOT, Collections.emptySet(), Collections.singletonList(rootServer));
+        if (verboseTracing)
+            System.out.println("Starting at cached delegation " + delegation);
+        return delegation;
+    }
+
+    /**
+     * Retrieves DNS results from the servers of a zone. Queries are sent in iterative mode,
+     * and the name servers of the next zone are returned if the response is a referral.
+     * Results are stored in the cache. If the same question is already being sent to the same
+     * servers by another lookup, this method waits for its response instead of sending another
+     * query; unlike whole lookups, this is also done for the lookups of CNAME targets and name
+     * server addresses, since a query never waits for another lookup.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param zone    Zone of the servers; records for names outside it are ignored.
+     * @param servers Addresses of equivalent servers that may be used for the query.
+     * @return The response of the first server that could answer, or Response.FAILURE if none could.
+     **/
+    private DNSQueryHandler.Response retrieveResultsFromServer(DNSNode node, DomainName zone, List<InetAddress> servers) {
+        return hops.execute(new HopKey(node, zone, servers), () -> sendQuery(node, zone, servers));
+    }
+
+    private DNSQueryHandler.Response sendQuery(DNSNode node, DomainName zone, List<InetAddress> servers) {
+        int queryID = queryIds.allocate();
+        ByteBuffer query = queryBuffers.acquire();
+        try {
+            DNSQueryHandler.encodeQuery(query, queryID, node, ednsBufferSize);
+            query.flip();
+
+            if (encodeOnly) return DNSQueryHandler.Response.FAILURE; // For testing query encoding only
+
+            return queryNextLevel(node, zone, servers, query, queryID);
+        } finally {
+            queryBuffers.release(query);
+            queryIds.release(queryID);
+        }
+    }
+
+    /**
+     * Query the next level DNS Server, if necessary. Servers are tried in the order chosen by the
+     * server selector, fastest first, and each is given up on after its own retransmission
+     * timeout, computed from its measured round-trip times. The list is tried again (with the
+     * timeouts backed off) until a server answers, each server was sent the query
+     * MAX_TRANSMISSIONS_PER_SERVER times, or queryTimeoutMillis have passed. A truncated response
+     * is discarded and the query is sent again to the same server over TCP. A server that answers
+     * with an error (such as SERVFAIL or REFUSED) or a response that cannot be used is penalized in
+     * the server selector and not queried again; the next server is tried at once.
+     *
+     * @param node    Host name and record type of the query.
+     * @param zone    Zone of the servers.
+     * @param servers Addresses of equivalent servers that may be used for the query.
+     * @param query   Encoded query, from its position to its limit.
+     * @param queryID uniquely generated ID
+     * @return The response of the first server that could answer, or Response.FAILURE if none could.
+     */
+    private DNSQueryHandler.Response queryNextLevel(DNSNode node, DomainName zone, List<InetAddress> servers, ByteBuffer query, int queryID) {
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queryTimeoutMillis);
+        List<InetAddress> ordered = serverSelector.order(servers);
+        Set<InetAddress> failed = null;
+        for (int transmission = 0; transmission < MAX_TRANSMISSIONS_PER_SERVER; transmission++) {
+            for (InetAddress server : ordered) {
+                if (failed != null && failed.contains(server))
+                    continue;
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return DNSQueryHandler.Response.FAILURE;
+                long timeout = Math.min(serverSelector.getRetransmissionTimeout(server, TimeUnit.NANOSECONDS), remaining);
+                if (verboseTracing) {
+                    System.out.print("\n\n");
+                    System.out.println("Query ID   " + queryID + " " + node.getHostName() + "  " + node.getType() + " --> " + server.getHostAddress());
+                }
+
+                long sent = System.nanoTime();
+                try {
+                    // The transport only completes with a response matching the query ID, server and question
+                    ByteBuffer response = transport.send(query, server, port,
+                            timeout, TimeUnit.NANOSECONDS).get();
+                    long rtt = System.nanoTime() - sent;
+
+                    if (DNSQueryHandler.isTruncated(response)) {
+                        transport.release(response);
+                        if (verboseTracing)
+                            System.out.println("Response truncated, retrying over TCP");
+                        response = queryOverTcp(query, server, deadline);
+                    }
+
+                    DNSQueryHandler.Response decoded = DNSQueryHandler.decodeAndCacheResponse(queryID, node, zone, response, cache, verboseTracing);
+                    transport.release(response);
+                    if (!decoded.isFailure()) {
+                        if (transmission == 0)
+                            serverSelector.recordResponse(server, rtt, TimeUnit.NANOSECONDS);
+                        else
+                            serverSelector.recordRetransmittedResponse(server);
+                        return decoded;
+                    }
+                    serverSelector.recordFailure(server);
+                    if (failed == null)
+                        failed = new HashSet<>();
+                    failed.add(server);
+                    if (failed.size() == ordered.size())
+                        return decoded;
+                } catch (ExecutionException e) {
+                    // try the next server, whether this one timed out or could not be reached
+                    if (e.getCause() instanceof TimeoutException) {
+                        serverSelector.recordTimeout(server);
+                        if (verboseTracing)
+                            System.out.println("Timed out after " + TimeUnit.NANOSECONDS.toMillis(timeout) + " ms");
+                    }
+                } catch (IOException e) {
+                    // TCP retry failed or timed out: try the next server
+                    if (verboseTracing)
+                        System.out.println("TCP query failed: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return DNSQueryHandler.Response.FAILURE;
+                }
+            }
+        }
+        return DNSQueryHandler.Response.FAILURE;
+    }
+
+    /**
+     * Sends a query over a pooled TCP connection and waits for the response.
+     *
+     * @param query    Encoded query, from its position to its limit.
+     * @param server   Address of the server.
+     * @param deadline Time, as a value of System.nanoTime(), by which the response must arrive.
+     * @return The response.
+     * @throws IOException if the query failed or timed out.
+     */
+    private ByteBuffer queryOverTcp(ByteBuffer query, InetAddress server, long deadline) throws IOException, InterruptedException {
+        try {
+            return tcpTransport.send(query, server, port, deadline - System.nanoTime(), TimeUnit.NANOSECONDS).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("TCP query timed out", e.getCause());
+        }
+    }
+
+    /**
+     * Finds the addresses of the servers to query after a referral. The referral either has
+     * the addresses of the name servers (glue), or only their names. In that case the A and
+     * AAAA records of all names are looked up at the same time, and the first A lookup that
+     * finds an address gives the servers for the next query; the other lookups carry on and
+     * leave their results in the cache. The IPv6 addresses found are only used if no A lookup
+     * finds any, since IPv4 is the more reliable path for most hosts. IPv6 addresses, in glue or
+     * looked up, are only usable if the transport can send to IPv6 servers.
+     *
+     * The lookups are given to the executor, but the calling thread runs the first one itself,
+     * and then any other that no executor thread has started yet. It only waits for lookups
+     * that are running in other threads, never for a task queued behind busy threads, so a
+     * lookup makes progress even if every thread of a bounded executor is waiting in this method.
+     *
+     * @param nameServers      Glue address records, or NS records if the referral had no glue.
+     * @param indirectionLevel Indirection level of the lookup that got the referral; lookups of
+     *                         name server names are one level deeper, which stops delegation loops.
+     * @return The addresses of the name servers for the next level, or null if none could be found.
+     */
+    private List<InetAddress> nextServerAddresses(Set<ResourceRecord> nameServers, int indirectionLevel) {
+        Set<InetAddress> addresses = new LinkedHashSet<>();
+        boolean ipv6 = transport.isIPv6Supported();
+        for (ResourceRecord nameServer : nameServers) {
+            InetAddress address = nameServer.getInetResult();
+            if (address != null && (ipv6 || !(address instanceof Inet6Address)))
+                addresses.add(address);
+        }
+        if (!addresses.isEmpty())
+            return new ArrayList<>(addresses);
+
+        List<RecordType> types = ipv6
+                ? Arrays.asList(RecordType.A, RecordType.AAAA) : Collections.singletonList(RecordType.A);
+        CompletableFuture<List<InetAddress>> firstUsable = new CompletableFuture<>();
+        List<InetAddress> ipv6Addresses = Collections.synchronizedList(new ArrayList<>());
+        List<AddressLookup> lookups = new ArrayList<>();
+        List<CompletableFuture<?>> accepted = new ArrayList<>();
+        for (ResourceRecord nameServer : nameServers) {
+            if (nameServer.getNameResult() == null)
+                continue;
+            for (RecordType type : types) {
+                AddressLookup lookup = new AddressLookup(new DNSNode(nameServer.getNameResult(), type), indirectionLevel + 1);
+                lookups.add(lookup);
+                accepted.add(lookup.result
+                        .thenAccept(result -> {
+                            List<InetAddress> found = new ArrayList<>();
+                            for (ResourceRecord address : result.getRecords())
+                                if (address.getInetResult() != null)
+                                    found.add(address.getInetResult());
+                            if (type == RecordType.A && !found.isEmpty())
+                                firstUsable.complete(found);
+                            else
+                                ipv6Addresses.addAll(found);
+                        }));
+            }
+        }
+        CompletableFuture.allOf(accepted.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((ignored, error) -> firstUsable.complete(
+                        ipv6Addresses.isEmpty() ? null : new ArrayList<>(ipv6Addresses)));
+
+        for (int i = 1; i < lookups.size(); i++) {
+            try {
+                executor.execute(lookups.get(i));
+            } catch (RejectedExecutionException e) {
+                break; // run by this thread below
+            }
+        }
+        for (AddressLookup lookup : lookups) {
+            if (firstUsable.isDone())
+                break;
+            lookup.run();
+        }
+        try {
+            return firstUsable.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /** Lookup of the addresses of a name server, run by the first thread that claims it: a thread
+     * of the executor, or the lookup that needs the addresses (see nextServerAddresses).
+     */
+    private final class AddressLookup implements Runnable {
+        private final DNSNode node;
+        private final int indirectionLevel;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        final CompletableFuture<LookupResult> result = new CompletableFuture<>();
+
+        AddressLookup(DNSNode node, int indirectionLevel) {
+            this.node = node;
+            this.indirectionLevel = indirectionLevel;
+        }
+
+        /** Runs the lookup, unless another thread already claimed it. */
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true))
+                return;
+            try {
+                result.complete(getResults(node, indirectionLevel));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /** Identifies a step of a lookup: a question sent to the servers of a zone. */
+    private static final class HopKey {
+        private final DNSNode question;
+        private final DomainName zone;
+        private final Set<InetAddress> servers;
+
+        HopKey(DNSNode question, DomainName zone, List<InetAddress> servers) {
+            this.question = question;
+            this.zone = zone;
+            this.servers = new HashSet<>(servers);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            HopKey hopKey = (HopKey) o;
+            return question.equals(hopKey.question) && zone == hopKey.zone && servers.equals(hopKey.servers);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * question.hashCode() + zone.hashCode()) + servers.hashCode();
+        }
+    }
+}
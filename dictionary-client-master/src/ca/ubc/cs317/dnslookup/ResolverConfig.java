@@ -0,0 +1,197 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
+
+/** Settings used to create a Resolver. A configuration may be reused to create several resolvers;
+ * changing it after a resolver was created has no effect on that resolver.
+ */
+public class ResolverConfig {
+
+    public static final int DEFAULT_DNS_PORT = 53;
+
+    private InetAddress rootServer;
+    private int port = DEFAULT_DNS_PORT;
+    private long queryTimeoutMillis = 10000;
+    private long initialRetransmitTimeoutMillis = 400;
+    private long minRetransmitTimeoutMillis = 50;
+    private long maxRetransmitTimeoutMillis = 5000;
+    private int udpChannelCount = 4;
+    private int ednsBufferSize = 1232;
+    private long tcpIdleTimeoutMillis = 10000;
+    private int prefetchMinimumHits = 3;
+    private int maxConcurrentPrefetches = 8;
+    private long staleAnswerTimeoutMillis = 1800;
+    private ExecutorService executor = null;
+    private boolean verboseTracing = false;
+    private boolean encodeOnly = false;
+
+    public ResolverConfig(InetAddress rootServer) {
+        this.rootServer = rootServer;
+    }
+
+    public InetAddress getRootServer() {
+        return rootServer;
+    }
+
+    /** Sets the root server where iterative lookups start. */
+    public void setRootServer(InetAddress rootServer) {
+        this.rootServer = rootServer;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /** Sets the port used to query name servers (53 by default). */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public long getQueryTimeoutMillis() {
+        return queryTimeoutMillis;
+    }
+
+    /** Sets the total time, in milliseconds, spent on one step of a lookup (a query to the
+     * servers of one zone, with all its retransmissions) before the step is given up on.
+     */
+    public void setQueryTimeoutMillis(long queryTimeoutMillis) {
+        this.queryTimeoutMillis = queryTimeoutMillis;
+    }
+
+    public long getInitialRetransmitTimeoutMillis() {
+        return initialRetransmitTimeoutMillis;
+    }
+
+    /** Sets how long to wait for a server that has not answered any query yet, in milliseconds.
+     * Once a server answers, its timeout is computed from its measured round-trip times.
+     */
+    public void setInitialRetransmitTimeoutMillis(long initialRetransmitTimeoutMillis) {
+        this.initialRetransmitTimeoutMillis = initialRetransmitTimeoutMillis;
+    }
+
+    public long getMinRetransmitTimeoutMillis() {
+        return minRetransmitTimeoutMillis;
+    }
+
+    /** Sets the minimum time to wait for the response of a server, in milliseconds. */
+    public void setMinRetransmitTimeoutMillis(long minRetransmitTimeoutMillis) {
+        this.minRetransmitTimeoutMillis = minRetransmitTimeoutMillis;
+    }
+
+    public long getMaxRetransmitTimeoutMillis() {
+        return maxRetransmitTimeoutMillis;
+    }
+
+    /** Sets the maximum time to wait for the response of a server, in milliseconds, including
+     * the backoff applied after timeouts.
+     */
+    public void setMaxRetransmitTimeoutMillis(long maxRetransmitTimeoutMillis) {
+        this.maxRetransmitTimeoutMillis = maxRetransmitTimeoutMillis;
+    }
+
+    public int getUdpChannelCount() {
+        return udpChannelCount;
+    }
+
+    /** Sets how many UDP channels (local ports) are shared by all queries of the resolver. */
+    public void setUdpChannelCount(int udpChannelCount) {
+        this.udpChannelCount = udpChannelCount;
+    }
+
+    public int getEdnsBufferSize() {
+        return ednsBufferSize;
+    }
+
+    /** Sets the UDP payload size advertised in the EDNS0 OPT record of each query. Responses
+     * larger than this are truncated by the server and fetched again over TCP. The default of 1232
+     * bytes fits in a single unfragmented IPv6 packet on any link. Zero sends queries without an
+     * OPT record, limiting UDP responses to 512 bytes.
+     */
+    public void setEdnsBufferSize(int ednsBufferSize) {
+        if (ednsBufferSize != 0 && (ednsBufferSize < 512 || ednsBufferSize > 65535))
+            throw new IllegalArgumentException("EDNS buffer size must be 0 or between 512 and 65535");
+        this.ednsBufferSize = ednsBufferSize;
+    }
+
+    public long getTcpIdleTimeoutMillis() {
+        return tcpIdleTimeoutMillis;
+    }
+
+    /** Sets how long a TCP connection to a name server is kept open after its last query is
+     * answered, so that later truncated responses can be fetched again without a new handshake.
+     */
+    public void setTcpIdleTimeoutMillis(long tcpIdleTimeoutMillis) {
+        this.tcpIdleTimeoutMillis = tcpIdleTimeoutMillis;
+    }
+
+    public int getPrefetchMinimumHits() {
+        return prefetchMinimumHits;
+    }
+
+    /** Sets how many times cached records must be read before they are refreshed in the
+     * background when they are about to expire. Zero disables refreshes.
+     */
+    public void setPrefetchMinimumHits(int prefetchMinimumHits) {
+        this.prefetchMinimumHits = prefetchMinimumHits;
+    }
+
+    public int getMaxConcurrentPrefetches() {
+        return maxConcurrentPrefetches;
+    }
+
+    /** Sets how many background refreshes may run at the same time. Records that become due for
+     * a refresh while this many refreshes are running are refreshed on a later hit, if any.
+     */
+    public void setMaxConcurrentPrefetches(int maxConcurrentPrefetches) {
+        this.maxConcurrentPrefetches = maxConcurrentPrefetches;
+    }
+
+    public long getStaleAnswerTimeoutMillis() {
+        return staleAnswerTimeoutMillis;
+    }
+
+    /** Sets how long a lookup may take before stale records are returned instead, if the cache
+     * keeps expired records (see DNSCache.setServeStaleWindow). The lookup continues in the
+     * background and refreshes the cache if it succeeds. Stale records are also returned when the
+     * lookup fails. Zero only returns stale records when the lookup fails.
+     */
+    public void setStaleAnswerTimeoutMillis(long staleAnswerTimeoutMillis) {
+        this.staleAnswerTimeoutMillis = staleAnswerTimeoutMillis;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /** Sets the executor that runs asynchronous lookups, and the lookups of name server addresses
+     * started by a lookup. Each lookup occupies one task while it waits for servers, so lookups
+     * run in parallel up to the number of threads of the executor; the lookups of name server
+     * addresses that no thread is free to start are run by the lookup that needs them, so an
+     * executor with a fixed number of threads is slower but cannot deadlock. An executor that
+     * creates a thread per task (including, on recent Java versions, a virtual thread per task)
+     * is the best fit. If no executor is set, the resolver creates and owns a cached thread pool.
+     * An executor set here is not shut down by the resolver.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public boolean isVerboseTracing() {
+        return verboseTracing;
+    }
+
+    /** Sets whether queries and responses are printed on the standard output. */
+    public void setVerboseTracing(boolean verboseTracing) {
+        this.verboseTracing = verboseTracing;
+    }
+
+    public boolean isEncodeOnly() {
+        return encodeOnly;
+    }
+
+    /** Sets whether queries are only encoded and never sent (used to test query encoding). */
+    public void setEncodeOnly(boolean encodeOnly) {
+        this.encodeOnly = encodeOnly;
+    }
+}
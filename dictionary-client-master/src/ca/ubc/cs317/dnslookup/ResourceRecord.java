@@ -2,32 +2,62 @@ package ca.ubc.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
  * and is represented by an expiration time calculated as a delta from the current time.
+ * Expiration times are deadlines on the monotonic System.nanoTime() clock, so changes to the
+ * wall clock cannot make a record expire early or late.
  */
 public class ResourceRecord implements Serializable {
 
     private DNSNode node;
-    private Date expirationTime;
+    private long expirationTime;
     private String textResult;
     private InetAddress inetResult;
+    private DomainName nameResult;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
-        this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
+        this(DomainName.of(hostName), type, ttl, result);
+    }
+
+    public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
+        this(DomainName.of(hostName), type, ttl, result);
+    }
+
+    public ResourceRecord(DomainName name, RecordType type, long ttl, String result) {
+        this.node = new DNSNode(name, type);
+        this.expirationTime = System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl);
         this.textResult = result;
         this.inetResult = null;
     }
 
-    public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
-        this(hostName, type, ttl, result.getHostAddress());
+    public ResourceRecord(DomainName name, RecordType type, long ttl, InetAddress result) {
+        this(name, type, ttl, result.getHostAddress());
         this.inetResult = result;
     }
 
+    /** Creates a record whose result is a domain name, such as an NS or CNAME record. The text
+     * result is the canonical form of the name.
+     */
+    public ResourceRecord(DomainName name, RecordType type, long ttl, DomainName result) {
+        this(name, type, ttl, result.toString());
+        this.nameResult = result;
+    }
+
+    /** Creates a record with an absolute expiration time, used to recreate records from the
+     * compact storage of the cache.
+     */
+    ResourceRecord(DNSNode node, long expirationTime, String textResult, InetAddress inetResult, DomainName nameResult) {
+        this.node = node;
+        this.expirationTime = expirationTime;
+        this.textResult = textResult;
+        this.inetResult = inetResult;
+        this.nameResult = nameResult;
+    }
+
     public DNSNode getNode() {
         return node;
     }
@@ -48,7 +78,17 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - System.nanoTime() + 999_999_999L) / 1_000_000_000L;
+    }
+
+    /** The time at which this record expires, as a value of System.nanoTime(). Deadlines
+     * must only be compared using the difference between two values, since nanoTime values
+     * may overflow.
+     *
+     * @return The expiration deadline of this record, in nanoseconds.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -58,7 +98,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return expirationTime - System.nanoTime() > 0;
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -70,7 +110,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationTime - record.expirationTime < 0;
     }
 
     public String getTextResult() {
@@ -81,6 +121,14 @@ public class ResourceRecord implements Serializable {
         return inetResult;
     }
 
+    /** Returns the domain name this record points to, for NS and CNAME records.
+     *
+     * @return The target name, or null if the result of this record is not a domain name.
+     */
+    public DomainName getNameResult() {
+        return nameResult;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
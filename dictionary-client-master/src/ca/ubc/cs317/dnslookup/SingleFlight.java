@@ -0,0 +1,99 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/** Coalesces concurrent executions of the same task. The first caller for a key (the leader)
+ * runs the task; callers asking for the same key while it runs attach to the leader and get its
+ * result instead of running the task again. Once the task completes, the next call for the key
+ * runs it again, so results are never kept beyond the execution that produced them.
+ *
+ * A task must not, directly or indirectly, wait for a task with the same key, or it waits for
+ * itself forever.
+ *
+ * @param <K> Type of the keys identifying equivalent tasks.
+ * @param <V> Type of the results of the tasks.
+ */
+class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalescedCount = new LongAdder();
+
+    /** Runs a task in the calling thread, or waits for the execution already in progress for the
+     * same key.
+     *
+     * @param key  Key identifying the task.
+     * @param task Task to run if no execution is in progress.
+     * @return The result of the task.
+     */
+    V execute(K key, Supplier<V> task) {
+        CompletableFuture<V> created = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            coalescedCount.increment();
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
+
+        try {
+            V result = task.get();
+            created.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, created);
+        }
+    }
+
+    /** Starts an asynchronous task, or attaches to the execution already in progress for the
+     * same key.
+     *
+     * @param key  Key identifying the task.
+     * @param task Starts the task if no execution is in progress, and returns its future.
+     * @return A future completed with the result of the task. Completing or cancelling it does
+     *         not affect other callers.
+     */
+    CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> task) {
+        CompletableFuture<V> created = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            coalescedCount.increment();
+            return existing.copy();
+        }
+
+        CompletableFuture<V> started;
+        try {
+            started = task.get();
+        } catch (RuntimeException | Error e) {
+            inFlight.remove(key, created);
+            created.completeExceptionally(e);
+            throw e;
+        }
+        started.whenComplete((result, error) -> {
+            inFlight.remove(key, created);
+            if (error != null)
+                created.completeExceptionally(error);
+            else
+                created.complete(result);
+        });
+        return created.copy();
+    }
+
+    /** Returns the number of calls that attached to an execution in progress instead of running
+     * the task.
+     */
+    long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+}
@@ -0,0 +1,358 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/** Non-blocking TCP transport for DNS queries (RFC 7766), used when a UDP response is truncated.
+ * Each message is preceded by its length in two bytes (RFC 1035, section 4.2.2).
+ *
+ * Connections are kept open and reused: the transport holds a small pool of connections per
+ * server, and a query is sent on the least busy of them, so only the first query to a server pays
+ * for the TCP handshake. Queries are pipelined: several may be sent on a connection before their
+ * responses arrive, and responses, which the server may send in any order, are matched to their
+ * query by ID. A connection with no outstanding query is closed after an idle timeout. If the
+ * server closes a connection (as it may at any time), the queries still waiting on it are sent
+ * again once on a new connection.
+ *
+ * Queries may be sent from any thread. A single selector thread owns all connections; other
+ * threads only hand queries over to it, so connection state needs no locking. The result of each
+ * query is delivered through a CompletableFuture.
+ */
+public class TcpTransport implements Closeable {
+
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_CONNECTIONS_PER_SERVER = 2;
+    private static final int MAX_PIPELINED_QUERIES = 64;
+    private static final int MAX_ATTEMPTS = 2;
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final long idleTimeoutNanos;
+    private final Selector selector;
+    private final Thread selectorThread;
+    private final Queue<PendingQuery> submitted = new ConcurrentLinkedQueue<>();
+    private final Map<InetSocketAddress, List<Connection>> pools = new HashMap<>();
+    private volatile boolean closed;
+
+    /** Opens a new transport and starts its selector thread.
+     *
+     * @param idleTimeout Time after which a connection with no outstanding query is closed.
+     * @param unit        Unit of the idle timeout.
+     * @throws IOException if the selector could not be opened.
+     */
+    public TcpTransport(long idleTimeout, TimeUnit unit) throws IOException {
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+        this.selector = Selector.open();
+        selectorThread = new Thread(this::selectLoop, "dns-tcp-transport");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /** Sends a query to a server. The returned future is completed with the response, or
+     * completed exceptionally with a TimeoutException if no response is received in time, or with
+     * an IOException if the query could not be sent or the connection failed.
+     *
+     * @param query   Encoded query, from its position to its limit, starting with the query ID.
+     *                The buffer is not used after this method returns.
+     * @param server  Address of the server the query is sent to.
+     * @param port    Port of the server.
+     * @param timeout Maximum time to wait for a response, including any connection setup.
+     * @param unit    Unit of the timeout.
+     * @return A future completed with the response, positioned at the start of the message.
+     */
+    public CompletableFuture<ByteBuffer> send(ByteBuffer query, InetAddress server, int port, long timeout, TimeUnit unit) {
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        if (query.remaining() < HEADER_SIZE || query.remaining() > 0xFFFF) {
+            future.completeExceptionally(new IOException("Invalid query"));
+            return future;
+        }
+        ByteBuffer message = ByteBuffer.allocate(query.remaining() + 2);
+        message.putShort((short) query.remaining()).put(query.duplicate()).flip();
+
+        future.orTimeout(timeout, unit);
+        submitted.add(new PendingQuery(new InetSocketAddress(server, port), message, future));
+        if (closed)
+            failSubmitted();
+        else
+            selector.wakeup();
+        return future;
+    }
+
+    /** Returns the number of connections currently open or being opened. */
+    public int getConnectionCount() {
+        int count = 0;
+        synchronized (pools) {
+            for (List<Connection> pool : pools.values())
+                count += pool.size();
+        }
+        return count;
+    }
+
+    /** Closes all connections and stops the selector thread. Outstanding queries fail with an
+     * IOException.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void selectLoop() {
+        long nextSweep = System.nanoTime();
+        try {
+            while (!closed) {
+                selector.select(SWEEP_INTERVAL_MILLIS);
+                for (PendingQuery query; (query = submitted.poll()) != null; )
+                    dispatch(query);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable())
+                            connection.finishConnect();
+                        if (key.isValid() && key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.write();
+                    } catch (IOException e) {
+                        connection.fail(e);
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (now - nextSweep >= 0) {
+                    closeIdleConnections(now);
+                    nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // Transport closed
+        } finally {
+            closed = true;
+            List<Connection> connections = new ArrayList<>();
+            synchronized (pools) {
+                pools.values().forEach(connections::addAll);
+            }
+            for (Connection connection : connections)
+                connection.fail(new IOException("Transport closed"));
+            failSubmitted();
+        }
+    }
+
+    private void failSubmitted() {
+        for (PendingQuery query; (query = submitted.poll()) != null; )
+            query.future.completeExceptionally(new IOException("Transport closed"));
+    }
+
+    /** Sends a query on the least busy connection to its server, opening a new connection if all
+     * are busy and the pool is not full. Runs in the selector thread.
+     */
+    private void dispatch(PendingQuery query) {
+        if (query.future.isDone())
+            return;
+        Connection best = null;
+        int poolSize;
+        synchronized (pools) {
+            List<Connection> pool = pools.computeIfAbsent(query.server, server -> new ArrayList<>());
+            for (Connection connection : pool)
+                if (best == null || connection.outstanding.size() < best.outstanding.size())
+                    best = connection;
+            poolSize = pool.size();
+        }
+        if (best == null || (best.outstanding.size() >= MAX_PIPELINED_QUERIES && poolSize < MAX_CONNECTIONS_PER_SERVER)) {
+            try {
+                best = openConnection(query.server);
+            } catch (IOException e) {
+                query.future.completeExceptionally(e);
+                return;
+            }
+        }
+        best.enqueue(query);
+    }
+
+    private Connection openConnection(InetSocketAddress server) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(server, channel);
+            boolean connected = channel.connect(server);
+            connection.key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+            connection.connected = connected;
+            synchronized (pools) {
+                pools.computeIfAbsent(server, key -> new ArrayList<>()).add(connection);
+            }
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        List<Connection> idle = new ArrayList<>();
+        synchronized (pools) {
+            for (List<Connection> pool : pools.values())
+                for (Connection connection : pool)
+                    if (connection.outstanding.isEmpty() && now - connection.lastActivity > idleTimeoutNanos)
+                        idle.add(connection);
+        }
+        for (Connection connection : idle)
+            connection.close();
+    }
+
+    /** A query waiting to be sent or answered: the server, the length-prefixed message and the
+     * future of the caller.
+     */
+    private static final class PendingQuery {
+        final InetSocketAddress server;
+        final ByteBuffer message;
+        final CompletableFuture<ByteBuffer> future;
+        int attempts;
+
+        PendingQuery(InetSocketAddress server, ByteBuffer message, CompletableFuture<ByteBuffer> future) {
+            this.server = server;
+            this.message = message;
+            this.future = future;
+        }
+
+        int queryID() {
+            return message.getShort(2) & 0xFFFF;
+        }
+    }
+
+    /** A connection to one server, with the queries written to it and not answered yet (keyed by
+     * query ID), the messages still to be written, and the state of the response being read.
+     * Only used from the selector thread, except for the map of outstanding queries, from which
+     * queries that time out are removed by the thread completing their future.
+     */
+    private final class Connection {
+        final InetSocketAddress server;
+        final SocketChannel channel;
+        final ConcurrentMap<Integer, PendingQuery> outstanding = new ConcurrentHashMap<>();
+        final Deque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        final ByteBuffer lengthBuffer = ByteBuffer.allocate(2);
+        ByteBuffer responseBuffer;
+        SelectionKey key;
+        boolean connected;
+        boolean closed;
+        long lastActivity = System.nanoTime();
+
+        Connection(InetSocketAddress server, SocketChannel channel) {
+            this.server = server;
+            this.channel = channel;
+        }
+
+        void enqueue(PendingQuery query) {
+            int queryID = query.queryID();
+            if (outstanding.putIfAbsent(queryID, query) != null) {
+                query.future.completeExceptionally(new IOException("Query already in flight: " + queryID));
+                return;
+            }
+            query.attempts++;
+            query.future.whenComplete((response, error) -> outstanding.remove(queryID, query));
+            writeQueue.add(query.message.duplicate());
+            lastActivity = System.nanoTime();
+            if (connected)
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void finishConnect() throws IOException {
+            channel.finishConnect();
+            connected = true;
+            key.interestOps(SelectionKey.OP_READ | (writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+
+        void write() throws IOException {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer message = writeQueue.peek();
+                channel.write(message);
+                if (message.hasRemaining())
+                    return;
+                writeQueue.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void read() throws IOException {
+            while (true) {
+                ByteBuffer buffer = responseBuffer == null ? lengthBuffer : responseBuffer;
+                int count = channel.read(buffer);
+                if (count < 0)
+                    throw new EOFException("Connection closed by server");
+                if (buffer.hasRemaining())
+                    return;
+
+                if (responseBuffer == null) {
+                    lengthBuffer.flip();
+                    responseBuffer = ByteBuffer.allocate(lengthBuffer.getShort() & 0xFFFF);
+                    lengthBuffer.clear();
+                } else {
+                    responseBuffer.flip();
+                    deliver(responseBuffer);
+                    responseBuffer = null;
+                }
+            }
+        }
+
+        private void deliver(ByteBuffer response) {
+            lastActivity = System.nanoTime();
+            if (response.remaining() < HEADER_SIZE || (response.get(2) & 0x80) == 0)
+                return;
+            PendingQuery query = outstanding.remove(response.getShort(0) & 0xFFFF);
+            if (query != null)
+                query.future.complete(response);
+        }
+
+        /** Closes the connection after an error, and sends the queries that were waiting on it
+         * again on another connection, unless they were already sent twice.
+         */
+        void fail(IOException cause) {
+            close();
+            for (PendingQuery query : outstanding.values()) {
+                outstanding.remove(query.queryID(), query);
+                if (query.attempts < MAX_ATTEMPTS && !TcpTransport.this.closed)
+                    dispatch(query);
+                else
+                    query.future.completeExceptionally(cause);
+            }
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            synchronized (pools) {
+                List<Connection> pool = pools.get(server);
+                if (pool != null && pool.remove(this) && pool.isEmpty())
+                    pools.remove(server);
+            }
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
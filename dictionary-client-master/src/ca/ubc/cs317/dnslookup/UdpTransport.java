@@ -0,0 +1,306 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Non-blocking UDP transport for DNS queries. A small number of datagram channels are shared by
+ * all queries, and a single selector thread receives responses on all of them. Each query sent is
+ * kept in a table of outstanding queries, keyed by query ID, server address and question, and a
+ * response is only delivered to the query that matches all three. Responses that match no
+ * outstanding query (late, duplicated or spoofed) are discarded.
+ *
+ * Any number of queries may be in flight at the same time, and queries may be sent from any
+ * thread. The result of each query is delivered through a CompletableFuture. Responses are
+ * copied into pooled buffers, which the caller should hand back with release() once the response
+ * has been decoded.
+ */
+public class UdpTransport implements Closeable {
+
+    private static final int MAX_RESPONSE_SIZE = 65535;
+    private static final int POOLED_RESPONSE_SIZE = 4096;
+    private static final int MAX_POOLED_RESPONSES = 256;
+    // any global IPv6 address works: connecting a datagram channel only looks up a route
+    private static final String IPV6_PROBE_ADDRESS = "2001:4860:4860::8888";
+    private static final int IPV6_PROBE_PORT = 53;
+
+    private final DatagramChannel[] channels;
+    private final Selector selector;
+    private final Thread selectorThread;
+    private final AtomicInteger nextChannel = new AtomicInteger();
+    private final ConcurrentMap<QueryKey, CompletableFuture<ByteBuffer>> outstanding = new ConcurrentHashMap<>();
+    private final BufferPool responsePool = new BufferPool(POOLED_RESPONSE_SIZE, MAX_POOLED_RESPONSES, false);
+    private volatile boolean ipv6Supported;
+
+    /** Opens a new transport and starts its selector thread.
+     *
+     * @param channelCount Number of datagram channels (local ports) to spread queries over.
+     * @throws IOException if a channel could not be opened.
+     */
+    public UdpTransport(int channelCount) throws IOException {
+        selector = Selector.open();
+        channels = new DatagramChannel[channelCount];
+        try {
+            for (int i = 0; i < channelCount; i++) {
+                channels[i] = DatagramChannel.open();
+                channels[i].configureBlocking(false);
+                channels[i].bind(null);
+                channels[i].register(selector, SelectionKey.OP_READ);
+            }
+            ipv6Supported = channels.length > 0
+                    && ((InetSocketAddress) channels[0].getLocalAddress()).getAddress() instanceof Inet6Address
+                    && hasIPv6Route();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        selectorThread = new Thread(this::receiveLoop, "dns-udp-transport");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /** Returns true if the host has a route to the IPv6 internet. Dual-stack sockets are common on
+     * hosts with no IPv6 connectivity beyond the loopback and link-local addresses, where every
+     * query to an IPv6 server would only time out. Connecting a datagram channel sends nothing,
+     * but fails at once if there is no route to the address.
+     */
+    private static boolean hasIPv6Route() {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            probe.connect(new InetSocketAddress(InetAddress.getByName(IPV6_PROBE_ADDRESS), IPV6_PROBE_PORT));
+            return true;
+        } catch (IOException | UnsupportedAddressTypeException e) {
+            return false;
+        }
+    }
+
+    /** Sends a query to a server. The returned future is completed with the response, or
+     * completed exceptionally with a TimeoutException if no matching response is received in time,
+     * or with an IOException if the query could not be sent. The same query (with the same ID) may
+     * be sent again once the previous attempt has completed.
+     *
+     * @param query   Encoded query, from its position to its limit, starting with the query ID and
+     *                containing one question. The buffer is not used after this method returns.
+     * @param server  Address of the server the query is sent to.
+     * @param port    Port of the server.
+     * @param timeout Maximum time to wait for a response.
+     * @param unit    Unit of the timeout.
+     * @return A future completed with the response, positioned at the start of the message.
+     */
+    public CompletableFuture<ByteBuffer> send(ByteBuffer query, InetAddress server, int port, long timeout, TimeUnit unit) {
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        InetSocketAddress address = new InetSocketAddress(server, port);
+        QueryKey key = QueryKey.fromMessage(query.duplicate(), address);
+        if (key == null) {
+            future.completeExceptionally(new IOException("Invalid query"));
+            return future;
+        }
+        if (outstanding.putIfAbsent(key, future) != null) {
+            future.completeExceptionally(new IOException("Query already in flight: " + key));
+            return future;
+        }
+        future.whenComplete((response, error) -> outstanding.remove(key, future));
+        future.orTimeout(timeout, unit);
+
+        DatagramChannel channel = channels[Math.floorMod(nextChannel.getAndIncrement(), channels.length)];
+        try {
+            if (channel.send(query.duplicate(), address) == 0)
+                future.completeExceptionally(new IOException("Send buffer full"));
+        } catch (IOException e) {
+            // the route found when the transport was opened may be gone
+            if (e instanceof SocketException && server instanceof Inet6Address)
+                ipv6Supported = false;
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /** Returns true if the channels of this transport can send to IPv6 addresses (they are
+     * dual-stack sockets) and the host has a route to IPv6 servers, and false if only IPv4 servers
+     * can be queried. Once a query to an IPv6 server cannot be sent because of a network error,
+     * this returns false.
+     */
+    public boolean isIPv6Supported() {
+        return ipv6Supported;
+    }
+
+    /** Hands back the buffer of a response once it is no longer used, so it can hold another
+     * response.
+     *
+     * @param response Response buffer obtained from a future returned by send().
+     */
+    public void release(ByteBuffer response) {
+        responsePool.release(response);
+    }
+
+    /** Returns the number of queries currently waiting for a response.
+     *
+     * @return The number of outstanding queries.
+     */
+    public int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    /** Closes all channels and stops the selector thread. Outstanding queries fail with an
+     * IOException.
+     */
+    @Override
+    public void close() {
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+        for (DatagramChannel channel : channels) {
+            if (channel == null) continue;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        for (CompletableFuture<ByteBuffer> future : outstanding.values())
+            future.completeExceptionally(new IOException("Transport closed"));
+    }
+
+    private void receiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_RESPONSE_SIZE);
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    DatagramChannel channel = (DatagramChannel) keys.next().channel();
+                    keys.remove();
+                    SocketAddress source;
+                    while ((source = receive(channel, buffer)) != null)
+                        deliver(buffer, (InetSocketAddress) source);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // Transport closed
+        }
+    }
+
+    private static SocketAddress receive(DatagramChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        SocketAddress source = channel.receive(buffer);
+        buffer.flip();
+        return source;
+    }
+
+    private void deliver(ByteBuffer buffer, InetSocketAddress source) {
+        if (buffer.remaining() < 12 || (buffer.get(2) & 0x80) == 0) // too short, or not a response
+            return;
+        QueryKey key = QueryKey.fromMessage(buffer.duplicate(), source);
+        if (key == null)
+            return;
+        CompletableFuture<ByteBuffer> future = outstanding.get(key);
+        if (future == null)
+            return;
+
+        ByteBuffer response = buffer.remaining() <= POOLED_RESPONSE_SIZE ? responsePool.acquire()
+                : ByteBuffer.allocate(buffer.remaining());
+        response.put(buffer).flip();
+        if (!future.complete(response))
+            responsePool.release(response);
+    }
+
+    /** Identifies an outstanding query: query ID, server address, and question (name, type and
+     * class). Names are compared in lower case.
+     */
+    private static final class QueryKey {
+        private final int queryID;
+        private final InetSocketAddress server;
+        private final String name;
+        private final int type;
+        private final int qclass;
+
+        private QueryKey(int queryID, InetSocketAddress server, String name, int type, int qclass) {
+            this.queryID = queryID;
+            this.server = server;
+            this.name = name;
+            this.type = type;
+            this.qclass = qclass;
+        }
+
+        /** Builds a key from the header and first question of a DNS message, or returns null if the
+         * message has no valid question.
+         */
+        static QueryKey fromMessage(ByteBuffer message, InetSocketAddress server) {
+            try {
+                int start = message.position();
+                int queryID = message.getShort(start) & 0xFFFF;
+                if ((message.getShort(start + 4) & 0xFFFF) < 1)
+                    return null;
+                StringBuilder name = new StringBuilder();
+                int ptr = start + 12;
+                int end = -1;
+                int jumps = 0;
+                while (true) {
+                    int labelLength = message.get(ptr++) & 0xFF;
+                    if (labelLength == 0)
+                        break;
+                    if (labelLength >= 192) { // compressed name: continue at the offset given
+                        if (end < 0)
+                            end = ptr + 1;
+                        if (++jumps > 16)
+                            return null;
+                        ptr = start + (((labelLength & 0x3F) << 8) | (message.get(ptr) & 0xFF));
+                        continue;
+                    }
+                    if (ptr + labelLength > message.limit())
+                        return null;
+                    for (int i = 0; i < labelLength; i++)
+                        name.append(Character.toLowerCase((char) (message.get(ptr++) & 0xFF)));
+                    name.append('.');
+                }
+                if (end >= 0)
+                    ptr = end;
+                int type = message.getShort(ptr) & 0xFFFF;
+                int qclass = message.getShort(ptr + 2) & 0xFFFF;
+                return new QueryKey(queryID, server, name.toString(), type, qclass);
+            } catch (IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            QueryKey key = (QueryKey) o;
+
+            return queryID == key.queryID && type == key.type && qclass == key.qclass &&
+                    server.equals(key.server) && name.equals(key.name);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = queryID;
+            result = 31 * result + server.hashCode();
+            result = 31 * result + name.hashCode();
+            result = 31 * result + type;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return queryID + " " + name + " (" + type + ") @ " + server;
+        }
+    }
+}
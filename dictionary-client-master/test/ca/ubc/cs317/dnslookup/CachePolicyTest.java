@@ -0,0 +1,134 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static ca.ubc.cs317.dnslookup.Checks.*;
+
+/** Tests of CachePolicy: the total weight stays within the maximum, entries used often are kept
+ * through a scan of entries used once, and an entry leaving the window is only admitted if it was
+ * used more often than the entry it would replace. A bounded DNSCache keeps the policy in step
+ * with its entries when the same names are written from several threads.
+ */
+public class CachePolicyTest {
+
+    public static void main(String[] args) throws Exception {
+        keepsWeightWithinMaximum();
+        keepsFrequentEntriesThroughScan();
+        admitsEntriesUsedMoreOften();
+        tracksRemovalsAndWeightChanges();
+        matchesCacheEntriesAcrossThreads();
+        System.out.println("CachePolicyTest passed");
+    }
+
+    private static void keepsWeightWithinMaximum() {
+        CachePolicy<String> policy = new CachePolicy<>(100, 100);
+        Set<String> cached = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            String key = "key" + i;
+            cached.add(key);
+            cached.removeAll(policy.recordWrite(key, 1 + i % 3));
+            check(policy.getTotalWeight() <= 100, "Total weight over the maximum: " + policy.getTotalWeight());
+        }
+        check(cached.size() >= 100 / 3, "Too few entries kept: " + cached.size());
+    }
+
+    private static void keepsFrequentEntriesThroughScan() {
+        CachePolicy<String> policy = new CachePolicy<>(100, 100);
+        Set<String> cached = new HashSet<>();
+        List<String> frequent = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String key = "frequent" + i;
+            frequent.add(key);
+            cached.add(key);
+            cached.removeAll(policy.recordWrite(key, 1));
+        }
+        for (int round = 0; round < 5; round++)
+            for (String key : frequent)
+                policy.recordRead(key);
+
+        // the sketch ages its counts, so entries must keep being used to stay frequent
+        for (int i = 0; i < 10_000; i++) {
+            policy.recordRead(frequent.get(i % frequent.size()));
+            String key = "scan" + i;
+            cached.add(key);
+            List<String> evicted = policy.recordWrite(key, 1);
+            for (String victim : evicted)
+                check(!frequent.contains(victim), "Frequent entry evicted by a scan: " + victim);
+            cached.removeAll(evicted);
+        }
+        check(cached.containsAll(frequent), "Frequent entries lost");
+        checkEquals(100L, policy.getTotalWeight(), "Total weight after the scan");
+    }
+
+    private static void admitsEntriesUsedMoreOften() {
+        CachePolicy<String> policy = new CachePolicy<>(10, 10);
+        for (int i = 0; i < 10; i++)
+            policy.recordWrite("old" + i, 1);
+
+        // a new entry used often replaces an old entry used once when it leaves the window...
+        String popular = "popular";
+        policy.recordWrite(popular, 1);
+        for (int i = 0; i < 10; i++)
+            policy.recordRead(popular);
+        List<String> evicted = policy.recordWrite("next", 1);
+        checkEquals(1, evicted.size(), "Entries evicted when the popular entry left the window");
+        check(evicted.get(0).startsWith("old"), "Popular entry not admitted, evicted " + evicted);
+
+        // ...while a new entry used once is rejected in favour of the entry it would replace
+        for (int i = 0; i < 10; i++)
+            policy.recordRead("next");
+        evicted = new ArrayList<>(policy.recordWrite("once", 1));
+        evicted.addAll(policy.recordWrite("again", 1));
+        check(evicted.contains("once"), "Entry used once admitted, evicted " + evicted);
+        check(!evicted.contains(popular) && !evicted.contains("next"), "Popular entry evicted: " + evicted);
+    }
+
+    private static void tracksRemovalsAndWeightChanges() {
+        CachePolicy<String> policy = new CachePolicy<>(100, 100);
+        policy.recordWrite("a", 10);
+        policy.recordWrite("b", 20);
+        checkEquals(30L, policy.getTotalWeight(), "Weight after two writes");
+        policy.updateWeight("b", 5);
+        checkEquals(15L, policy.getTotalWeight(), "Weight after an update");
+        policy.recordRemoval("a");
+        checkEquals(5L, policy.getTotalWeight(), "Weight after a removal");
+        policy.recordRemoval("a");
+        policy.updateWeight("missing", 50);
+        checkEquals(5L, policy.getTotalWeight(), "Weight after changes to missing entries");
+        // no more frequent than the entry it would replace, so rejected
+        checkEquals(Collections.singletonList("c"), policy.recordWrite("c", 100), "Entries evicted for a full-size entry");
+        checkEquals(5L, policy.getTotalWeight(), "Weight after rejecting an entry");
+    }
+
+    private static void matchesCacheEntriesAcrossThreads() throws Exception {
+        DNSCache cache = new DNSCache(50, DNSCache.SizeUnit.RECORDS);
+        try {
+            InetAddress address = InetAddress.getByName("192.0.2.1");
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                threads.add(new Thread(() -> {
+                    // few names, so that writes, replacements and evictions of a name overlap
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < 100_000; i++) {
+                        DNSNode node = new DNSNode("host" + random.nextInt(60) + ".example.com", RecordType.A);
+                        if (random.nextBoolean())
+                            cache.addResult(new ResourceRecord(node.getHostName(), RecordType.A, 300, address));
+                        else
+                            cache.addNegativeResult(node, 300, random.nextBoolean());
+                    }
+                }));
+            }
+            for (Thread thread : threads)
+                thread.start();
+            for (Thread thread : threads)
+                thread.join();
+            // every entry holds a single record or a negative answer, so weighs 1
+            checkEquals((long) cache.size(), cache.getWeightedSize(), "Weight tracked by the policy for the entries cached");
+            check(cache.size() <= 50, "Entries over the maximum: " + cache.size());
+        } finally {
+            cache.close();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static ca.ubc.cs317.dnslookup.Checks.*;
+
+/** Tests of CacheSnapshot: a snapshot loads back the records and negative answers it was written
+ * from, drops what expired while it was on disk, and corrupt or truncated files are rejected.
+ */
+public class CacheSnapshotTest {
+
+    private static final DNSNode NAME_ERROR = new DNSNode("missing.example.com", RecordType.A);
+    private static final DNSNode NO_DATA = new DNSNode("www.example.com", RecordType.MX);
+    private static final ResourceRecord SOA = new ResourceRecord("example.com", RecordType.SOA, 300,
+            "ns1.example.com hostmaster.example.com 2024010101 7200 3600 1209600 300");
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("snapshot-test");
+        try {
+            readsWhatWasWritten(directory.resolve("cache.snapshot"));
+            dropsExpiredRecords(directory.resolve("expired.snapshot"));
+            rejectsCorruptFiles(directory.resolve("corrupt.snapshot"));
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator)
+                    Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+        System.out.println("CacheSnapshotTest passed");
+    }
+
+    private static void readsWhatWasWritten(Path file) throws IOException {
+        List<ResourceRecord> records = Arrays.asList(
+                new ResourceRecord("www.example.com", RecordType.A, 300, InetAddress.getByName("192.0.2.1")),
+                new ResourceRecord("www.example.com", RecordType.A, 600, InetAddress.getByName("192.0.2.2")),
+                new ResourceRecord("www.example.com", RecordType.AAAA, 300, InetAddress.getByName("2001:db8::1")),
+                new ResourceRecord(DomainName.of("alias.example.com"), RecordType.CNAME, 3600, DomainName.of("www.example.com")),
+                new ResourceRecord(DomainName.of("example.com"), RecordType.NS, 86400, DomainName.of("ns1.example.com")),
+                new ResourceRecord("ns1.example.com", RecordType.A, 86400, InetAddress.getByName("192.0.2.53")),
+                new ResourceRecord("example.com", RecordType.MX, 3600, "10 mail.example.com"));
+        DNSCache cache = new DNSCache();
+        DNSCache loaded = new DNSCache();
+        try {
+            for (ResourceRecord record : records) {
+                if (record.getType() == RecordType.NS)
+                    cache.addDelegation(record);
+                else
+                    cache.addResult(record);
+            }
+            cache.addNegativeResult(NAME_ERROR, 300, true, SOA);
+            cache.addNegativeResult(NO_DATA, 300, false);
+
+            checkEquals(records.size(), cache.saveSnapshot(file), "Records written");
+            check(!Files.exists(file.resolveSibling(file.getFileName() + ".tmp")), "Temporary file left behind");
+            checkEquals(records.size(), loaded.loadSnapshot(file), "Records read");
+
+            for (ResourceRecord record : records) {
+                Set<ResourceRecord> results = loaded.getCachedResults(record.getNode());
+                check(results.contains(record), "Record not loaded: " + record);
+                for (ResourceRecord result : results)
+                    if (result.equals(record))
+                        check(Math.abs(result.getTTL() - record.getTTL()) <= 1, "TTL of " + record + ": " + result.getTTL());
+            }
+            check(loaded.getCachedResults(new DNSNode("alias.example.com", RecordType.CNAME)).iterator().next()
+                    .getNameResult() == DomainName.of("www.example.com"), "Name result of a CNAME record");
+            Delegation delegation = loaded.getClosestDelegation(DomainName.of("www.example.com"), false);
+            check(delegation != null && delegation.getZone() == DomainName.of("example.com"), "Delegation not loaded");
+
+            check(loaded.hasNameError(NAME_ERROR), "Name error not loaded");
+            ResourceRecord soa = loaded.getCachedEntry(NAME_ERROR).getSoa();
+            check(soa != null && soa.getNode().equals(SOA.getNode()) && soa.getTextResult().equals(SOA.getTextResult()),
+                    "SOA record of the name error: " + soa);
+            check(loaded.hasNegativeResult(NO_DATA) && !loaded.hasNameError(NO_DATA), "NODATA answer not loaded");
+            check(loaded.getCachedEntry(NO_DATA).getSoa() == null, "SOA record loaded for a NODATA answer without one");
+        } finally {
+            cache.close();
+            loaded.close();
+        }
+    }
+
+    private static void dropsExpiredRecords(Path file) throws Exception {
+        DNSCache cache = new DNSCache();
+        DNSCache loaded = new DNSCache();
+        try {
+            ResourceRecord lasting = new ResourceRecord("www.example.com", RecordType.A, 300, InetAddress.getByName("192.0.2.1"));
+            cache.addResult(lasting);
+            cache.addResult(new ResourceRecord("short.example.com", RecordType.A, 1, InetAddress.getByName("192.0.2.2")));
+            cache.addNegativeResult(NAME_ERROR, 1, true, SOA);
+            checkEquals(2, cache.saveSnapshot(file), "Records written");
+
+            Thread.sleep(1100);
+            checkEquals(1, loaded.loadSnapshot(file), "Records read after one expired");
+            checkEquals(Collections.singleton(lasting), loaded.getCachedResults(lasting.getNode()), "Unexpired record");
+            check(loaded.getCachedEntry(new DNSNode("short.example.com", RecordType.A)) == null, "Expired record loaded");
+            check(!loaded.hasNegativeResult(NAME_ERROR), "Expired negative answer loaded");
+        } finally {
+            cache.close();
+            loaded.close();
+        }
+    }
+
+    private static void rejectsCorruptFiles(Path file) throws IOException {
+        DNSCache cache = new DNSCache();
+        try {
+            cache.addResult(new ResourceRecord("www.example.com", RecordType.A, 300, InetAddress.getByName("192.0.2.1")));
+            cache.addNegativeResult(NAME_ERROR, 300, true, SOA);
+            cache.saveSnapshot(file);
+        } finally {
+            cache.close();
+        }
+        byte[] snapshot = Files.readAllBytes(file);
+
+        // the checksum is verified before any entry is read, so nothing is added to the cache
+        byte[] flipped = snapshot.clone();
+        flipped[flipped.length / 2] ^= 0x40;
+        checkEquals(0, checkRejected(file, flipped, "Snapshot with a corrupt byte").size(), "Entries added");
+        checkRejected(file, Arrays.copyOf(snapshot, snapshot.length - 5), "Truncated snapshot");
+        checkRejected(file, new byte[0], "Empty snapshot");
+
+        // a valid checksum does not make up for a wrong header or entry count
+        byte[] wrongMagic = snapshot.clone();
+        wrongMagic[0] ^= 0x01;
+        checkRejected(file, withChecksum(wrongMagic), "Snapshot with a wrong magic number");
+        byte[] wrongCount = snapshot.clone();
+        wrongCount[wrongCount.length - 9]++;
+        checkRejected(file, withChecksum(wrongCount), "Snapshot with a wrong entry count");
+    }
+
+    /** Checks that a snapshot is rejected, and returns the cache it was read into. */
+    private static DNSCache checkRejected(Path file, byte[] snapshot, String what) throws IOException {
+        Files.write(file, snapshot);
+        DNSCache cache = new DNSCache();
+        try {
+            checkThrows(IOException.class, () -> cache.loadSnapshot(file), what);
+        } finally {
+            cache.close();
+        }
+        return cache;
+    }
+
+    /** Replaces the checksum at the end of a snapshot with the checksum of its contents. */
+    private static byte[] withChecksum(byte[] snapshot) {
+        CRC32 crc = new CRC32();
+        crc.update(snapshot, 0, snapshot.length - 8);
+        ByteBuffer.wrap(snapshot).putLong(snapshot.length - 8, crc.getValue());
+        return snapshot;
+    }
+}
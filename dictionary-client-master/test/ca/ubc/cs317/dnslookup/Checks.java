@@ -0,0 +1,56 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.Objects;
+
+/** Checks used by the tests. The tests are plain programs run by the test target of the Makefile,
+ * in the package of the classes they test so they can reach package-private classes; a failed
+ * check throws an AssertionError, which ends the test with a non-zero exit status.
+ */
+final class Checks {
+
+    private Checks() {
+    }
+
+    /** Fails unless a condition holds.
+     *
+     * @param condition Condition that must hold.
+     * @param message   Description of the failure.
+     */
+    static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    /** Fails unless a value is equal to the expected one.
+     *
+     * @param expected Expected value.
+     * @param actual   Value obtained.
+     * @param what     Description of the value.
+     */
+    static void checkEquals(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual))
+            throw new AssertionError(what + ": expected " + expected + ", got " + actual);
+    }
+
+    /** Fails unless an action throws an exception of a given class.
+     *
+     * @param type   Class of the exception expected.
+     * @param action Action that should throw it.
+     * @param what   Description of the action.
+     */
+    static void checkThrows(Class<? extends Throwable> type, ThrowingRunnable action, String what) {
+        try {
+            action.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e))
+                return;
+            throw new AssertionError(what + ": expected " + type.getSimpleName() + ", got " + e, e);
+        }
+        throw new AssertionError(what + ": expected " + type.getSimpleName() + ", nothing thrown");
+    }
+
+    /** An action that may throw any exception. */
+    interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,106 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+
+import static ca.ubc.cs317.dnslookup.Checks.*;
+
+/** Tests of the negative answers of DNSCache (RFC 2308): NXDOMAIN and NODATA answers are cached
+ * with the SOA record of their zone for their TTL, and replace or are replaced by records.
+ */
+public class DNSCacheTest {
+
+    private static final DNSNode NODE = new DNSNode("missing.example.com", RecordType.A);
+    private static final ResourceRecord SOA = new ResourceRecord("example.com", RecordType.SOA, 86400,
+            "ns.example.com hostmaster.example.com 2024010101 7200 3600 1209600 300");
+
+    public static void main(String[] args) throws Exception {
+        cachesNameErrorWithSoa();
+        cachesNoData();
+        ignoresNegativeAnswersWithoutTtl();
+        replacesNegativeAnswersAndRecords();
+        expiresNegativeAnswers();
+        System.out.println("DNSCacheTest passed");
+    }
+
+    private static void cachesNameErrorWithSoa() {
+        DNSCache cache = new DNSCache();
+        try {
+            cache.addNegativeResult(NODE, 300, true, SOA);
+            check(cache.hasNegativeResult(NODE), "Negative answer not cached");
+            check(cache.hasNameError(NODE), "Name error not cached");
+            checkEquals(Collections.emptySet(), cache.getCachedResults(NODE), "Records of a negative answer");
+
+            DNSCache.CachedEntry entry = cache.getCachedEntry(NODE);
+            check(entry != null && entry.isNegative() && entry.isNameError(), "Entry of a name error");
+            ResourceRecord soa = entry.getSoa();
+            check(soa != null, "SOA record of a name error not kept");
+            checkEquals(SOA.getNode(), soa.getNode(), "Owner of the SOA record");
+            checkEquals(SOA.getTextResult(), soa.getTextResult(), "Data of the SOA record");
+            // the SOA record is only valid as long as the negative answer
+            check(soa.getTTL() > 0 && soa.getTTL() <= 300, "TTL of the SOA record: " + soa.getTTL());
+
+            LookupResult result = LookupResult.of(entry);
+            checkEquals(DNSMessageEncoder.RCODE_NAME_ERROR, result.getRcode(), "Response code of a name error");
+            check(result.getSoa() == soa, "SOA record of the lookup result");
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static void cachesNoData() {
+        DNSCache cache = new DNSCache();
+        try {
+            cache.addNegativeResult(NODE, 300, false);
+            check(cache.hasNegativeResult(NODE), "Negative answer not cached");
+            check(!cache.hasNameError(NODE), "NODATA answer cached as a name error");
+            DNSCache.CachedEntry entry = cache.getCachedEntry(NODE);
+            check(entry.isNegative() && !entry.isNameError() && entry.getSoa() == null, "Entry of a NODATA answer");
+            check(LookupResult.of(entry).isNoData(), "Lookup result of a NODATA answer");
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static void ignoresNegativeAnswersWithoutTtl() {
+        DNSCache cache = new DNSCache();
+        try {
+            cache.addNegativeResult(NODE, 0, true, SOA);
+            check(!cache.hasNegativeResult(NODE), "Negative answer with no TTL cached");
+            check(cache.getCachedEntry(NODE) == null, "Entry for a negative answer with no TTL");
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static void replacesNegativeAnswersAndRecords() throws UnknownHostException {
+        DNSCache cache = new DNSCache();
+        try {
+            ResourceRecord record = new ResourceRecord(NODE.getHostName(), RecordType.A, 300, InetAddress.getByName("192.0.2.1"));
+            cache.addNegativeResult(NODE, 300, true, SOA);
+            cache.addResult(record);
+            check(!cache.hasNegativeResult(NODE), "Negative answer kept after a record was added");
+            checkEquals(Collections.singleton(record), cache.getCachedResults(NODE), "Records after a negative answer");
+
+            cache.addNegativeResult(NODE, 300, false);
+            check(cache.hasNegativeResult(NODE), "Negative answer not cached over records");
+            checkEquals(Collections.emptySet(), cache.getCachedResults(NODE), "Records after a negative answer");
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static void expiresNegativeAnswers() throws InterruptedException {
+        DNSCache cache = new DNSCache();
+        try {
+            cache.addNegativeResult(NODE, 1, true, SOA);
+            check(cache.hasNameError(NODE), "Name error not cached");
+            Thread.sleep(1100);
+            check(!cache.hasNegativeResult(NODE), "Negative answer kept past its TTL");
+            check(cache.getCachedEntry(NODE) == null, "Entry kept past its TTL");
+        } finally {
+            cache.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static ca.ubc.cs317.dnslookup.Checks.*;
+
+/** Round trips through DNSMessageDecoder: queries encoded by DNSQueryHandler and responses
+ * encoded by DNSMessageEncoder decode to what was encoded, truncated responses stay valid, and
+ * malformed messages are rejected.
+ */
+public class DNSMessageDecoderTest {
+
+    public static void main(String[] args) throws Exception {
+        decodesEncodedQuery();
+        decodesEncodedResponse();
+        decodesTruncatedResponse();
+        rejectsMalformedMessages();
+        System.out.println("DNSMessageDecoderTest passed");
+    }
+
+    private static void decodesEncodedQuery() {
+        DNSNode node = new DNSNode("mail.example.com", RecordType.MX);
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        DNSQueryHandler.encodeQuery(buffer, 0x1234, node, 1232);
+        buffer.flip();
+
+        DNSMessageDecoder decoder = new DNSMessageDecoder(buffer);
+        checkEquals(0x1234, decoder.getID(), "ID");
+        check(!decoder.isResponse() && !decoder.isRecursionDesired(), "Flags of an iterative query");
+        checkEquals(0, decoder.getOpcode(), "Opcode");
+        checkEquals(1, decoder.getQuestionCount(), "Question count");
+        checkEquals(node, decoder.readQuestion(), "Question");
+        checkEquals(1, decoder.getAdditionalCount(), "Additional count");
+        check(decoder.readRecord() == null, "OPT record decoded as a resource record");
+        checkEquals(1232, decoder.getEdnsPayloadSize(), "EDNS0 payload size");
+    }
+
+    private static void decodesEncodedResponse() throws Exception {
+        DNSNode question = new DNSNode("www.example.com", RecordType.A);
+        List<ResourceRecord> answers = Arrays.asList(
+                new ResourceRecord(DomainName.of("www.example.com"), RecordType.CNAME, 3600, DomainName.of("web.example.com")),
+                new ResourceRecord("web.example.com", RecordType.A, 300, InetAddress.getByName("192.0.2.10")),
+                new ResourceRecord("web.example.com", RecordType.AAAA, 300, InetAddress.getByName("2001:db8::10")),
+                new ResourceRecord("www.example.com", RecordType.MX, 600, "10 mx.example.com"),
+                new ResourceRecord(DomainName.of("example.com"), RecordType.NS, 86400, DomainName.of("ns1.example.com")));
+        ResourceRecord soa = new ResourceRecord("example.com", RecordType.SOA, 300,
+                "ns1.example.com hostmaster.example.com 2024010101 7200 3600 1209600 300");
+
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        DNSMessageEncoder encoder = new DNSMessageEncoder(buffer, 4096, 1232);
+        encoder.writeHeader(0xBEEF, 0, true, DNSMessageEncoder.RCODE_NO_ERROR);
+        encoder.writeQuestion(question, questionBytes("WwW.ExAmPlE.cOm", RecordType.A));
+        for (ResourceRecord answer : answers)
+            check(encoder.addAnswer(answer), "Answer did not fit");
+        check(encoder.addAuthority(soa), "Authority record did not fit");
+        ByteBuffer message = encoder.finish();
+        check(!encoder.isTruncated(), "Response truncated");
+
+        DNSMessageDecoder decoder = new DNSMessageDecoder(message);
+        checkEquals(0xBEEF, decoder.getID(), "ID");
+        check(decoder.isResponse() && decoder.isRecursionDesired() && decoder.isRecursionAvailable(), "Flags of the response");
+        check(!decoder.isTruncated(), "TC flag of a complete response");
+        checkEquals(DNSMessageEncoder.RCODE_NO_ERROR, decoder.getRcode(), "Response code");
+        checkEquals(question, decoder.readQuestion(), "Question");
+        // the question is written as given, in the case chosen by the client
+        checkEquals("WwW", new String(bytesAt(message, 13, 3), StandardCharsets.US_ASCII), "Case of the question");
+        checkEquals(answers.size(), decoder.getAnswerCount(), "Answer count");
+        for (ResourceRecord expected : answers)
+            checkRecord(expected, decoder.readRecord());
+        checkEquals(1, decoder.getAuthorityCount(), "Authority count");
+        checkRecord(soa, decoder.readRecord());
+        checkEquals(1, decoder.getAdditionalCount(), "Additional count");
+        check(decoder.readRecord() == null, "OPT record decoded as a resource record");
+        checkEquals(1232, decoder.getEdnsPayloadSize(), "EDNS0 payload size");
+    }
+
+    private static void decodesTruncatedResponse() throws Exception {
+        DNSNode question = new DNSNode("big.example.com", RecordType.A);
+        ByteBuffer buffer = ByteBuffer.allocate(65535);
+        DNSMessageEncoder encoder = new DNSMessageEncoder(buffer, 512, 0);
+        encoder.writeHeader(1, 0, false, DNSMessageEncoder.RCODE_NO_ERROR);
+        encoder.writeQuestion(question, questionBytes("big.example.com", RecordType.A));
+        int added = 0;
+        for (int i = 0; i < 60 && encoder.addAnswer(new ResourceRecord(question.getHostName(), RecordType.A, 300,
+                InetAddress.getByName("198.51.100." + i))); i++)
+            added++;
+        ByteBuffer message = encoder.finish();
+        check(encoder.isTruncated(), "Response over 512 bytes not truncated");
+        check(message.remaining() <= 512, "Truncated response of " + message.remaining() + " bytes");
+
+        DNSMessageDecoder decoder = new DNSMessageDecoder(message);
+        check(decoder.isTruncated(), "TC flag of a truncated response");
+        checkEquals(added, decoder.getAnswerCount(), "Answer count of a truncated response");
+        decoder.readQuestion();
+        for (int i = 0; i < added; i++)
+            checkEquals(InetAddress.getByName("198.51.100." + i), decoder.readRecord().getInetResult(), "Address " + i);
+    }
+
+    private static void rejectsMalformedMessages() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        DNSMessageEncoder encoder = new DNSMessageEncoder(buffer, 512, 0);
+        encoder.writeHeader(2, 0, false, DNSMessageEncoder.RCODE_NO_ERROR);
+        encoder.writeQuestion(new DNSNode("example.com", RecordType.A), questionBytes("example.com", RecordType.A));
+        encoder.addAnswer(new ResourceRecord("example.com", RecordType.A, 300, InetAddress.getByName("192.0.2.1")));
+        ByteBuffer message = encoder.finish();
+
+        ByteBuffer cut = message.duplicate();
+        cut.limit(cut.limit() - 2);
+        DNSMessageDecoder decoder = new DNSMessageDecoder(cut);
+        decoder.readQuestion();
+        checkThrows(DNSMessageDecoder.MalformedMessageException.class, decoder::readRecord, "Record cut short");
+
+        // a question name that points to itself
+        ByteBuffer loop = ByteBuffer.allocate(18);
+        loop.putShort((short) 3).putShort((short) 0).putShort((short) 1).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        loop.putShort((short) 0xC00C).putShort((short) 1).putShort((short) 1).flip();
+        checkThrows(DNSMessageDecoder.MalformedMessageException.class, new DNSMessageDecoder(loop)::readQuestion,
+                "Compression loop");
+    }
+
+    private static void checkRecord(ResourceRecord expected, ResourceRecord actual) {
+        checkEquals(expected, actual, "Record");
+        checkEquals(expected.getType(), actual.getType(), "Type of " + expected);
+        check(actual.getTTL() <= expected.getTTL() && actual.getTTL() >= expected.getTTL() - 1,
+                "TTL of " + expected + ": " + actual.getTTL());
+    }
+
+    /** Returns a question in wire format, with the name in the case given. */
+    private static byte[] questionBytes(String name, RecordType type) {
+        ByteBuffer question = ByteBuffer.allocate(name.length() + 6);
+        for (String label : name.split("\\.")) {
+            question.put((byte) label.length());
+            question.put(label.getBytes(StandardCharsets.US_ASCII));
+        }
+        question.put((byte) 0).putShort((short) type.getCode()).putShort((short) 1);
+        return Arrays.copyOf(question.array(), question.position());
+    }
+
+    private static byte[] bytesAt(ByteBuffer message, int offset, int length) {
+        byte[] bytes = new byte[length];
+        message.get(message.position() + offset, bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,119 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static ca.ubc.cs317.dnslookup.Checks.*;
+
+/** Tests of the responses cached by DNSQueryHandler: records for names outside the zone of the
+ * servers queried are dropped, only the NS records of a referral become a delegation that
+ * lookups may start from, and records of unknown types are not cached.
+ */
+public class DNSQueryHandlerTest {
+
+    private static final DNSNode QUESTION = new DNSNode("www.example.com", RecordType.A);
+    private static final DomainName ZONE = DomainName.of("com");
+
+    public static void main(String[] args) throws Exception {
+        ignoresRecordsOutsideZone();
+        cachesReferralAsDelegation();
+        ignoresUnknownTypes();
+        System.out.println("DNSQueryHandlerTest passed");
+    }
+
+    private static void ignoresRecordsOutsideZone() throws Exception {
+        DNSCache cache = new DNSCache();
+        try {
+            DNSQueryHandler.Response response = decode(cache,
+                    new ResourceRecord("www.example.net", RecordType.A, 300, InetAddress.getByName("198.51.100.6")),
+                    ns("example.com", "ns1.example.com"),
+                    ns("net", "ns.attacker.example"),
+                    ns("other.com", "ns.attacker.example"));
+
+            checkEquals(DomainName.of("example.com"), response.getReferralZone(), "Zone of the referral");
+            checkEquals(Collections.singleton(ns("example.com", "ns1.example.com")), response.getReferral(),
+                    "Name servers of the referral");
+            checkEquals(Collections.emptyList(), response.getAnswers(), "Answers outside the zone");
+            check(cache.getCachedEntry(new DNSNode("www.example.net", RecordType.A)) == null, "Answer outside the zone cached");
+            check(cache.getCachedEntry(new DNSNode("net", RecordType.NS)) == null, "NS records outside the zone cached");
+            check(cache.getCachedEntry(new DNSNode("other.com", RecordType.NS)) == null,
+                    "NS records of a zone not enclosing the name cached");
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static void cachesReferralAsDelegation() throws Exception {
+        DNSCache cache = new DNSCache();
+        try {
+            decode(cache, ns("example.com", "ns1.example.com"));
+            cache.addResult(new ResourceRecord("ns1.example.com", RecordType.A, 300, InetAddress.getByName("192.0.2.53")));
+            Delegation delegation = cache.getClosestDelegation(QUESTION.getName(), false);
+            check(delegation != null && delegation.getZone() == DomainName.of("example.com"), "Delegation: " + delegation);
+            checkEquals(Collections.singletonList(InetAddress.getByName("192.0.2.53")), delegation.getAddresses(),
+                    "Addresses of the delegation");
+
+            // IPv6 addresses of the name servers are only returned if they can be used
+            cache.addResult(new ResourceRecord("ns1.example.com", RecordType.AAAA, 300, InetAddress.getByName("2001:db8::53")));
+            checkEquals(1, cache.getClosestDelegation(QUESTION.getName(), false).getAddresses().size(), "IPv4 addresses");
+            checkEquals(2, cache.getClosestDelegation(QUESTION.getName(), true).getAddresses().size(), "IPv4 and IPv6 addresses");
+
+            // NS records that did not come from a referral are not a delegation
+            cache.addResult(ns("example.org", "ns1.example.com"));
+            check(cache.getClosestDelegation(DomainName.of("www.example.org"), false) == null,
+                    "Delegation from NS records not learned from a referral");
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static void ignoresUnknownTypes() {
+        ByteBuffer query = ByteBuffer.allocate(512);
+        DNSQueryHandler.encodeQuery(query, 7, QUESTION);
+        query.flip();
+        ByteBuffer response = ByteBuffer.allocate(512).put(query);
+        response.put(2, (byte) 0x84).putShort(6, (short) 2); // QR and AA flags, two answers
+        // TXT (16) and an unassigned type (65280) records for the name of the question
+        for (int type : new int[]{16, 65280})
+            response.putShort((short) 0xC00C).putShort((short) type).putShort((short) 1).putInt(300)
+                    .putShort((short) 4).put(new byte[]{3, 'a', 'b', 'c'});
+        response.flip();
+
+        DNSCache cache = new DNSCache();
+        try {
+            DNSQueryHandler.Response decoded = DNSQueryHandler.decodeAndCacheResponse(7, QUESTION, ZONE, response, cache, false);
+            checkEquals(2, decoded.getAnswers().size(), "Answers of unknown types decoded");
+            check(cache.getCachedEntry(new DNSNode("www.example.com", RecordType.OTHER)) == null,
+                    "Records of unknown types cached");
+            checkEquals(0, cache.size(), "Entries cached");
+        } finally {
+            cache.close();
+        }
+    }
+
+    /** Decodes a non-authoritative response to QUESTION from a server of ZONE, with the given
+     * answer (if the first record is not an NS record) and authority records. */
+    private static DNSQueryHandler.Response decode(DNSCache cache, ResourceRecord... records) {
+        ByteBuffer query = ByteBuffer.allocate(512);
+        DNSQueryHandler.encodeQuery(query, 7, QUESTION);
+        byte[] question = Arrays.copyOfRange(query.array(), 12, query.position());
+
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        DNSMessageEncoder encoder = new DNSMessageEncoder(buffer, 512, 0);
+        encoder.writeHeader(7, 0, false, DNSMessageEncoder.RCODE_NO_ERROR);
+        encoder.writeQuestion(QUESTION, question);
+        for (ResourceRecord record : records) {
+            if (record.getType() == RecordType.NS)
+                encoder.addAuthority(record);
+            else
+                encoder.addAnswer(record);
+        }
+        return DNSQueryHandler.decodeAndCacheResponse(7, QUESTION, ZONE, encoder.finish(), cache, false);
+    }
+
+    private static ResourceRecord ns(String zone, String nameServer) {
+        return new ResourceRecord(DomainName.of(zone), RecordType.NS, 3600, DomainName.of(nameServer));
+    }
+}
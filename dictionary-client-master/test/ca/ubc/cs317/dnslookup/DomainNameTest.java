@@ -0,0 +1,34 @@
+package ca.ubc.cs317.dnslookup;
+
+import static ca.ubc.cs317.dnslookup.Checks.*;
+
+/** Tests of DomainName.of: names are canonical and interned, the root has two textual forms, and
+ * names that cannot be written in the wire format unchanged are rejected.
+ */
+public class DomainNameTest {
+
+    public static void main(String[] args) {
+        parsesNames();
+        rejectsInvalidNames();
+        System.out.println("DomainNameTest passed");
+    }
+
+    private static void parsesNames() {
+        DomainName name = DomainName.of("WWW.Example.COM.");
+        check(name == DomainName.of("www.example.com"), "Name not interned in lower case, without the trailing dot");
+        checkEquals("www.example.com", name.toString(), "Text of the name");
+        checkEquals(3, name.getLabelCount(), "Label count");
+        check(DomainName.of("") == DomainName.ROOT && DomainName.of(".") == DomainName.ROOT, "Root name");
+        checkEquals(1 + 63 + 1 + 3 + 1, DomainName.of("a".repeat(63) + ".com").getWireLength(),
+                "Wire length with a label of 63 characters");
+    }
+
+    private static void rejectsInvalidNames() {
+        for (String name : new String[]{"a..b", ".a", "a.b..", ".."})
+            checkThrows(IllegalArgumentException.class, () -> DomainName.of(name), "Empty label in \"" + name + "\"");
+        // the low byte of U+0161 is 'a', so the name would otherwise become "a.example"
+        checkThrows(IllegalArgumentException.class, () -> DomainName.of("\u0161.example"), "Character beyond Latin-1");
+        checkThrows(IllegalArgumentException.class, () -> DomainName.of("caf\u00e9.example"), "Character that is not ASCII");
+        checkThrows(IllegalArgumentException.class, () -> DomainName.of("a".repeat(64) + ".com"), "Label of 64 characters");
+    }
+}
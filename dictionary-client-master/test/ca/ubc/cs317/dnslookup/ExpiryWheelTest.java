@@ -0,0 +1,87 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static ca.ubc.cs317.dnslookup.Checks.*;
+
+/** Tests of ExpiryWheel: keys expire in the order of their deadlines, never before them, across
+ * all levels of the wheel, whether the wheel is advanced continuously or rarely.
+ */
+public class ExpiryWheelTest {
+
+    private static final long TICK_MICROS = 100;
+    // deadlines in the first three levels of the wheel (64 and 4096 ticks of 100 microseconds), and one due
+    private static final long[] DELAYS_MILLIS = {30, 2, 250, 12, -5, 6, 120, 1, 45};
+
+    public static void main(String[] args) throws InterruptedException {
+        expiresInDeadlineOrderWhenAdvancedContinuously();
+        expiresInDeadlineOrderWhenAdvancedOnce();
+        keepsDistantDeadlines();
+        System.out.println("ExpiryWheelTest passed");
+    }
+
+    private static void expiresInDeadlineOrderWhenAdvancedContinuously() {
+        List<Long> expired = new ArrayList<>();
+        Map<Long, Long> expiredAt = new HashMap<>();
+        ExpiryWheel<Long> wheel = new ExpiryWheel<>(TICK_MICROS, TimeUnit.MICROSECONDS, deadline -> {
+            expired.add(deadline);
+            expiredAt.put(deadline, System.nanoTime());
+        });
+        List<Long> deadlines = schedule(wheel);
+
+        // advancing without pause catches keys expired even a fraction of a tick early
+        long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (expired.size() < deadlines.size() && System.nanoTime() - giveUp < 0)
+            wheel.advance();
+        checkEquals(deadlines, expired, "Keys expired when advancing continuously");
+        for (long deadline : deadlines)
+            check(expiredAt.get(deadline) - deadline >= 0, "Key expired before its deadline");
+    }
+
+    private static void expiresInDeadlineOrderWhenAdvancedOnce() throws InterruptedException {
+        List<Long> expired = new ArrayList<>();
+        ExpiryWheel<Long> wheel = new ExpiryWheel<>(TICK_MICROS, TimeUnit.MICROSECONDS, expired::add);
+        List<Long> deadlines = schedule(wheel);
+        wheel.advance();
+        long now = System.nanoTime();
+        checkEquals(deadlines.subList(0, expired.size()), expired, "Keys expired by the first advance");
+        check(!expired.isEmpty(), "Key past its deadline not expired");
+        for (long deadline : expired)
+            check(deadline - now <= 0, "Key expired before its deadline");
+
+        TimeUnit.NANOSECONDS.sleep(deadlines.get(deadlines.size() - 1) - System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1));
+        wheel.advance();
+        checkEquals(deadlines, expired, "Keys expired in a single advance");
+    }
+
+    private static void keepsDistantDeadlines() throws InterruptedException {
+        List<String> expired = new ArrayList<>();
+        ExpiryWheel<String> wheel = new ExpiryWheel<>(TICK_MICROS, TimeUnit.MICROSECONDS, expired::add);
+        long now = System.nanoTime();
+        // past the last level (2^24 ticks of 100 microseconds, about 28 minutes), so kept in the overflow list
+        wheel.schedule("overflow", now + TimeUnit.HOURS.toNanos(1));
+        wheel.schedule("level 3", now + TimeUnit.SECONDS.toNanos(30));
+        wheel.schedule("soon", now + TimeUnit.MILLISECONDS.toNanos(5));
+        for (int i = 0; i < 20; i++) {
+            wheel.advance();
+            Thread.sleep(1);
+        }
+        checkEquals(Collections.singletonList("soon"), expired, "Keys expired after 20 ms");
+    }
+
+    /** Schedules keys that are their own deadlines, in no particular order, and returns the
+     * deadlines in increasing order.
+     */
+    private static List<Long> schedule(ExpiryWheel<Long> wheel) {
+        long now = System.nanoTime();
+        List<Long> deadlines = new ArrayList<>();
+        for (long delay : DELAYS_MILLIS) {
+            long deadline = now + TimeUnit.MILLISECONDS.toNanos(delay);
+            wheel.schedule(deadline, deadline);
+            deadlines.add(deadline);
+        }
+        deadlines.sort(null);
+        return deadlines;
+    }
+}
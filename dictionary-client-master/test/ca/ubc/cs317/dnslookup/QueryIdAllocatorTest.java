@@ -0,0 +1,95 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static ca.ubc.cs317.dnslookup.Checks.*;
+
+/** Tests of QueryIdAllocator: IDs in flight are unique, all 65536 IDs can be allocated, released
+ * IDs are allocated again, and allocation stays unique across threads.
+ */
+public class QueryIdAllocatorTest {
+
+    private static final int ID_COUNT = 1 << 16;
+
+    public static void main(String[] args) throws InterruptedException {
+        allocatesEveryIdOnce();
+        reusesReleasedIds();
+        allocatesUniqueIdsAcrossThreads();
+        System.out.println("QueryIdAllocatorTest passed");
+    }
+
+    private static void allocatesEveryIdOnce() {
+        QueryIdAllocator allocator = new QueryIdAllocator();
+        boolean[] allocated = new boolean[ID_COUNT];
+        for (int i = 0; i < ID_COUNT; i++) {
+            int id = allocator.allocate();
+            check(id >= 0 && id < ID_COUNT, "ID out of range: " + id);
+            check(!allocated[id], "ID allocated twice: " + id);
+            allocated[id] = true;
+        }
+        checkEquals(ID_COUNT, allocator.getInFlightCount(), "IDs in flight");
+        checkThrows(IllegalStateException.class, allocator::allocate, "Allocation with all IDs in use");
+    }
+
+    private static void reusesReleasedIds() {
+        QueryIdAllocator allocator = new QueryIdAllocator();
+        for (int i = 0; i < ID_COUNT; i++)
+            allocator.allocate();
+        allocator.release(4242);
+        allocator.release(4242);
+        checkEquals(ID_COUNT - 1, allocator.getInFlightCount(), "IDs in flight after releasing an ID twice");
+        checkEquals(4242, allocator.allocate(), "Only free ID");
+
+        for (int id = 0; id < ID_COUNT; id++)
+            allocator.release(id);
+        checkEquals(0, allocator.getInFlightCount(), "IDs in flight after releasing all");
+        allocator.allocate();
+        checkEquals(1, allocator.getInFlightCount(), "IDs in flight after a new allocation");
+    }
+
+    private static void allocatesUniqueIdsAcrossThreads() throws InterruptedException {
+        QueryIdAllocator allocator = new QueryIdAllocator();
+        AtomicIntegerArray owners = new AtomicIntegerArray(ID_COUNT);
+        AtomicReference<String> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 1; t <= 4; t++) {
+            int owner = t;
+            threads.add(new Thread(() -> {
+                // allocations outnumber releases until each thread holds 10000 IDs, so the last
+                // allocations run with more than half of the IDs in use
+                int[] held = new int[10_000];
+                int count = 0;
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 200_000 && failure.get() == null; i++) {
+                    if (count < held.length && (count == 0 || random.nextInt(10) < 6)) {
+                        int id = allocator.allocate();
+                        if (!owners.compareAndSet(id, 0, owner))
+                            failure.set("ID " + id + " allocated to two threads");
+                        held[count++] = id;
+                    } else {
+                        int index = random.nextInt(count);
+                        int id = held[index];
+                        held[index] = held[--count];
+                        owners.set(id, 0);
+                        allocator.release(id);
+                    }
+                }
+                while (count > 0) {
+                    int id = held[--count];
+                    owners.set(id, 0);
+                    allocator.release(id);
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        checkEquals(null, failure.get(), "Concurrent allocation");
+        checkEquals(0, allocator.getInFlightCount(), "IDs in flight after all threads released theirs");
+    }
+}